@@ -0,0 +1,203 @@
+package com.davidmascharka.lips;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Partitions found by clustering a survey instead of drawn by hand. Each partition is the
+ * set of datapoints closest to its centroid, where a datapoint is described by the level
+ * of every access point and its position on the grid (see features()). The tools module's
+ * DiscoverPartitions finds the centroids.
+ *
+ * The bounds of each partition are the rectangle around the datapoints it was built from,
+ * so partitionOf(x, y) is only a rough answer for where a position is. Anything with a
+ * scan, like a datapoint being added to the models, goes by the closest centroid.
+ *
+ * The scheme is saved next to its models as learned/partitions.txt:
+ *
+ *   accessPoints 156
+ *   coordinateWeight 1.0
+ *   partition cluster1 minX minY maxX maxY centroid...
+ */
+public class ClusteredPartitionScheme extends PartitionScheme {
+
+	public static final String NAME = "Learned";
+	public static final String FILE_NAME = "learned/partitions.txt";
+
+	// Level given to access points that weren't heard, which are written as 0
+	private static final float UNHEARD = -100;
+
+	private final int accessPoints;
+	private final float coordinateWeight;
+	private final float[][] centroids;
+
+	public ClusteredPartitionScheme(int accessPoints, float coordinateWeight,
+			float[][] centroids, float[][] bounds) {
+		super(NAME, names(centroids.length), bounds);
+		for (float[] centroid : centroids) {
+			if (centroid.length != featureCount(accessPoints)) {
+				throw new IllegalArgumentException("Centroid has " + centroid.length
+						+ " features, expected " + featureCount(accessPoints));
+			}
+		}
+		this.accessPoints = accessPoints;
+		this.coordinateWeight = coordinateWeight;
+		this.centroids = centroids.clone();
+	}
+
+	/**
+	 * @return the number of values describing a datapoint with this many access points
+	 */
+	public static int featureCount(int accessPoints) {
+		return accessPoints + 2;
+	}
+
+	/**
+	 * Describes a datapoint for clustering: the level of each access point in tens of
+	 * dBm, then its x and y position times coordinateWeight. With a weight of 1, a cell
+	 * on the grid counts as much as 10 dBm at one access point
+	 */
+	public static void features(SurveyRecord record, float coordinateWeight, float[] out) {
+		int[] levels = record.levels;
+		for (int i = 0; i < levels.length; i++) {
+			out[i] = (levels[i] == 0 ? UNHEARD : levels[i]) / 10f;
+		}
+		out[levels.length] = record.x * coordinateWeight;
+		out[levels.length + 1] = record.y * coordinateWeight;
+	}
+
+	public int getAccessPointCount() {
+		return accessPoints;
+	}
+
+	public float getCoordinateWeight() {
+		return coordinateWeight;
+	}
+
+	/**
+	 * @return the partition whose centroid is closest to the datapoint
+	 */
+	@Override
+	public int partitionOf(SurveyRecord record) {
+		if (record.getAccessPointCount() != accessPoints) {
+			return super.partitionOf(record);
+		}
+		float[] features = new float[featureCount(accessPoints)];
+		features(record, coordinateWeight, features);
+		return closest(centroids, features);
+	}
+
+	/**
+	 * @return the index of the centroid closest to features
+	 */
+	public static int closest(float[][] centroids, float[] features) {
+		int closest = 0;
+		float closestDistance = Float.MAX_VALUE;
+		for (int i = 0; i < centroids.length; i++) {
+			float[] centroid = centroids[i];
+			float distance = 0;
+			for (int j = 0; j < features.length && distance < closestDistance; j++) {
+				float d = features[j] - centroid[j];
+				distance += d * d;
+			}
+			if (distance < closestDistance) {
+				closest = i;
+				closestDistance = distance;
+			}
+		}
+		return closest;
+	}
+
+	public void write(OutputStream out) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+		writer.printf(Locale.US, "accessPoints %d%n", accessPoints);
+		writer.printf(Locale.US, "coordinateWeight %s%n", coordinateWeight);
+		for (int i = 0; i < centroids.length; i++) {
+			StringBuilder line = new StringBuilder("partition ").append(getPartitionName(i));
+			for (float bound : getBounds(i)) {
+				line.append(' ').append(bound);
+			}
+			for (float value : centroids[i]) {
+				line.append(' ').append(value);
+			}
+			writer.println(line);
+		}
+		writer.flush();
+		if (writer.checkError()) {
+			throw new IOException("Couldn't write partitions");
+		}
+	}
+
+	public static ClusteredPartitionScheme read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		int accessPoints = -1;
+		float coordinateWeight = 1;
+		List<float[]> centroids = new ArrayList<float[]>();
+		List<float[]> bounds = new ArrayList<float[]>();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields[0].equals("accessPoints")) {
+					accessPoints = Integer.parseInt(fields[1]);
+				} else if (fields[0].equals("coordinateWeight")) {
+					coordinateWeight = Float.parseFloat(fields[1]);
+				} else if (fields[0].equals("partition")) {
+					float[] rectangle = new float[4];
+					float[] centroid = new float[fields.length - 6];
+					for (int i = 0; i < rectangle.length; i++) {
+						rectangle[i] = Float.parseFloat(fields[i + 2]);
+					}
+					for (int i = 0; i < centroid.length; i++) {
+						centroid[i] = Float.parseFloat(fields[i + 6]);
+					}
+					bounds.add(rectangle);
+					centroids.add(centroid);
+				}
+			}
+			if (accessPoints < 0 || centroids.isEmpty()) {
+				throw new IOException("Not a partitions file");
+			}
+			return new ClusteredPartitionScheme(accessPoints, coordinateWeight,
+					centroids.toArray(new float[centroids.size()][]),
+					bounds.toArray(new float[bounds.size()][]));
+		} catch (RuntimeException e) {
+			throw new IOException("Couldn't read partitions", e);
+		}
+	}
+
+	private static String[] names(int partitions) {
+		String[] names = new String[partitions];
+		for (int i = 0; i < partitions; i++) {
+			names[i] = "cluster" + (i + 1);
+		}
+		return names;
+	}
+}
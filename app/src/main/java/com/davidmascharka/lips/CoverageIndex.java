@@ -0,0 +1,245 @@
+package com.davidmascharka.lips;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How well each cell of the grid has been surveyed: the number of datapoints saved in
+ * the cell and how much the WiFi levels vary between them
+ *
+ * Everything lives in flat arrays indexed by cell (y * width + x) so a datapoint can be
+ * added in constant time as it's saved. The variance is kept per access point with
+ * Welford's method, which needs a mean and a sum of squared differences for every access
+ * point in every cell. For a 102x64 grid and 156 access points that's about 8 MB.
+ *
+ * Methods are synchronized because the index is filled from the dataset file on a
+ * background thread while new datapoints are added from the UI.
+ */
+public class CoverageIndex {
+
+	/**
+	 * Datapoints a cell should have before it's considered surveyed
+	 */
+	public static final int TARGET_SAMPLES = 5;
+
+	/**
+	 * Level used for an access point that wasn't heard. Treating it as 0 would make the
+	 * variance of an access point that comes and goes look enormous
+	 */
+	private static final float UNHEARD_LEVEL = -100;
+
+	/**
+	 * Variance (dB^2) assumed for a cell on top of what's been measured, so a cell with a
+	 * single datapoint doesn't look perfectly stable
+	 */
+	private static final float PRIOR_VARIANCE = 16;
+
+	private final int width;
+	private final int height;
+
+	private final int[] counts;
+
+	// Sum over every access point of the squared differences from its mean in each cell
+	private final float[] squaredDifferenceTotals;
+
+	// Per cell and access point, allocated once the number of access points is known
+	private int accessPoints;
+	private float[] means;
+	private float[] squaredDifferences;
+
+	// Incremented on every change so views can tell when to redraw
+	private int version;
+
+	public CoverageIndex(int width, int height) {
+		this.width = width;
+		this.height = height;
+		counts = new int[width * height];
+		squaredDifferenceTotals = new float[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Counts a datapoint at (x, y). Datapoints outside the grid, or with a different
+	 * number of access points than the ones already counted, are ignored
+	 *
+	 * @param levels signal level of each access point, 0 if it wasn't heard
+	 */
+	public synchronized void add(float x, float y, int[] levels) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return;
+		}
+		if (means == null) {
+			accessPoints = levels.length;
+			means = new float[width * height * accessPoints];
+			squaredDifferences = new float[width * height * accessPoints];
+		} else if (levels.length != accessPoints) {
+			return;
+		}
+
+		int cell = (int) y * width + (int) x;
+		int count = ++counts[cell];
+		int offset = cell * accessPoints;
+		float change = 0;
+		for (int i = 0; i < accessPoints; i++) {
+			float level = levels[i] == 0 ? UNHEARD_LEVEL : levels[i];
+			float delta = level - means[offset + i];
+			means[offset + i] += delta / count;
+			float squaredDifference = delta * (level - means[offset + i]);
+			squaredDifferences[offset + i] += squaredDifference;
+			change += squaredDifference;
+		}
+		squaredDifferenceTotals[cell] += change;
+		version++;
+	}
+
+	public void add(SurveyRecord record) {
+		if (record != null) {
+			add(record.x, record.y, record.levels);
+		}
+	}
+
+	public synchronized int getCount(int cellX, int cellY) {
+		return counts[cellY * width + cellX];
+	}
+
+	/**
+	 * @return the WiFi level variance in a cell averaged over the access points
+	 */
+	public synchronized float getVariance(int cellX, int cellY) {
+		int cell = cellY * width + cellX;
+		if (counts[cell] < 2) {
+			return 0;
+		}
+		return squaredDifferenceTotals[cell] / (accessPoints * (counts[cell] - 1));
+	}
+
+	/**
+	 * How much another datapoint would help a cell. This is roughly the variance of the
+	 * cell's mean fingerprint, so it shrinks as the cell gets more datapoints and stays
+	 * high where the levels are noisy
+	 */
+	public synchronized float getNeed(int cellX, int cellY) {
+		int count = counts[cellY * width + cellX];
+		if (count == 0) {
+			return 0;
+		}
+		return (getVariance(cellX, cellY) + PRIOR_VARIANCE) / count;
+	}
+
+	/**
+	 * @return up to max cells (y * width + x) that most need datapoints, neediest first.
+	 *         Cells with no datapoints aren't included since they may well be walls
+	 */
+	public synchronized int[] getNeediestCells(int max) {
+		int cells = width * height;
+		long[] ranked = new long[cells];
+		int candidates = 0;
+		for (int cell = 0; cell < cells; cell++) {
+			if (counts[cell] > 0) {
+				// Need is never negative so its bits sort the same way as its value
+				float need = getNeed(cell % width, cell / width);
+				ranked[candidates++] = (long) Float.floatToIntBits(need) << 32 | cell;
+			}
+		}
+		Arrays.sort(ranked, 0, candidates);
+
+		int[] neediest = new int[Math.min(max, candidates)];
+		for (int i = 0; i < neediest.length; i++) {
+			neediest[i] = (int) ranked[candidates - 1 - i];
+		}
+		return neediest;
+	}
+
+	/**
+	 * Counts every datapoint in the first length bytes of a dataset file, plain or
+	 * compressed. Reading stops early if the thread is interrupted
+	 */
+	public void load(File file, long length) throws IOException {
+		InputStream in = new BoundedInputStream(new FileInputStream(file), length);
+		Reader reader = SurveyLogReader.isCompressed(file) ? new SurveyLogReader(in)
+				: new InputStreamReader(in);
+		BufferedReader lines = new BufferedReader(reader);
+		try {
+			String line;
+			while ((line = lines.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+				add(SurveyRecord.parse(line));
+			}
+		} finally {
+			lines.close();
+		}
+	}
+
+	/**
+	 * Stops reading after a fixed number of bytes so rows appended while the file is
+	 * being loaded aren't counted twice
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int value = super.read();
+			if (value >= 0) {
+				remaining--;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = super.read(b, off, (int) Math.min(len, remaining));
+			if (count > 0) {
+				remaining -= count;
+			}
+			return count;
+		}
+	}
+}
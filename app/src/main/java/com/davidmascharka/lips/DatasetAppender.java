@@ -0,0 +1,313 @@
+package com.davidmascharka.lips;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Appends datapoints to a dataset file through one channel that stays open for as long
+ * as the survey does
+ *
+ * Each save goes out as a single write, then the channel is forced to storage according
+ * to the sync policy. If the app is killed part way through a write the file can still
+ * end in a torn row, so open() first cuts the file back to the last valid row. Rows are
+ * only ever appended so a torn row can only be at the end.
+ *
+ * The text itself stays exactly as before so it can still be turned into an ARFF file.
+ * The length and CRC32 of every row are kept in the DatasetIndex instead, and a row the
+ * index has an entry for is only valid if they still match. A row written since the
+ * index last caught up only has to be complete and parse.
+ *
+ * A file ending in .lipz is a compressed log instead. The rows go through one
+ * SurveyLogWriter for the whole session, so its deltas carry on from save to save with
+ * a single sync record at the start, and open() cuts the file back to its last whole
+ * record the same way.
+ */
+public class DatasetAppender implements Closeable {
+
+	/**
+	 * When appended rows are forced out to storage
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Leave it to the OS. A crash of the app loses nothing, losing power can lose the
+		 * last few seconds
+		 */
+		NONE,
+
+		/**
+		 * Once after every save, so a walk is forced once rather than once per scan
+		 */
+		EVERY_SAVE,
+
+		/**
+		 * After every row
+		 */
+		EVERY_ROW
+	}
+
+	// How much of the end of the file recover() looks at first
+	private static final int RECOVERY_WINDOW = 16 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	private SyncPolicy policy;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	// Encodes the rows of a compressed log, or null for plain text
+	private final SurveyLogWriter compressor;
+	private final ByteArrayOutputStream encoded;
+
+	private DatasetAppender(File file, SyncPolicy policy) throws IOException {
+		this.file = file;
+		this.policy = policy;
+		if (isCompressed(file)) {
+			encoded = new ByteArrayOutputStream(4096);
+			compressor = new SurveyLogWriter(encoded, file.length() == 0);
+		} else {
+			encoded = null;
+			compressor = null;
+		}
+		channel = new FileOutputStream(file, true).getChannel();
+	}
+
+	/**
+	 * Recovers the file if the last write to it was torn, then opens it for appending
+	 */
+	public static DatasetAppender open(File file, SyncPolicy policy) throws IOException {
+		recover(file);
+		return new DatasetAppender(file, policy);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized SyncPolicy getSyncPolicy() {
+		return policy;
+	}
+
+	public synchronized void setSyncPolicy(SyncPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Appends each row followed by a blank line, as MainActivity always has
+	 */
+	public synchronized void append(List<String> rows) throws IOException {
+		buffer.clear();
+		for (String row : rows) {
+			if (compressor == null) {
+				byte[] bytes = row.getBytes();
+				ensureCapacity(bytes.length + 2);
+				buffer.put(bytes);
+				buffer.put((byte) '\n');
+				buffer.put((byte) '\n');
+			} else {
+				compressor.write(row);
+				compressor.write("\n\n");
+				compressor.flush();
+				ensureCapacity(encoded.size());
+				buffer.put(encoded.toByteArray());
+				encoded.reset();
+			}
+
+			if (policy == SyncPolicy.EVERY_ROW) {
+				write();
+				channel.force(true);
+			}
+		}
+		write();
+		if (policy == SyncPolicy.EVERY_SAVE) {
+			channel.force(true);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (compressor != null) {
+			compressor.close();
+		}
+		channel.close();
+	}
+
+	private void write() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensureCapacity(int needed) {
+		if (buffer.remaining() < needed) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+					buffer.position() + needed));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+
+	/**
+	 * Truncates file after its last valid row, dropping a torn row and anything after
+	 * it. Rows the DatasetIndex has entries for are valid if they still have the length
+	 * and CRC32 it recorded. After those, or in a file without an index, the last
+	 * complete line that's a datapoint, a % comment or blank is. A compressed log is cut
+	 * after its last whole record
+	 *
+	 * @return the number of bytes dropped
+	 */
+	public static long recover(File file) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		if (isCompressed(file)) {
+			return recoverCompressed(file);
+		}
+
+		RandomAccessFile data = new RandomAccessFile(file, "rw");
+		try {
+			long length = data.length();
+			long end = length;
+			long verified = 0;
+			DatasetIndex index = DatasetIndex.read(file);
+			if (index != null) {
+				// A row torn part way through a number can still parse, but not match
+				int row = index.size() - 1;
+				while (row >= 0 && !index.matchesDataset(row)
+						&& index.size() - row <= DatasetIndex.MAX_STALE_ENTRIES) {
+					row--;
+				}
+				// Without a row that still matches, the index could be for some other file
+				if (row >= 0 && index.matchesDataset(row)) {
+					if (row + 1 < index.size()) {
+						end = Math.min(length, index.getOffset(row + 1));
+					}
+					verified = index.getOffset(row) + index.getLength(row) + 1;
+				}
+			}
+
+			int window = RECOVERY_WINDOW;
+			while (true) {
+				long start = Math.max(verified, end - window);
+				byte[] tail = new byte[(int) (end - start)];
+				data.seek(start);
+				data.readFully(tail);
+
+				int validEnd = validEnd(tail, start == verified);
+				if (validEnd >= 0) {
+					end = start + validEnd;
+					break;
+				}
+				// The line that decides it starts further back
+				window *= 2;
+			}
+
+			if (end < length) {
+				data.setLength(end);
+				data.getFD().sync();
+			}
+			return length - end;
+		} finally {
+			data.close();
+		}
+	}
+
+	private static long recoverCompressed(File file) throws IOException {
+		long length = file.length();
+		long end = SurveyLogReader.validLength(file);
+		if (end < length) {
+			RandomAccessFile data = new RandomAccessFile(file, "rw");
+			try {
+				data.setLength(end);
+				data.getFD().sync();
+			} finally {
+				data.close();
+			}
+		}
+		return length - end;
+	}
+
+	private static boolean isCompressed(File file) {
+		return file.getName().endsWith(SurveyLogFormat.EXTENSION);
+	}
+
+	/**
+	 * Finds where the valid part of the end of a file ends
+	 *
+	 * @param tail the last bytes of the file
+	 * @param whole whether tail starts at the beginning of the file
+	 * @return how much of tail to keep, or -1 if that can't be known without looking at
+	 *         what comes before tail
+	 */
+	static int validEnd(byte[] tail, boolean whole) {
+		int keep = tail.length;
+		int lineEnd = tail.length;
+
+		// A last line without a newline is always part of a torn write
+		if (lineEnd > 0 && tail[lineEnd - 1] != '\n') {
+			int newline = lastIndexOf(tail, '\n', lineEnd - 1);
+			if (newline < 0) {
+				return whole ? 0 : -1;
+			}
+			keep = newline + 1;
+			lineEnd = newline;
+		} else {
+			lineEnd--;
+		}
+
+		// Step back one line at a time. Blank lines don't decide anything
+		while (lineEnd >= 0) {
+			int newline = lastIndexOf(tail, '\n', lineEnd);
+			if (newline < 0 && !whole) {
+				return -1;
+			}
+			int lineStart = newline + 1;
+			if (lineStart < lineEnd) {
+				String line = new String(tail, lineStart, lineEnd - lineStart);
+				if (line.charAt(0) == '%' || SurveyRecord.parse(line) != null) {
+					return keep;
+				}
+				keep = lineStart;
+			}
+			lineEnd = newline;
+		}
+		return keep;
+	}
+
+	private static int lastIndexOf(byte[] bytes, char value, int before) {
+		for (int i = before - 1; i >= 0; i--) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
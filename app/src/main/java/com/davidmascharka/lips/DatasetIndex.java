@@ -0,0 +1,526 @@
+package com.davidmascharka.lips;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sidecar index for a plain text dataset file, dataset_BUILDING.idx next to
+ * dataset_BUILDING.txt, so a subset of the datapoints can be read without parsing the
+ * whole file
+ *
+ * The index holds a fixed size entry for every datapoint: where its row starts in the
+ * dataset file, how many bytes it takes and their CRC32, its timestamp, its x and y
+ * position and the partition the scheme it was opened with puts it in. The header keeps a
+ * fingerprint of that scheme, so opening it with another scheme indexes the file again
+ * rather than giving the wrong partitions. The length and CRC frame each row so a row
+ * that was only partly written, or lost while the index entry wasn't, is caught when the
+ * index is opened. Entries are appended by catchUp(), which reads the dataset file
+ * from the end of the last indexed row. Building the index from scratch is the same
+ * thing starting at the beginning of the file.
+ *
+ * Compressed logs can't be indexed this way since each row there depends on the rows
+ * before it.
+ */
+public class DatasetIndex {
+
+	public static final String EXTENSION = ".idx";
+
+	private static final byte[] MAGIC = {'L', 'I', 'P', 'X'};
+	private static final int VERSION = 3;
+
+	/**
+	 * Magic (4), version (1), partition count (1), scheme fingerprint (2)
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Offset (8), length (4), CRC32 (4), time (8), x (4), y (4), partition (1),
+	 * padding (3)
+	 */
+	static final int ENTRY_SIZE = 36;
+
+	// Entries at the end of the index that can fail to match the dataset before it's
+	// treated as a different file and indexed again
+	static final int MAX_STALE_ENTRIES = 16;
+
+	private final File dataFile;
+	private final File indexFile;
+	private final PartitionScheme scheme;
+	private final CRC32 crc = new CRC32();
+
+	private int size;
+	private long[] offsets = new long[256];
+	private int[] lengths = new int[256];
+	private int[] crcs = new int[256];
+	private long[] times = new long[256];
+	private float[] xs = new float[256];
+	private float[] ys = new float[256];
+	private byte[] partitions = new byte[256];
+
+	private DatasetIndex(File dataFile, PartitionScheme scheme) {
+		this.dataFile = dataFile;
+		this.indexFile = indexFile(dataFile);
+		this.scheme = scheme;
+	}
+
+	/**
+	 * Where the index for dataFile lives, e.g. dataset_Howard.idx for dataset_Howard.txt
+	 */
+	public static File indexFile(File dataFile) {
+		String name = dataFile.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(dataFile.getParentFile(),
+				(dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+	}
+
+	/**
+	 * Loads the index for dataFile and brings it up to date. An index that's missing,
+	 * from another version or partition scheme, or that no longer matches the dataset
+	 * file (for example because the file was reset) is rebuilt
+	 */
+	public static DatasetIndex open(File dataFile, PartitionScheme scheme) throws IOException {
+		DatasetIndex index = new DatasetIndex(dataFile, scheme);
+		if (!index.load()) {
+			index.clear();
+		}
+		index.catchUp();
+		return index;
+	}
+
+	/**
+	 * Loads the index for dataFile as it was last written, without checking it against
+	 * the dataset file or catching up, so DatasetAppender can check the rows it covers
+	 *
+	 * @return null if there's no index for dataFile that can be read
+	 */
+	static DatasetIndex read(File dataFile) throws IOException {
+		DatasetIndex index = new DatasetIndex(dataFile, null);
+		return index.readEntries() ? index : null;
+	}
+
+	public PartitionScheme getScheme() {
+		return scheme;
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long getOffset(int row) {
+		checkRow(row);
+		return offsets[row];
+	}
+
+	public synchronized int getLength(int row) {
+		checkRow(row);
+		return lengths[row];
+	}
+
+	/**
+	 * @return the CRC32 of the row's bytes, not counting the newline
+	 */
+	public synchronized int getCrc(int row) {
+		checkRow(row);
+		return crcs[row];
+	}
+
+	/**
+	 * @return milliseconds since the epoch, or -1 if the row has no timestamp
+	 */
+	public synchronized long getTime(int row) {
+		checkRow(row);
+		return times[row];
+	}
+
+	public synchronized float getX(int row) {
+		checkRow(row);
+		return xs[row];
+	}
+
+	public synchronized float getY(int row) {
+		checkRow(row);
+		return ys[row];
+	}
+
+	public synchronized int getPartition(int row) {
+		checkRow(row);
+		return partitions[row];
+	}
+
+	/**
+	 * @return the rows in partition, in file order
+	 */
+	public synchronized int[] rowsInPartition(int partition) {
+		int[] rows = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (partitions[i] == partition) {
+				rows[count++] = i;
+			}
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	/**
+	 * @return the rows saved from start up to but not including end, in file order
+	 */
+	public synchronized int[] rowsBetween(long start, long end) {
+		int[] rows = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (times[i] >= start && times[i] < end) {
+				rows[count++] = i;
+			}
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	/**
+	 * Reads one datapoint straight from its place in the dataset file
+	 */
+	public SurveyRecord read(int row) throws IOException {
+		return read(new int[] {row}).get(0);
+	}
+
+	/**
+	 * Reads the given datapoints from the dataset file, seeking to each one in turn
+	 */
+	public List<SurveyRecord> read(int[] rows) throws IOException {
+		List<SurveyRecord> records = new ArrayList<SurveyRecord>(rows.length);
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		try {
+			byte[] buffer = new byte[1024];
+			for (int row : rows) {
+				long offset;
+				int length;
+				synchronized (this) {
+					checkRow(row);
+					offset = offsets[row];
+					length = lengths[row];
+				}
+				if (buffer.length < length) {
+					buffer = new byte[length];
+				}
+				file.seek(offset);
+				file.readFully(buffer, 0, length);
+				SurveyRecord record = SurveyRecord.parse(new String(buffer, 0, length));
+				if (record == null) {
+					throw new IOException("Row " + row + " of " + dataFile.getName()
+							+ " isn't a datapoint, the index is out of date");
+				}
+				records.add(record);
+			}
+		} finally {
+			file.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Indexes every complete datapoint in the dataset file after the last indexed one
+	 * and appends them to the index file. Call after appending rows to the dataset
+	 *
+	 * @return the number of datapoints added
+	 */
+	public synchronized int catchUp() throws IOException {
+		long start = size == 0 ? 0 : offsets[size - 1] + lengths[size - 1];
+		if (!dataFile.exists() || dataFile.length() <= start) {
+			return 0;
+		}
+
+		int added = 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(dataFile));
+		try {
+			skipFully(in, start);
+
+			// Split on newlines by hand to keep track of where each row starts
+			byte[] line = new byte[1024];
+			int lineLength = 0;
+			long lineStart = start;
+			int b;
+			while ((b = in.read()) >= 0) {
+				if (b != '\n') {
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[lineLength++] = (byte) b;
+					continue;
+				}
+
+				if (lineLength > 0) {
+					SurveyRecord record = SurveyRecord.parse(new String(line, 0, lineLength));
+					if (record != null) {
+						add(lineStart, lineLength, crc(line, lineLength), record);
+						added++;
+					}
+				}
+				lineStart += lineLength + 1;
+				lineLength = 0;
+			}
+			// Anything after the last newline is a row that's still being written
+		} finally {
+			in.close();
+		}
+
+		if (added > 0) {
+			if (!indexFile.exists() || indexFile.length() == 0) {
+				writeHeader();
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(indexFile, true)));
+			try {
+				for (int i = size - added; i < size; i++) {
+					writeEntry(out, i);
+				}
+			} finally {
+				out.close();
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Throws the index away and indexes the whole dataset file again
+	 */
+	public synchronized void rebuild() throws IOException {
+		clear();
+		catchUp();
+	}
+
+	private void add(long offset, int length, int crc, SurveyRecord record) {
+		add(offset, length, crc, record.time, record.x, record.y,
+				(byte) scheme.partitionOf(record));
+	}
+
+	private void add(long offset, int length, int crc, long time, float x, float y,
+			byte partition) {
+		if (size == offsets.length) {
+			int capacity = size * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			crcs = Arrays.copyOf(crcs, capacity);
+			times = Arrays.copyOf(times, capacity);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			partitions = Arrays.copyOf(partitions, capacity);
+		}
+		offsets[size] = offset;
+		lengths[size] = length;
+		crcs[size] = crc;
+		times[size] = time;
+		xs[size] = x;
+		ys[size] = y;
+		partitions[size] = partition;
+		size++;
+	}
+
+	private void clear() throws IOException {
+		size = 0;
+		writeHeader();
+	}
+
+	/**
+	 * Reads the index file into memory
+	 *
+	 * @return false if the index file is missing or can't be trusted
+	 */
+	private boolean load() throws IOException {
+		if (!readEntries()) {
+			size = 0;
+			return false;
+		}
+
+		// The last indexed rows have to still be in the dataset. Entries for rows that
+		// were cut off or never made it to storage are dropped and indexed again
+		int stale = 0;
+		while (size > 0 && !matchesDataset(size - 1)) {
+			size--;
+			if (++stale > MAX_STALE_ENTRIES) {
+				size = 0;
+				return false;
+			}
+		}
+		if (indexFile.length() != HEADER_SIZE + (long) size * ENTRY_SIZE) {
+			rewrite();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads every entry in the index file, whether or not it matches the dataset
+	 *
+	 * @return false if the index file is missing, from another version or, when there's
+	 *         a scheme, has a different number of partitions
+	 */
+	private boolean readEntries() throws IOException {
+		if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) {
+			return false;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			for (byte b : MAGIC) {
+				if (in.readByte() != b) {
+					return false;
+				}
+			}
+			byte version = in.readByte();
+			byte partitionCount = in.readByte();
+			short fingerprint = in.readShort();
+			if (version != VERSION || scheme != null
+					&& (partitionCount != scheme.getPartitionCount()
+					|| fingerprint != fingerprint(scheme))) {
+				return false;
+			}
+
+			// A partially written entry at the end is dropped and picked up again by catchUp
+			long entries = (indexFile.length() - HEADER_SIZE) / ENTRY_SIZE;
+			for (long i = 0; i < entries; i++) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				int crc = in.readInt();
+				long time = in.readLong();
+				float x = in.readFloat();
+				float y = in.readFloat();
+				byte partition = in.readByte();
+				in.skipBytes(3);
+				add(offset, length, crc, time, x, y, partition);
+			}
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether row is still in the dataset file with the same length and CRC and
+	 *         followed by a newline
+	 */
+	synchronized boolean matchesDataset(int row) throws IOException {
+		long end = offsets[row] + lengths[row];
+		if (!dataFile.exists() || end >= dataFile.length()) {
+			return false;
+		}
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		try {
+			byte[] bytes = new byte[lengths[row] + 1];
+			file.seek(offsets[row]);
+			file.readFully(bytes);
+			return bytes[lengths[row]] == '\n' && crc(bytes, lengths[row]) == crcs[row];
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return a hash of the scheme's name and the bounds of its partitions
+	 */
+	static short fingerprint(PartitionScheme scheme) {
+		int hash = scheme.getName().hashCode();
+		for (int i = 0; i < scheme.getPartitionCount(); i++) {
+			hash = 31 * hash + Arrays.hashCode(scheme.getBounds(i));
+		}
+		return (short) (hash ^ hash >>> 16);
+	}
+
+	private int crc(byte[] bytes, int length) {
+		crc.reset();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private void writeHeader() throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile));
+		try {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeByte(scheme.getPartitionCount());
+			out.writeShort(fingerprint(scheme));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the whole index file again from what's in memory
+	 */
+	private void rewrite() throws IOException {
+		writeHeader();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile, true)));
+		try {
+			for (int i = 0; i < size; i++) {
+				writeEntry(out, i);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeEntry(DataOutputStream out, int row) throws IOException {
+		out.writeLong(offsets[row]);
+		out.writeInt(lengths[row]);
+		out.writeInt(crcs[row]);
+		out.writeLong(times[row]);
+		out.writeFloat(xs[row]);
+		out.writeFloat(ys[row]);
+		out.writeByte(partitions[row]);
+		out.write(new byte[3]);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				throw new EOFException("Dataset file is shorter than its index");
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.davidmascharka.lips;
+
+import java.util.ArrayList;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Builds WEKA instances from survey datapoints with the same attributes, in the same
+ * order, as TrackerActivity gives the classifiers: the 13 sensor readings, the level of
+ * each access point, latitude, longitude and location accuracy, and finally the class.
+ *
+ * The position models predict xPosition or yPosition. The partition model predicts the
+ * partition of the scheme the point falls in.
+ *
+ * A position model can also be trained on just some of the access points, since most of
+ * them are never heard in any one partition. Those are given as indexes into a datapoint's
+ * levels, and the attributes keep their BSSID names so the access points a model uses can
+ * be read back from it with accessPoints().
+ */
+public class FingerprintInstances {
+
+	public static final String X_POSITION = "xPosition";
+	public static final String Y_POSITION = "yPosition";
+	public static final String PARTITION = "partition";
+
+	private static final String[] SENSOR_NAMES = {"accelerometerX", "accelerometerY",
+			"accelerometerZ", "magneticX", "magneticY", "magneticZ", "light", "rotationX",
+			"rotationY", "rotationZ", "orientationX", "orientationY", "orientationZ"};
+
+	private FingerprintInstances() {
+	}
+
+	/**
+	 * @return an empty data set for predicting xPosition or yPosition
+	 */
+	public static Instances position(String classAttribute, int accessPoints, int capacity) {
+		return position(classAttribute, allAccessPoints(accessPoints), capacity);
+	}
+
+	/**
+	 * @return an empty data set for predicting xPosition or yPosition from only the
+	 *         given access points
+	 */
+	public static Instances position(String classAttribute, int[] accessPoints, int capacity) {
+		ArrayList<Attribute> attributes = features(accessPoints);
+		attributes.add(new Attribute(classAttribute));
+		Instances instances = new Instances("position", attributes, capacity);
+		instances.setClassIndex(attributes.size() - 1);
+		return instances;
+	}
+
+	/**
+	 * @return an empty data set for predicting which of scheme's partitions a point is in
+	 */
+	public static Instances partition(PartitionScheme scheme, int accessPoints, int capacity) {
+		ArrayList<Attribute> attributes = features(allAccessPoints(accessPoints));
+		attributes.add(new Attribute(PARTITION, new ArrayList<String>(scheme.getPartitionNames())));
+		Instances instances = new Instances(PARTITION, attributes, capacity);
+		instances.setClassIndex(attributes.size() - 1);
+		return instances;
+	}
+
+	/**
+	 * @return the record as an instance of instances, with the class value set to the
+	 *         record's x or y position, or its partition, to match the class attribute
+	 */
+	public static Instance toInstance(SurveyRecord record, Instances instances,
+			PartitionScheme scheme) {
+		return toInstance(record, instances, scheme, null);
+	}
+
+	/**
+	 * @return the record as an instance of instances, which has only the given access
+	 *         points, or all of them if accessPoints is null
+	 */
+	public static Instance toInstance(SurveyRecord record, Instances instances,
+			PartitionScheme scheme, int[] accessPoints) {
+		double[] values = new double[instances.numAttributes()];
+		int next = 0;
+		for (float sensor : record.sensors) {
+			values[next++] = sensor;
+		}
+		if (accessPoints == null) {
+			for (int level : record.levels) {
+				values[next++] = level;
+			}
+		} else {
+			for (int accessPoint : accessPoints) {
+				values[next++] = record.levels[accessPoint];
+			}
+		}
+		values[next++] = Double.isNaN(record.latitude) ? Utils.missingValue() : record.latitude;
+		values[next++] = Double.isNaN(record.longitude) ? Utils.missingValue() : record.longitude;
+		values[next++] = Float.isNaN(record.accuracy) ? Utils.missingValue() : record.accuracy;
+
+		String name = instances.classAttribute().name();
+		if (name.equals(X_POSITION)) {
+			values[next] = record.x;
+		} else if (name.equals(Y_POSITION)) {
+			values[next] = record.y;
+		} else {
+			values[next] = scheme.partitionOf(record);
+		}
+
+		Instance instance = new DenseInstance(1, values);
+		instance.setDataset(instances);
+		return instance;
+	}
+
+	/**
+	 * @return the number of attributes before the class for a data set with this many
+	 *         access points
+	 */
+	public static int featureCount(int accessPoints) {
+		return SENSOR_NAMES.length + accessPoints + 3;
+	}
+
+	/**
+	 * @return the indexes of the access points a data set has attributes for, from
+	 *         their names. The shipped models name them the same way
+	 */
+	public static int[] accessPoints(Instances instances) {
+		int[] accessPoints = new int[instances.numAttributes()];
+		int count = 0;
+		for (int i = 0; i < instances.numAttributes(); i++) {
+			String name = instances.attribute(i).name();
+			if (name.regionMatches(true, 0, "BSSID", 0, 5)) {
+				accessPoints[count++] = Integer.parseInt(name.substring(5)) - 1;
+			}
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(accessPoints, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private static int[] allAccessPoints(int accessPoints) {
+		int[] all = new int[accessPoints];
+		for (int i = 0; i < accessPoints; i++) {
+			all[i] = i;
+		}
+		return all;
+	}
+
+	private static ArrayList<Attribute> features(int[] accessPoints) {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(
+				featureCount(accessPoints.length) + 1);
+		for (String name : SENSOR_NAMES) {
+			attributes.add(new Attribute(name));
+		}
+		for (int accessPoint : accessPoints) {
+			attributes.add(new Attribute("BSSID" + (accessPoint + 1)));
+		}
+		attributes.add(new Attribute("latitude"));
+		attributes.add(new Attribute("longitude"));
+		attributes.add(new Attribute("locationAccuracy"));
+		return attributes;
+	}
+}
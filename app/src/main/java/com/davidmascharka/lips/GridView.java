@@ -9,7 +9,6 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Parcelable;
@@ -51,6 +50,11 @@ public class GridView extends View {
 	
 	private final static String KEY = "com.mascharka.indoorlocalization";
 	
+	// Number of cells to outline when displaying coverage
+	private static final int NEEDIEST_CELLS = 10;
+	
+	private static final float MAX_SCALE = 20.0f;
+	
 	private int gridWidth;
 	private int gridHeight;
 	
@@ -76,13 +80,33 @@ public class GridView extends View {
 	
 	// Members for displaying a map of the area
 	private boolean displayMap;
-	private Drawable map;
+	private MapTiles map;
 	private Uri mapUri;
+	// Where the visible part of the canvas started on the last frame, to tell which
+	// way it's panning
+	private int lastVisibleLeft;
+	private int lastVisibleTop;
 	private Rect imageBounds;
 	
+	// Members for displaying how well each cell has been surveyed
+	private boolean displayCoverage;
+	private CoverageIndex coverage;
+	private Paint coveragePaint;
+	private Paint highlightPaint;
+	private int[] neediestCells;
+	private int neediestVersion;
+	
 	// Whether this view should take input
 	private boolean catchInput;
 	
+	// The grid lines as drawLines takes them, rebuilt only when the view or grid size
+	// changes. Drawn through the canvas's scale, so they stay one pixel wide at any zoom
+	private float[] gridLines;
+	
+	// How long each onDraw takes, and only those drawn zoomed all the way in
+	private final LatencyHistogram drawTimes = new LatencyHistogram();
+	private final LatencyHistogram zoomedDrawTimes = new LatencyHistogram();
+	
 	public GridView(Context context) {
 		this(context, null, 0);
 	}
@@ -106,6 +130,14 @@ public class GridView extends View {
 		pointPaint.setStrokeWidth(20);
 		pointPaint.setColor(Color.BLUE);
 		
+		coveragePaint = new Paint();
+		coveragePaint.setStyle(Paint.Style.FILL);
+		
+		highlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		highlightPaint.setStyle(Paint.Style.STROKE);
+		highlightPaint.setStrokeWidth(3);
+		highlightPaint.setColor(Color.MAGENTA);
+		
 		clipBounds = new Rect();
 
 		map = null;
@@ -120,8 +152,29 @@ public class GridView extends View {
 		this.catchInput = catchInput;
 	}
 	
+	public LatencyHistogram getDrawTimes() {
+		return drawTimes;
+	}
+	
+	/**
+	 * @return the number of frames drawn and their median, 90th and 99th percentile and
+	 *         longest draw time in microseconds, for all of them and for those drawn at
+	 *         20x zoom
+	 */
+	public String describeDrawTimes() {
+		return "frames " + describe(drawTimes) + ", at " + (int) MAX_SCALE + "x zoom "
+				+ describe(zoomedDrawTimes);
+	}
+	
+	private static String describe(LatencyHistogram times) {
+		return times.getCount() + ": " + times.getValueAtPercentile(50) / 1000 + "/"
+				+ times.getValueAtPercentile(90) / 1000 + "/"
+				+ times.getValueAtPercentile(99) / 1000 + "/" + times.getMax() / 1000 + " us";
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) {
+	      long start = System.nanoTime();
 	      super.onDraw(canvas);
 	      
 	      canvas.getClipBounds(imageBounds);
@@ -160,32 +213,113 @@ public class GridView extends View {
 	      // If the user opts to display a map, draw it if they have selected one
 	      if (displayMap) {
 	    	  if (map != null) {
-	    		  map.setBounds(imageBounds);
-	    		  map.draw(canvas);
+	    		  map.draw(canvas, imageBounds, clipBounds, scaleFactor,
+	    				  clipBounds.left - lastVisibleLeft, clipBounds.top - lastVisibleTop);
 	    	  }
+	    	  lastVisibleLeft = clipBounds.left;
+	    	  lastVisibleTop = clipBounds.top;
 	      }
 	      
-	      // Float casts below ensure correct drawing -> eliminate rounding errors due to
-	      // integer division
-	      
-	      // Draw grid lines in x dimension (vertical lines)
-	      for (int x = 0; x <= gridWidth; x++) {
-	         canvas.drawLine(x * ((float) getWidth() / gridWidth), 0,
-	                x * ((float) getWidth() / gridWidth), getHeight(), gridPaint);
+	      if (displayCoverage && coverage != null) {
+	    	  drawCoverage(canvas);
 	      }
-	
-	      // Draw grid lines in y dimension (horizontal lines)
-	      for (int y = 0; y <= gridHeight; y++) {
-	         canvas.drawLine(0, y * ((float) getHeight() / gridHeight), getWidth(),
-	        		 y * ((float) getHeight() / gridHeight), gridPaint);
+	      
+	      if (gridLines == null) {
+	    	  gridLines = buildGridLines();
 	      }
+	      canvas.drawLines(gridLines, gridPaint);
 	      
 	      // Draw the user's touch point
 	      canvas.drawCircle(pointX, pointY, 1, pointPaint);
 	      
 	      canvas.restore();
+	      
+	      long time = System.nanoTime() - start;
+	      drawTimes.record(time);
+	      if (scaleFactor >= MAX_SCALE) {
+	    	  zoomedDrawTimes.record(time);
+	      }
 	   }
 	
+	/*
+	 * The start and end of every vertical then every horizontal grid line
+	 */
+	private float[] buildGridLines() {
+		float[] lines = new float[4 * (gridWidth + 1 + gridHeight + 1)];
+		// Float casts ensure correct drawing -> eliminate rounding errors due to
+		// integer division
+		float cellWidth = (float) getWidth() / gridWidth;
+		float cellHeight = (float) getHeight() / gridHeight;
+		int i = 0;
+		for (int x = 0; x <= gridWidth; x++) {
+			lines[i++] = x * cellWidth;
+			lines[i++] = 0;
+			lines[i++] = x * cellWidth;
+			lines[i++] = getHeight();
+		}
+		for (int y = 0; y <= gridHeight; y++) {
+			lines[i++] = 0;
+			lines[i++] = y * cellHeight;
+			lines[i++] = getWidth();
+			lines[i++] = y * cellHeight;
+		}
+		return lines;
+	}
+	
+	/*
+	 * Shades every surveyed cell by how many datapoints it has: red while it still needs
+	 * more, fading out as it gets closer to the target, and green once it has enough.
+	 * The cells that would gain the most from another datapoint are outlined
+	 */
+	private void drawCoverage(Canvas canvas) {
+		float cellWidth = (float) getWidth() / gridWidth;
+		float cellHeight = (float) getHeight() / gridHeight;
+		int width = Math.min(gridWidth, coverage.getWidth());
+		int height = Math.min(gridHeight, coverage.getHeight());
+		
+		for (int y = 0; y < height; y++) {
+			// Grid y coordinates go up from the bottom of the view
+			float top = getHeight() - (y + 1) * cellHeight;
+			for (int x = 0; x < width; x++) {
+				int count = coverage.getCount(x, y);
+				if (count == 0) {
+					continue;
+				}
+				if (count < CoverageIndex.TARGET_SAMPLES) {
+					int alpha = 160 * (CoverageIndex.TARGET_SAMPLES - count)
+							/ CoverageIndex.TARGET_SAMPLES + 40;
+					coveragePaint.setColor(Color.argb(alpha, 255, 0, 0));
+				} else {
+					coveragePaint.setColor(Color.argb(60, 0, 200, 0));
+				}
+				canvas.drawRect(x * cellWidth, top, (x + 1) * cellWidth, top + cellHeight,
+						coveragePaint);
+			}
+		}
+		
+		// Ranking the cells goes through the whole index so only do it when it changes
+		int version = coverage.getVersion();
+		if (neediestCells == null || version != neediestVersion) {
+			neediestCells = coverage.getNeediestCells(NEEDIEST_CELLS);
+			neediestVersion = version;
+		}
+		for (int cell : neediestCells) {
+			int x = cell % coverage.getWidth();
+			int y = cell / coverage.getWidth();
+			if (x < width && y < height) {
+				float top = getHeight() - (y + 1) * cellHeight;
+				canvas.drawRect(x * cellWidth, top, (x + 1) * cellWidth, top + cellHeight,
+						highlightPaint);
+			}
+		}
+	}
+	
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		super.onSizeChanged(width, height, oldWidth, oldHeight);
+		gridLines = null;
+	}
+	
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -204,6 +338,7 @@ public class GridView extends View {
 	public void setGridSize(int width, int height) {
 		gridWidth = width;
 		gridHeight = height;
+		gridLines = null;
 		
 		// Need to redraw canvas if the grid size has changed
 		invalidate();
@@ -216,6 +351,17 @@ public class GridView extends View {
 		invalidate();
 	}
 
+	public void setDisplayCoverage(boolean display) {
+		displayCoverage = display;
+		invalidate();
+	}
+	
+	public void setCoverage(CoverageIndex coverage) {
+		this.coverage = coverage;
+		neediestCells = null;
+		invalidate();
+	}
+
 	public void setMapUri(Uri uri) {
 		// Don't do anything if the uri passed in is null
 		if (uri == null) {
@@ -226,13 +372,39 @@ public class GridView extends View {
 		try {
 			mapUri = uri;
 			InputStream inputStream = getContext().getContentResolver().openInputStream(uri);
-			map = Drawable.createFromStream(inputStream, uri.toString());
+			if (inputStream == null) {
+				throw new FileNotFoundException(uri.toString());
+			}
+			// The plan is decoded a piece at a time off the UI thread, as much as the
+			// zoom needs
+			if (map != null) {
+				map.close();
+			}
+			map = new MapTiles(inputStream, this);
 			invalidate();
 		} catch (FileNotFoundException e) {
 			Toast.makeText(getContext(), "File not found", Toast.LENGTH_SHORT).show();
 		}
 	}
 	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (map == null) {
+			setMapUri(mapUri);
+		}
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		// Stop decoding and let the tiles go while the map can't be seen
+		if (map != null) {
+			map.close();
+			map = null;
+		}
+		super.onDetachedFromWindow();
+	}
+	
 	@Override
 	protected Parcelable onSaveInstanceState() {
 		Bundle bundle = new Bundle();
@@ -243,6 +415,7 @@ public class GridView extends View {
 		bundle.putInt(KEY + ".width", gridWidth);
 		bundle.putInt(KEY + ".height", gridHeight);
 		bundle.putBoolean(KEY + ".displayMap", displayMap);
+		bundle.putBoolean(KEY + ".displayCoverage", displayCoverage);
 		bundle.putParcelable(KEY + ".mapUri", mapUri);
 		
 		return bundle;
@@ -257,6 +430,7 @@ public class GridView extends View {
 			gridWidth = bundle.getInt(KEY + ".width");
 			gridHeight = bundle.getInt(KEY + ".length");
 			displayMap = bundle.getBoolean(KEY + ".displayMap");
+			displayCoverage = bundle.getBoolean(KEY + ".displayCoverage");
 			mapUri = bundle.getParcelable(KEY + ".mapUri");
 			
 			setMapUri(mapUri);
@@ -312,7 +486,6 @@ public class GridView extends View {
 				if (!scaleDetector.isInProgress()) {	// If not scaling
 					translateX = ev.getX() - startX;
 					translateY = ev.getY() - startY;
-					invalidate();
 				} else {
 					startX = ev.getX() - lastTranslateX;
 					startY = ev.getY() - lastTranslateY;
@@ -348,7 +521,7 @@ public class GridView extends View {
 			
 			// Constrain scale
 			// Max scale 20x zoom, min scale 1x zoom
-			scaleFactor = Math.max(1.0f, Math.min(scaleFactor, 20.0f));
+			scaleFactor = Math.max(1.0f, Math.min(scaleFactor, MAX_SCALE));
 			
 			pointPaint.setStrokeWidth(20 / scaleFactor);
 
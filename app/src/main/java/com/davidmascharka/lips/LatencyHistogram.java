@@ -0,0 +1,132 @@
+package com.davidmascharka.lips;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counts durations in buckets that get wider as the durations get longer, the way
+ * HdrHistogram does, so percentiles can be read off without keeping every value
+ *
+ * Values below SUB_BUCKETS nanoseconds get a bucket each. Above that every power of two
+ * is split into SUB_BUCKETS / 2 buckets, so a percentile is never off by more than about
+ * 3% of itself. Everything from a nanosecond to over half an hour fits in a fixed array
+ * of counts, so recording is a few shifts and an increment and never allocates. Longer
+ * values are counted in the last bucket. The methods are synchronized so one thread can
+ * record while another reads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	// Values up to SUB_BUCKETS << MAX_SHIFT nanoseconds, about 36 minutes
+	private static final int MAX_SHIFT = 35;
+
+	private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long total;
+	private long max;
+
+	/**
+	 * @param value in nanoseconds, e.g. the difference of two System.nanoTime() calls.
+	 *        Negative values are counted as zero
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean of the values recorded, in nanoseconds, or 0 if there are none
+	 */
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the largest value in the bucket the percentile falls in, in nanoseconds, or
+	 *         0 if nothing has been recorded
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Forgets everything recorded, e.g. at the start of a session
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		if (shift > MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		// value >>> shift is between HALF and SUB_BUCKETS - 1
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long top = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -7,6 +7,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -39,10 +41,18 @@ import com.mascharka.indoorlocalization.R;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  *  Copyright 2015 David Mascharka
@@ -82,7 +92,7 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 	ActivityCompat.OnRequestPermissionsResultCallback {
 	
 	// Preferences for storing user options such as room size and building
-	private static final String PREFS_NAME = "IndoorLocalizationPrefs";
+	static final String PREFS_NAME = "IndoorLocalizationPrefs";
 	
 	// Code used when the user launches an intent to select a map
 	private static final int GET_MAP_REQUEST = 0;
@@ -118,6 +128,11 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 	// those points.
 	private boolean userInitiatedScan;
 	
+	// Walking survey mode labels a stream of scans with positions along a straight walk
+	// instead of saving one scan at a time where the user has tapped
+	private boolean walkingMode;
+	private WalkingSurvey walkingSurvey;
+	
 	// Members for accessing location data
 	private LocationManager locationManager;
 	private LocationListener locationListener;
@@ -128,6 +143,28 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 	private int roomWidth;
 	private int roomLength;
 	private boolean displayMap;
+	private boolean compressLogs;
+	private boolean displayCoverage;
+	private boolean syncWrites;
+	private boolean updateModels;
+	
+	// Number of datapoints in each cell of the grid, loaded from the dataset file in the
+	// background and kept up to date as new datapoints are saved
+	private CoverageIndex coverage;
+	private Thread coverageLoader;
+	
+	// Where each datapoint in dataset_BUILDING.txt starts, opened alongside the coverage
+	private volatile DatasetIndex datasetIndex;
+	
+	// Kept open while the activity is in the foreground so saving a datapoint doesn't
+	// have to open the dataset file again
+	private DatasetAppender datasetAppender;
+	
+	// Saved datapoints are added to the tracker's models on a background thread, and the
+	// partitions they changed are written to the app's files when the activity pauses.
+	// Only used on modelUpdater
+	private PositionModels positionModels;
+	private final ExecutorService modelUpdater = Executors.newSingleThreadExecutor();
 
     private static final int MY_PERMISSIONS = 12;
 
@@ -193,6 +230,7 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		resetWifiReadings(building);
 		
 		userInitiatedScan = false;
+		walkingSurvey = new WalkingSurvey();
 	}
 	/**
 	 * Callback received when a permissions request has been completed.
@@ -270,6 +308,17 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		GridView grid = (GridView) findViewById(R.id.gridView);
 		grid.setGridSize(roomWidth, roomLength);
 		grid.setDisplayMap(displayMap);
+		grid.setDisplayCoverage(displayCoverage);
+		
+		// Has to come before the coverage is loaded so a torn row is never counted
+		openDatasetAppender();
+		if (coverage == null) {
+			rebuildCoverage();
+		} else {
+			grid.setCoverage(coverage);
+		}
+		
+		updateConfirmButton();
 		
 		// Register to get sensor updates from all the available sensors
 		sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
@@ -309,6 +358,14 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 	
 	@Override
 	public void onPause() {
+		// Scans can't be labelled once we stop receiving them, so a walk in progress
+		// has to be started again
+		if (walkingSurvey.isWalking()) {
+			walkingSurvey.cancel();
+			userInitiatedScan = false;
+			Toast.makeText(this, "Walk cancelled", Toast.LENGTH_SHORT).show();
+		}
+		
 		// Stop receiving updates
 		sensorManager.unregisterListener(this);
 		//@author Mahesh Gaya added permission if-statment
@@ -328,17 +385,35 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
         }
 		unregisterReceiver(receiver);
 		
+		closeDatasetAppender();
+		saveModels();
 		savePreferences();
 		
+		// How long drawing the grid takes while panning and zooming around the map
+		Log.i("GridView", ((GridView) findViewById(R.id.gridView)).describeDrawTimes());
+		
 		super.onPause();
 	}
 	
+	@Override
+	protected void onDestroy() {
+		// onPause has already queued the last save. Let it finish, then let the thread
+		// and the models go rather than keeping them for as long as the process lives
+		modelUpdater.shutdown();
+		super.onDestroy();
+	}
+	
 	/* In order to make sure we have up-to-date WiFi readings, start a
 	 * scan when user clicks the button. When the scan is finished, the
 	 * data will be saved by the updateScanResults() method called from 
 	 * the BroadcastReceiver.
 	 */
 	public void saveReading(View view) {
+		if (walkingMode) {
+			toggleWalk();
+			return;
+		}
+		
 		userInitiatedScan = true;
 		if (wifiManager.startScan()) {
 			Toast.makeText(this, "Started WiFi scan", Toast.LENGTH_SHORT).show();
@@ -350,6 +425,63 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		button.setClickable(false);
 	}
 	
+	/*
+	 * In walking survey mode the confirm button starts a walk at the point the user has
+	 * selected on the grid. Scans are taken back to back until the button is pressed again
+	 * with the end point selected, then all of them are saved with positions interpolated
+	 * along the walk
+	 */
+	private void toggleWalk() {
+		float x;
+		float y;
+		try {
+			TextView xposition = (TextView) findViewById(R.id.text_xposition);
+			TextView yposition = (TextView) findViewById(R.id.text_yposition);
+			x = Float.parseFloat(xposition.getText().toString().substring(3));
+			y = Float.parseFloat(yposition.getText().toString().substring(3));
+		} catch (NumberFormatException e) {
+			Toast.makeText(this, "Select a point on the grid first", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		if (!walkingSurvey.isWalking()) {
+			walkingSurvey.start(x, y, System.currentTimeMillis());
+			userInitiatedScan = true;
+			if (wifiManager.startScan()) {
+				Toast.makeText(this, "Walk to the end point at a steady pace",
+						Toast.LENGTH_SHORT).show();
+			} else {
+				Toast.makeText(this, "Couldn't start WiFi scan", Toast.LENGTH_SHORT).show();
+			}
+		} else {
+			userInitiatedScan = false;
+			try {
+				List<String> rows = walkingSurvey.finish(x, y, System.currentTimeMillis());
+				saveDatapoints(rows);
+				
+				Toast.makeText(this, "Saved " + rows.size() + " datapoints",
+						Toast.LENGTH_SHORT).show();
+			} catch (Exception e) {
+				walkingSurvey.cancel();
+				Toast.makeText(this, "There was an error", Toast.LENGTH_SHORT).show();
+				Log.e("ERROR", Log.getStackTraceString(e));
+			}
+		}
+		
+		updateConfirmButton();
+	}
+	
+	private void updateConfirmButton() {
+		Button button = (Button) findViewById(R.id.button_confirm);
+		if (!walkingMode) {
+			button.setText(R.string.button_confirm);
+		} else if (walkingSurvey.isWalking()) {
+			button.setText(R.string.button_finish_walk);
+		} else {
+			button.setText(R.string.button_start_walk);
+		}
+	}
+	
 	// Helper method to keep track of the most up-to-date location
 	private void updateLocation(Location location) {
 		this.location = location;
@@ -383,15 +515,11 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 				}
 			}
 			
-			// Get a filehandle for /sdcard/indoor_localization/dataset_BUILDING.txt
-			File root = Environment.getExternalStorageDirectory();
-			File dir = new File(root.getAbsolutePath() + "/indoor_localization");
-			dir.mkdirs();
-			File file = new File(dir, "dataset_" + building + ".txt");
-			
 			try {
-				FileOutputStream outputStream = new FileOutputStream(file, true);
-				PrintWriter writer = new PrintWriter(outputStream);
+				// Everything up to the position is put together first so a walking survey
+				// can hold on to it until it knows where the scan was taken
+				StringWriter reading = new StringWriter();
+				PrintWriter writer = new PrintWriter(reading);
 				
 				writer.print(accelerometerX + "," + accelerometerY + "," + accelerometerZ +
 						"," + magneticX + "," + magneticY + "," + magneticZ + "," + light +
@@ -453,20 +581,25 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 					}
 				}
 				
-				TextView xposition = (TextView) findViewById(R.id.text_xposition);
-				TextView yposition = (TextView) findViewById(R.id.text_yposition);
-				writer.print("," + xposition.getText().toString().substring(3));
-				writer.print("," + yposition.getText().toString().substring(3));
-				
-				writer.print(" %" + (new Timestamp(System.currentTimeMillis())).toString());
-				
-				writer.print("\n\n");
-
 				writer.flush();
-				writer.close();
+				long time = System.currentTimeMillis();
 				
-				Toast.makeText(this, "Done saving datapoint", Toast.LENGTH_SHORT).show();
-				userInitiatedScan = false;
+				if (walkingSurvey.isWalking()) {
+					// Go straight on to the next scan. The button stays clickable so the
+					// walk can be finished whenever the user gets to the end point
+					walkingSurvey.addScan(reading.toString(), time);
+					wifiManager.startScan();
+				} else {
+					TextView xposition = (TextView) findViewById(R.id.text_xposition);
+					TextView yposition = (TextView) findViewById(R.id.text_yposition);
+					saveDatapoints(Collections.singletonList(reading.toString() +
+							"," + xposition.getText().toString().substring(3) +
+							"," + yposition.getText().toString().substring(3) +
+							" %" + (new Timestamp(time)).toString()));
+					
+					Toast.makeText(this, "Done saving datapoint", Toast.LENGTH_SHORT).show();
+					userInitiatedScan = false;
+				}
 			} catch (Exception e) {
 				Toast.makeText(this, "There was an error", Toast.LENGTH_SHORT).show();
 				Log.e("ERROR", Log.getStackTraceString(e));
@@ -490,6 +623,11 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		
 		// Set the display map option to the appropriate check state
 		menu.getItem(3).setChecked(displayMap);
+		menu.findItem(R.id.action_compress_logs).setChecked(compressLogs);
+		menu.findItem(R.id.action_walking_survey).setChecked(walkingMode);
+		menu.findItem(R.id.action_display_coverage).setChecked(displayCoverage);
+		menu.findItem(R.id.action_sync_writes).setChecked(syncWrites);
+		menu.findItem(R.id.action_update_models).setChecked(updateModels);
 		return true;
 	}
 
@@ -529,6 +667,38 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 				Intent intent = new Intent(this, TrackerActivity.class);
 				startActivity(intent);
 				break;
+			case R.id.action_compress_logs:
+				compressLogs = !compressLogs;
+				item.setChecked(compressLogs);
+				closeDatasetAppender();
+				openDatasetAppender();
+				break;
+			case R.id.action_walking_survey:
+				walkingMode = !walkingMode;
+				item.setChecked(walkingMode);
+				if (!walkingMode && walkingSurvey.isWalking()) {
+					walkingSurvey.cancel();
+					userInitiatedScan = false;
+					Toast.makeText(this, "Walk cancelled", Toast.LENGTH_SHORT).show();
+				}
+				updateConfirmButton();
+				break;
+			case R.id.action_display_coverage:
+				displayCoverage = !displayCoverage;
+				item.setChecked(displayCoverage);
+				((GridView) findViewById(R.id.gridView)).setDisplayCoverage(displayCoverage);
+				break;
+			case R.id.action_sync_writes:
+				syncWrites = !syncWrites;
+				item.setChecked(syncWrites);
+				if (datasetAppender != null) {
+					datasetAppender.setSyncPolicy(getSyncPolicy());
+				}
+				break;
+			case R.id.action_update_models:
+				updateModels = !updateModels;
+				item.setChecked(updateModels);
+				break;
 			default:
 				super.onOptionsItemSelected(item);
 				break;
@@ -543,6 +713,76 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 			
 			Uri selectedMapUri = data.getData();
 			((GridView) findViewById(R.id.gridView)).setMapUri(selectedMapUri);
+			saveWalkableMask(selectedMapUri);
+		}
+	}
+	
+	/*
+	 * Works out which cells of the tracker's grid are walls from the map and saves them
+	 * for TrackerActivity. The map is stretched over the whole building the same way
+	 * GridView draws it
+	 */
+	private void saveWalkableMask(final Uri mapUri) {
+		final File file = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ "/indoor_localization", WalkableMask.fileName(building));
+		final float[] bounds = PartitionScheme.FULL.getBounds(0);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// A few pixels per cell is all it needs, so don't decode a photo of a
+					// floor plan at full size
+					BitmapFactory.Options options = new BitmapFactory.Options();
+					options.inJustDecodeBounds = true;
+					decodeMap(mapUri, options);
+					options.inSampleSize = 1;
+					while (Math.max(options.outWidth, options.outHeight)
+							/ (2 * options.inSampleSize) >= 1024) {
+						options.inSampleSize *= 2;
+					}
+					options.inJustDecodeBounds = false;
+					Bitmap map = decodeMap(mapUri, options);
+					if (map == null) {
+						return;
+					}
+					int width = map.getWidth();
+					int height = map.getHeight();
+					int[] pixels = new int[width * height];
+					map.getPixels(pixels, 0, width, 0, 0, width, height);
+					map.recycle();
+					
+					WalkableMask mask = WalkableMask.fromPixels(pixels, width, height,
+							(int) bounds[2], (int) bounds[3]);
+					file.getParentFile().mkdirs();
+					File temp = new File(file.getPath() + ".tmp");
+					FileOutputStream out = new FileOutputStream(temp);
+					try {
+						mask.write(out);
+					} finally {
+						out.close();
+					}
+					if (!temp.renameTo(file)) {
+						throw new IOException("Couldn't replace " + file);
+					}
+				} catch (IOException e) {
+					Log.e("ERROR", Log.getStackTraceString(e));
+				} catch (IllegalArgumentException e) {
+					// The map is all wall, which is no use to the tracker
+					Log.e("ERROR", Log.getStackTraceString(e));
+				}
+			}
+		}).start();
+	}
+	
+	private Bitmap decodeMap(Uri mapUri, BitmapFactory.Options options) throws IOException {
+		InputStream in = getContentResolver().openInputStream(mapUri);
+		if (in == null) {
+			throw new IOException("Couldn't open " + mapUri);
+		}
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
 		}
 	}
 	
@@ -557,6 +797,10 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		
 		TextView buildingText = (TextView) findViewById(R.id.text_building);
 		buildingText.setText("Building: " + building);
+		
+		closeDatasetAppender();
+		openDatasetAppender();
+		rebuildCoverage();
 	}
 
 	@Override
@@ -569,27 +813,231 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		
 		TextView roomSizeText = (TextView) findViewById(R.id.text_room_size);
 		roomSizeText.setText("Room size: " + roomWidth + " x " + roomLength);
+		
+		rebuildCoverage();
 	}
 	
-	// Resets the data file to blank with the device and order of data as a header
+	// Resets the data file to blank with the device and order of data as a header.
+	// Both the plain and the compressed file are emptied, since coverage counts both
 	private void resetDatafile() {
-		File root = Environment.getExternalStorageDirectory();
-		File dir = new File(root.getAbsolutePath() + "/indoor_localization");
-		dir.mkdirs();
-		File file = new File(dir, "dataset_" + building + ".txt");
+		closeDatasetAppender();
+		datasetIndex = null;
+		DatasetIndex.indexFile(datasetFile()).delete();
+		datasetFile().delete();
+		compressedDatasetFile().delete();
+		openDatasetAppender();
+		
 		try {
-			FileOutputStream outputStream = new FileOutputStream(file);
-			PrintWriter writer = new PrintWriter(outputStream);
-			writer.println("%Data collected by " + android.os.Build.MODEL + 
+			saveRows(Collections.singletonList("%Data collected by " + android.os.Build.MODEL +
 					"\n%Format of data: Accelerometer X, Accelerometer Y, Accelerometer Z, " +
 					"Magnetic X, Magnetic Y, Magnetic Z, Light, Rotation X, Rotation Y, " +
 					"Rotation Z, Orientation X, Orientation Y, Orientation Z, WIFI NETWORKS " +
-					"BSSID, Frequency, Signal level, Latitude, Longitude\n\n");
-			writer.flush();
-			writer.close();
+					"BSSID, Frequency, Signal level, Latitude, Longitude\n"));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		
+		rebuildCoverage();
+	}
+
+	/*
+	 * Appends rows to the dataset file and counts them in the coverage grid
+	 */
+	private void saveDatapoints(List<String> rows) throws IOException {
+		saveRows(rows);
+		
+		for (String row : rows) {
+			coverage.add(SurveyRecord.parse(row));
+		}
+		if (updateModels) {
+			addToModels(rows);
+		}
+		DatasetIndex index = datasetIndex;
+		if (index != null && !compressLogs) {
+			index.catchUp();
+		}
+		((GridView) findViewById(R.id.gridView)).invalidate();
+	}
+	
+	/*
+	 * Appends each row and a blank line to the dataset file for the current mode
+	 */
+	private void saveRows(List<String> rows) throws IOException {
+		if (datasetAppender != null) {
+			datasetAppender.append(rows);
+		} else {
+			PrintWriter writer = new PrintWriter(openDatasetWriter());
+			for (String row : rows) {
+				writer.print(row);
+				writer.print("\n\n");
+			}
+			writer.flush();
+			writer.close();
+		}
+	}
+	
+	/*
+	 * Starts counting the datapoints for the current building and room size again. The
+	 * dataset files are read once on a background thread; the grid shows the cells as
+	 * they're filled in
+	 */
+	private void rebuildCoverage() {
+		if (coverageLoader != null) {
+			coverageLoader.interrupt();
+		}
+		
+		final CoverageIndex index = new CoverageIndex(roomWidth, roomLength);
+		coverage = index;
+		final GridView grid = (GridView) findViewById(R.id.gridView);
+		grid.setCoverage(index);
+		
+		datasetIndex = null;
+		
+		// Only read what's there now. Anything saved from here on is added as it's saved
+		final File[] files = {datasetFile(), compressedDatasetFile()};
+		final long[] lengths = {files[0].length(), files[1].length()};
+		final Context context = getApplicationContext();
+		
+		coverageLoader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < files.length; i++) {
+					if (lengths[i] > 0) {
+						try {
+							index.load(files[i], lengths[i]);
+						} catch (IOException e) {
+							Log.e("ERROR", Log.getStackTraceString(e));
+						}
+					}
+				}
+				grid.postInvalidate();
+				
+				// Saving a datapoint catches the index up, so it has to be there first
+				if (!Thread.currentThread().isInterrupted()) {
+					try {
+						// Partitioned the way the tracker's models are
+						DatasetIndex opened = DatasetIndex.open(files[0],
+								TrackerActivity.loadScheme(context));
+						if (coverage == index) {
+							datasetIndex = opened;
+						}
+					} catch (IOException e) {
+						Log.e("ERROR", Log.getStackTraceString(e));
+					}
+				}
+			}
+		});
+		coverageLoader.start();
+	}
+	
+	/*
+	 * Cuts a row torn by the app being killed mid-save off the end of the dataset file,
+	 * or the compressed one if the user has turned on log compression, and opens the
+	 * file for appending. If that fails datapoints are saved the old way
+	 */
+	private void openDatasetAppender() {
+		try {
+			File file = compressLogs ? compressedDatasetFile() : datasetFile();
+			file.getParentFile().mkdirs();
+			datasetAppender = DatasetAppender.open(file, getSyncPolicy());
+		} catch (IOException e) {
+			Log.e("ERROR", Log.getStackTraceString(e));
+		}
+	}
+	
+	private void closeDatasetAppender() {
+		if (datasetAppender != null) {
+			try {
+				datasetAppender.close();
+			} catch (IOException e) {
+				Log.e("ERROR", Log.getStackTraceString(e));
+			}
+			datasetAppender = null;
+		}
+	}
+	
+	/*
+	 * Adds the datapoints to the position models of the partitions they're in, using
+	 * the same partitions as the tracker. The models are loaded the first time, which
+	 * takes a while, so it's all done on modelUpdater
+	 */
+	private void addToModels(final List<String> rows) {
+		final Context context = getApplicationContext();
+		modelUpdater.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (positionModels == null) {
+					positionModels = new PositionModels(TrackerActivity.loadScheme(context),
+							TrackerActivity.modelSource(context));
+				}
+				PositionModels models = positionModels;
+				for (String row : rows) {
+					SurveyRecord record = SurveyRecord.parse(row);
+					if (record == null) {
+						continue;
+					}
+					try {
+						models.append(record);
+					} catch (Exception e) {
+						Log.e("ERROR", Log.getStackTraceString(e));
+						return;
+					}
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Writes out the models of any partition a datapoint was added to, after everything
+	 * queued on modelUpdater, so TrackerActivity loads them next time it starts
+	 */
+	private void saveModels() {
+		final File dir = getFilesDir();
+		modelUpdater.execute(new Runnable() {
+			@Override
+			public void run() {
+				PositionModels models = positionModels;
+				if (models == null) {
+					return;
+				}
+				try {
+					models.save(dir);
+				} catch (Exception e) {
+					Log.e("ERROR", Log.getStackTraceString(e));
+				}
+			}
+		});
+	}
+	
+	private DatasetAppender.SyncPolicy getSyncPolicy() {
+		return syncWrites ? DatasetAppender.SyncPolicy.EVERY_SAVE
+				: DatasetAppender.SyncPolicy.NONE;
+	}
+	
+	private File datasetFile() {
+		return new File(Environment.getExternalStorageDirectory().getAbsolutePath() +
+				"/indoor_localization", "dataset_" + building + ".txt");
+	}
+	
+	/*
+	 * Where the rows go instead of dataset_BUILDING.txt if the user has turned on log
+	 * compression, which SurveyLogReader turns back into exactly the same text
+	 */
+	private File compressedDatasetFile() {
+		return SurveyLogWriter.compressedFile(datasetFile().getParentFile(),
+				"dataset_" + building);
+	}
+	
+	/*
+	 * Opens the dataset file for the current mode for appending, for when the
+	 * DatasetAppender couldn't be opened
+	 */
+	private Writer openDatasetWriter() throws IOException {
+		datasetFile().getParentFile().mkdirs();
+		if (compressLogs) {
+			return SurveyLogWriter.open(compressedDatasetFile());
+		}
+		return new OutputStreamWriter(new FileOutputStream(datasetFile(), true));
 	}
 
 	public static class MainFragment extends Fragment {
@@ -653,6 +1101,10 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		editor.putInt(getPackageName() + ".length", roomLength);
 		editor.putString(getPackageName() + ".building", building);
 		editor.putBoolean(getPackageName() + ".displayMap", displayMap);
+		editor.putBoolean(getPackageName() + ".compressLogs", compressLogs);
+		editor.putBoolean(getPackageName() + ".displayCoverage", displayCoverage);
+		editor.putBoolean(getPackageName() + ".syncWrites", syncWrites);
+		editor.putBoolean(getPackageName() + ".updateModels", updateModels);
 		
 		editor.commit();
 	}
@@ -664,6 +1116,10 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
 		roomLength = prefs.getInt(getPackageName() + ".length", 9);
 		building = prefs.getString(getPackageName() + ".building", "Howard");
 		displayMap = prefs.getBoolean(getPackageName() + ".displayMap", false);
+		compressLogs = prefs.getBoolean(getPackageName() + ".compressLogs", false);
+		displayCoverage = prefs.getBoolean(getPackageName() + ".displayCoverage", false);
+		syncWrites = prefs.getBoolean(getPackageName() + ".syncWrites", true);
+		updateModels = prefs.getBoolean(getPackageName() + ".updateModels", false);
 	}
 	
 	// TODO make pretty
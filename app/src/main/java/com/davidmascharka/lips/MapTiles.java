@@ -0,0 +1,286 @@
+package com.davidmascharka.lips;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Draws a floor plan of any resolution without ever decoding all of it at once
+ *
+ * A small overview of the whole plan, no more than OVERVIEW_SIZE pixels a side, is
+ * always drawn first. Zoomed in further than the overview has detail for, the visible
+ * part of the plan is drawn from tiles decoded with a BitmapRegionDecoder at the
+ * coarsest power of two sample size that still has a pixel for every pixel on screen,
+ * so a tile is never more than TILE_SIZE pixels square whatever the zoom. Tiles are
+ * decoded on a thread of their own and kept in an LRU cache of at most an eighth of
+ * the heap. Tiles that aren't decoded yet show the overview until they are.
+ *
+ * Each frame replaces the tiles waiting to be decoded with the ones it's missing, so a
+ * quick pan doesn't leave the thread decoding tiles that have gone off screen, followed
+ * by the next row or column of tiles in the direction it's panning.
+ *
+ * BitmapRegionDecoder only reads JPEG, PNG and WebP images.
+ */
+public class MapTiles {
+
+	private static final int TILE_SIZE = 256;
+	private static final int OVERVIEW_SIZE = 1024;
+
+	private final View view;
+	private final LruCache<Long, Bitmap> tiles;
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	// Tiles to decode in the order they're wanted, guarded by this
+	private final Set<Long> wanted = new LinkedHashSet<Long>();
+	private boolean closed;
+
+	// Set by the decoding thread once it has read the plan
+	private volatile Bitmap overview;
+	private volatile int overviewSample;
+	private volatile int width;
+	private volatile int height;
+
+	// Reused by every frame, only on the UI thread
+	private final List<Long> missing = new ArrayList<Long>();
+	private final Rect source = new Rect();
+	private final RectF destination = new RectF();
+
+	/**
+	 * Starts reading the plan, which is closed once it's been read
+	 *
+	 * @param view invalidated whenever there's more of the plan to draw
+	 */
+	public MapTiles(final InputStream in, View view) {
+		this.view = view;
+		tiles = new LruCache<Long, Bitmap>((int) Math.min(Integer.MAX_VALUE,
+				Runtime.getRuntime().maxMemory() / 8)) {
+			@Override
+			protected int sizeOf(Long key, Bitmap tile) {
+				return tile.getByteCount();
+			}
+		};
+
+		Thread decoding = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decode(in);
+			}
+		}, "MapTiles");
+		decoding.setPriority(Thread.MIN_PRIORITY);
+		decoding.start();
+	}
+
+	/**
+	 * Stops decoding and lets go of every tile
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			wanted.clear();
+			notifyAll();
+		}
+		tiles.evictAll();
+	}
+
+	/**
+	 * Draws the plan stretched over bounds
+	 *
+	 * @param visible the part of the canvas that's on screen
+	 * @param scale how many screen pixels there are to a unit of the canvas
+	 * @param panX how far visible has moved right since the last frame
+	 * @param panY how far visible has moved down since the last frame
+	 */
+	public void draw(Canvas canvas, Rect bounds, Rect visible, float scale, float panX,
+			float panY) {
+		Bitmap overview = this.overview;
+		if (overview == null || bounds.isEmpty()) {
+			return;
+		}
+		canvas.drawBitmap(overview, null, bounds, paint);
+
+		// How many of the plan's pixels there are to a canvas unit each way
+		float scaleX = (float) width / bounds.width();
+		float scaleY = (float) height / bounds.height();
+		int sample = sampleSize(Math.min(scaleX, scaleY) / scale);
+		missing.clear();
+		if (sample < overviewSample) {
+			int tileSize = TILE_SIZE * sample;
+			int columns = (width + tileSize - 1) / tileSize;
+			int rows = (height + tileSize - 1) / tileSize;
+			int left = clamp((int) ((visible.left - bounds.left) * scaleX / tileSize), columns);
+			int top = clamp((int) ((visible.top - bounds.top) * scaleY / tileSize), rows);
+			int right = clamp((int) ((visible.right - bounds.left) * scaleX / tileSize),
+					columns);
+			int bottom = clamp((int) ((visible.bottom - bounds.top) * scaleY / tileSize),
+					rows);
+
+			for (int row = top; row <= bottom; row++) {
+				for (int column = left; column <= right; column++) {
+					long key = key(sample, column, row);
+					Bitmap tile = tiles.get(key);
+					if (tile == null) {
+						missing.add(key);
+						continue;
+					}
+					tileSource(sample, column, row, source);
+					destination.set(bounds.left + source.left / scaleX,
+							bounds.top + source.top / scaleY,
+							bounds.left + source.right / scaleX,
+							bounds.top + source.bottom / scaleY);
+					canvas.drawBitmap(tile, null, destination, paint);
+				}
+			}
+
+			// The tiles just off screen in the direction it's panning
+			int nextColumn = panX > 0 ? right + 1 : panX < 0 ? left - 1 : -1;
+			int nextRow = panY > 0 ? bottom + 1 : panY < 0 ? top - 1 : -1;
+			if (nextColumn >= 0 && nextColumn < columns) {
+				for (int row = top; row <= bottom; row++) {
+					prefetch(key(sample, nextColumn, row));
+				}
+			}
+			if (nextRow >= 0 && nextRow < rows) {
+				for (int column = left; column <= right; column++) {
+					prefetch(key(sample, column, nextRow));
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (!closed) {
+				wanted.clear();
+				wanted.addAll(missing);
+				notifyAll();
+			}
+		}
+	}
+
+	private void prefetch(long key) {
+		if (tiles.get(key) == null) {
+			missing.add(key);
+		}
+	}
+
+	/**
+	 * @return the largest power of two that's no more than pixels, the number of the
+	 *         plan's pixels to a pixel on screen, or 1
+	 */
+	static int sampleSize(float pixels) {
+		int sample = 1;
+		while (sample * 2 <= pixels) {
+			sample *= 2;
+		}
+		return sample;
+	}
+
+	private static int clamp(int tile, int tiles) {
+		return Math.max(0, Math.min(tile, tiles - 1));
+	}
+
+	private static long key(int sample, int column, int row) {
+		return (long) Integer.numberOfTrailingZeros(sample) << 48 | (long) row << 24 | column;
+	}
+
+	/**
+	 * Sets source to the part of the plan a tile covers, cut off at its edges
+	 */
+	private void tileSource(int sample, int column, int row, Rect source) {
+		int tileSize = TILE_SIZE * sample;
+		source.set(column * tileSize, row * tileSize,
+				Math.min(width, (column + 1) * tileSize), Math.min(height, (row + 1) * tileSize));
+	}
+
+	private void decode(InputStream in) {
+		BitmapRegionDecoder decoder;
+		try {
+			try {
+				decoder = BitmapRegionDecoder.newInstance(in, false);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e("ERROR", Log.getStackTraceString(e));
+			return;
+		}
+
+		try {
+			width = decoder.getWidth();
+			height = decoder.getHeight();
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = 1;
+			while (Math.max(width, height) / options.inSampleSize > OVERVIEW_SIZE) {
+				options.inSampleSize *= 2;
+			}
+			overviewSample = options.inSampleSize;
+			overview = decoder.decodeRegion(new Rect(0, 0, width, height), options);
+			view.postInvalidate();
+
+			Rect region = new Rect();
+			while (true) {
+				long key;
+				synchronized (this) {
+					while (!closed && wanted.isEmpty()) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					Iterator<Long> next = wanted.iterator();
+					key = next.next();
+					next.remove();
+				}
+				if (tiles.get(key) != null) {
+					continue;
+				}
+
+				int sample = 1 << (int) (key >>> 48);
+				tileSource(sample, (int) (key & 0xffffff), (int) (key >>> 24 & 0xffffff),
+						region);
+				options.inSampleSize = sample;
+				Bitmap tile = decoder.decodeRegion(region, options);
+				if (tile != null) {
+					tiles.put(key, tile);
+					view.postInvalidate();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Nothing else interrupts this thread, so just stop
+		} finally {
+			decoder.recycle();
+		}
+	}
+}
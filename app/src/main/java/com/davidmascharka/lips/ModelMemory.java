@@ -0,0 +1,276 @@
+package com.davidmascharka.lips;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Adds up roughly how much heap the loaded models keep, by walking every object each
+ * one reaches through its fields
+ *
+ * Objects are sized the way a 64 bit VM with compressed references lays them out: a
+ * header, the fields, padded to 8 bytes. ART's headers are a little smaller so the
+ * totals are a few percent high on a device, but models compare fairly. What each model
+ * keeps is split into the instances it holds (K* keeps its whole training set), the
+ * attribute metadata describing them, the nodes of any trees, and everything else. An
+ * object goes under the first of those it's reached through, so the values array of an
+ * instance counts as instances.
+ *
+ * Models added to the same ModelMemory share a count, so whatever one model shares with
+ * another it was added after, like a header, only counts for the first. Walking a model
+ * takes a while with K*'s thousands of instances, so do it off the UI thread.
+ */
+public class ModelMemory {
+
+	public static final int INSTANCES = 0;
+	public static final int ATTRIBUTES = 1;
+	public static final int TREE_NODES = 2;
+	public static final int OTHER = 3;
+
+	private static final String[] CATEGORIES = {"instances", "attributes", "tree nodes",
+			"other"};
+
+	private static final int HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	private static final int ALIGNMENT = 8;
+
+	// RandomTree's nodes are an inner class that isn't visible outside WEKA
+	private static final String TREE_NODE_PREFIX = "weka.classifiers.trees.RandomTree$";
+
+	private final Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+	private final Map<Class<?>, Layout> layouts = new HashMap<Class<?>, Layout>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<long[]> sizes = new ArrayList<long[]>();
+
+	/**
+	 * Counts everything model reaches that no model added before it does
+	 *
+	 * @return the bytes counted under each category
+	 */
+	public long[] add(String name, Object model) {
+		long[] bytes = new long[CATEGORIES.length];
+		List<Object> objects = new ArrayList<Object>();
+		List<Integer> categories = new ArrayList<Integer>();
+		push(objects, categories, model, OTHER);
+		while (!objects.isEmpty()) {
+			Object object = objects.remove(objects.size() - 1);
+			int category = category(object, categories.remove(categories.size() - 1));
+			bytes[category] += visit(object, category, objects, categories);
+		}
+		names.add(name);
+		sizes.add(bytes);
+		return bytes;
+	}
+
+	public static String getCategoryName(int category) {
+		return CATEGORIES[category];
+	}
+
+	/**
+	 * @return the bytes counted for every model added so far
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (long[] bytes : sizes) {
+			total += sum(bytes);
+		}
+		return total;
+	}
+
+	/**
+	 * @return a line for each model added with its size and how that splits up, in KB,
+	 *         and the total
+	 */
+	public String report() {
+		StringBuilder text = new StringBuilder();
+		long[] total = new long[CATEGORIES.length];
+		for (int i = 0; i < names.size(); i++) {
+			long[] bytes = sizes.get(i);
+			line(text, names.get(i), bytes);
+			for (int category = 0; category < total.length; category++) {
+				total[category] += bytes[category];
+			}
+		}
+		line(text, "total", total);
+		return text.toString();
+	}
+
+	private static void line(StringBuilder text, String name, long[] bytes) {
+		text.append(String.format(Locale.US, "%s: %d KB", name, sum(bytes) / 1024));
+		for (int category = 0; category < bytes.length; category++) {
+			text.append(String.format(Locale.US, ", %s %d KB", CATEGORIES[category],
+					bytes[category] / 1024));
+		}
+		text.append('\n');
+	}
+
+	private static long sum(long[] bytes) {
+		long sum = 0;
+		for (long value : bytes) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static int category(Object object, int reachedFrom) {
+		if (object instanceof Instance || object instanceof Instances) {
+			return INSTANCES;
+		} else if (object instanceof Attribute) {
+			return ATTRIBUTES;
+		} else if (object.getClass().getName().startsWith(TREE_NODE_PREFIX)) {
+			return TREE_NODES;
+		}
+		return reachedFrom;
+	}
+
+	private void push(List<Object> objects, List<Integer> categories, Object object,
+			int category) {
+		if (object == null || object instanceof Class || object instanceof ClassLoader
+				|| object instanceof Thread || seen.put(object, Boolean.TRUE) != null) {
+			return;
+		}
+		objects.add(object);
+		categories.add(category);
+	}
+
+	/**
+	 * Queues up what object refers to
+	 *
+	 * @return object's own size
+	 */
+	private long visit(Object object, int category, List<Object> objects,
+			List<Integer> categories) {
+		Class<?> type = object.getClass();
+		if (type.isArray()) {
+			int length = Array.getLength(object);
+			Class<?> component = type.getComponentType();
+			if (!component.isPrimitive()) {
+				for (Object element : (Object[]) object) {
+					push(objects, categories, element, category);
+				}
+			}
+			return align(ARRAY_HEADER + (long) length * size(component));
+		}
+
+		Layout layout = layout(type);
+		if (layout.references != null) {
+			for (Field field : layout.references) {
+				try {
+					push(objects, categories, field.get(object), category);
+				} catch (IllegalAccessException e) {
+					// Made accessible in layout(), so can't happen
+				}
+			}
+			return layout.size;
+		}
+
+		// A class of the platform's that can't be looked inside, which only happens on a
+		// desktop VM. Count what's in it through its interface instead
+		long size = layout.size;
+		if (object instanceof Collection) {
+			Collection<?> collection = (Collection<?>) object;
+			size += align(ARRAY_HEADER + (long) collection.size() * REFERENCE);
+			for (Object element : collection) {
+				push(objects, categories, element, category);
+			}
+		} else if (object instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+				size += align(HEADER + 4 * REFERENCE);
+				push(objects, categories, entry.getKey(), category);
+				push(objects, categories, entry.getValue(), category);
+			}
+		} else if (object instanceof String) {
+			size += align(ARRAY_HEADER + 2L * ((String) object).length());
+		}
+		return size;
+	}
+
+	private Layout layout(Class<?> type) {
+		Layout layout = layouts.get(type);
+		if (layout != null) {
+			return layout;
+		}
+		layout = new Layout();
+		List<Field> references = new ArrayList<Field>();
+		long size = HEADER;
+		boolean accessible = true;
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				size += size(field.getType());
+				if (!field.getType().isPrimitive()) {
+					try {
+						field.setAccessible(true);
+						references.add(field);
+					} catch (RuntimeException e) {
+						accessible = false;
+					}
+				}
+			}
+		}
+		layout.size = align(size);
+		layout.references = accessible ? references.toArray(new Field[references.size()])
+				: null;
+		layouts.put(type, layout);
+		return layout;
+	}
+
+	private static int size(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		} else if (type == int.class || type == float.class) {
+			return 4;
+		} else if (type == short.class || type == char.class) {
+			return 2;
+		} else if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		return REFERENCE;
+	}
+
+	private static long align(long size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * How big an object of a class is and which of its fields to follow, or null if they
+	 * can't be read
+	 */
+	private static class Layout {
+		long size;
+		Field[] references;
+	}
+}
@@ -0,0 +1,286 @@
+package com.davidmascharka.lips;
+
+import java.util.Random;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Tracks the user between WiFi scans by pedestrian dead reckoning
+ *
+ * The position is a cloud of particles. Every step the user takes moves each particle one
+ * step length along the compass heading, and every position predicted from a scan (a fix)
+ * weights the particles by how close they are to it. When too few particles carry most of
+ * the weight they're resampled in proportion to it.
+ *
+ * Nobody has to calibrate anything. How the grid is turned relative to north and how long
+ * the user's steps are in grid cells aren't known, so each particle carries its own guess
+ * at both, spread out when tracking starts. Particles whose guesses don't match the walk
+ * drift away from the fixes and die out, and the survivors' guesses are the answer.
+ *
+ * With a WalkableMask, a step that would end in a wall leaves the particle where it was
+ * and takes most of its weight, so the cloud follows the hallways and rooms instead of
+ * cutting through them.
+ *
+ * Everything is kept in primitive arrays allocated up front, so stepping and correcting
+ * allocate nothing. Two sets of arrays are swapped when resampling. The methods are
+ * synchronized since steps come from the sensor thread and fixes from the classifier.
+ */
+public class ParticleFilter {
+
+	// Step lengths particles start with, in grid cells
+	private static final float MIN_STEP = 0.4f;
+	private static final float MAX_STEP = 1.6f;
+
+	// Noise added to every step, in radians and as a fraction of the step
+	private static final float HEADING_NOISE = 0.15f;
+	private static final float STEP_NOISE = 0.15f;
+
+	// Noise added to the guesses of the particles copied when resampling, so they don't
+	// all end up the same
+	private static final float OFFSET_ROUGHENING = 0.03f;
+	private static final float STEP_ROUGHENING = 0.01f;
+
+	// What's left of a particle's weight when it tries to walk into a wall
+	private static final double WALL_PENALTY = 0.05;
+
+	private final int count;
+	private final float minX;
+	private final float minY;
+	private final float maxX;
+	private final float maxY;
+	private final Random random;
+	private WalkableMask mask;
+
+	private float[] x;
+	private float[] y;
+	// Added to the compass heading: how far the grid's y axis is turned from north
+	private float[] offset;
+	private float[] stepLength;
+	private final double[] weight;
+
+	// Where particles are copied while resampling
+	private float[] nextX;
+	private float[] nextY;
+	private float[] nextOffset;
+	private float[] nextStepLength;
+
+	private boolean started;
+	private float meanX;
+	private float meanY;
+
+	/**
+	 * @param count number of particles, a few thousand is plenty
+	 * @param bounds minX, minY, maxX, maxY of the grid, which particles are kept inside
+	 */
+	public ParticleFilter(int count, float[] bounds, long seed) {
+		this.count = count;
+		minX = bounds[0];
+		minY = bounds[1];
+		maxX = bounds[2];
+		maxY = bounds[3];
+		random = new Random(seed);
+		x = new float[count];
+		y = new float[count];
+		offset = new float[count];
+		stepLength = new float[count];
+		weight = new double[count];
+		nextX = new float[count];
+		nextY = new float[count];
+		nextOffset = new float[count];
+		nextStepLength = new float[count];
+	}
+
+	/**
+	 * Keeps particles out of the cells nobody can stand in, or lets them go anywhere on
+	 * the grid if mask is null
+	 */
+	public synchronized void setMask(WalkableMask mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * @return true once the first fix has placed the particles
+	 */
+	public synchronized boolean isStarted() {
+		return started;
+	}
+
+	public synchronized float getX() {
+		return meanX;
+	}
+
+	public synchronized float getY() {
+		return meanY;
+	}
+
+	/**
+	 * Moves every particle one step
+	 *
+	 * @param heading compass heading in radians clockwise from north, as given by
+	 *        SensorManager.getOrientation
+	 */
+	public synchronized void step(float heading) {
+		if (!started) {
+			return;
+		}
+		boolean blocked = false;
+		for (int i = 0; i < count; i++) {
+			double direction = heading + offset[i] + HEADING_NOISE * random.nextGaussian();
+			double length = stepLength[i] * (1 + STEP_NOISE * random.nextGaussian());
+			// The grid's y axis points up the screen, so a heading of 0 is +y and turning
+			// clockwise goes towards +x
+			float toX = clamp((float) (x[i] + length * Math.sin(direction)), minX, maxX);
+			float toY = clamp((float) (y[i] + length * Math.cos(direction)), minY, maxY);
+			if (mask == null || mask.isWalkable(toX, toY)) {
+				x[i] = toX;
+				y[i] = toY;
+			} else {
+				weight[i] *= WALL_PENALTY;
+				blocked = true;
+			}
+		}
+		if (blocked) {
+			normalize();
+		}
+		updateMean();
+	}
+
+	/**
+	 * Weights the particles by how well they agree with a position predicted from a scan
+	 *
+	 * @param sigma how far off a fix typically is, in grid cells
+	 */
+	public synchronized void correct(float fixX, float fixY, float sigma) {
+		if (!started) {
+			scatter(fixX, fixY, sigma);
+			return;
+		}
+
+		double scale = -0.5 / (sigma * sigma);
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			float dx = x[i] - fixX;
+			float dy = y[i] - fixY;
+			weight[i] *= Math.exp(scale * (dx * dx + dy * dy));
+			total += weight[i];
+		}
+		if (total < 1e-300 || Double.isNaN(total)) {
+			// None of the particles are anywhere near the fix, so the cloud has gone
+			// wrong somewhere. Start over from the fix
+			scatter(fixX, fixY, sigma);
+			return;
+		}
+
+		normalize();
+		updateMean();
+	}
+
+	/**
+	 * Makes the weights add up to 1, and resamples if too few particles carry most of it
+	 */
+	private void normalize() {
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			total += weight[i];
+		}
+		double squares = 0;
+		for (int i = 0; i < count; i++) {
+			weight[i] /= total;
+			squares += weight[i] * weight[i];
+		}
+		if (1 / squares < count / 2) {
+			resample();
+		}
+	}
+
+	/**
+	 * Starts the particles out around a fix, each with its own guess at the grid's
+	 * heading and the step length
+	 */
+	private void scatter(float fixX, float fixY, float sigma) {
+		for (int i = 0; i < count; i++) {
+			x[i] = clamp((float) (fixX + sigma * random.nextGaussian()), minX, maxX);
+			y[i] = clamp((float) (fixY + sigma * random.nextGaussian()), minY, maxY);
+			if (mask != null && !mask.isWalkable(x[i], y[i])) {
+				int cell = mask.nearestCell(x[i], y[i]);
+				x[i] = mask.getCellX(cell);
+				y[i] = mask.getCellY(cell);
+			}
+			offset[i] = (float) (2 * Math.PI * random.nextDouble());
+			stepLength[i] = MIN_STEP + (MAX_STEP - MIN_STEP) * random.nextFloat();
+			weight[i] = 1.0 / count;
+		}
+		started = true;
+		updateMean();
+	}
+
+	/**
+	 * Systematic resampling: one random start, then evenly spaced picks through the
+	 * cumulative weights, so a particle with weight w gets about w * count copies
+	 */
+	private void resample() {
+		double spacing = 1.0 / count;
+		double pick = random.nextDouble() * spacing;
+		double cumulative = weight[0];
+		int source = 0;
+		for (int i = 0; i < count; i++) {
+			while (pick > cumulative && source < count - 1) {
+				cumulative += weight[++source];
+			}
+			nextX[i] = x[source];
+			nextY[i] = y[source];
+			nextOffset[i] = (float) (offset[source] + OFFSET_ROUGHENING * random.nextGaussian());
+			nextStepLength[i] = clamp((float) (stepLength[source]
+					+ STEP_ROUGHENING * random.nextGaussian()), MIN_STEP, MAX_STEP);
+			pick += spacing;
+		}
+
+		float[] swap = x;
+		x = nextX;
+		nextX = swap;
+		swap = y;
+		y = nextY;
+		nextY = swap;
+		swap = offset;
+		offset = nextOffset;
+		nextOffset = swap;
+		swap = stepLength;
+		stepLength = nextStepLength;
+		nextStepLength = swap;
+		for (int i = 0; i < count; i++) {
+			weight[i] = spacing;
+		}
+	}
+
+	private void updateMean() {
+		double sumX = 0;
+		double sumY = 0;
+		for (int i = 0; i < count; i++) {
+			sumX += weight[i] * x[i];
+			sumY += weight[i] * y[i];
+		}
+		meanX = (float) sumX;
+		meanY = (float) sumY;
+	}
+
+	private static float clamp(float value, float min, float max) {
+		return value < min ? min : value > max ? max : value;
+	}
+}
@@ -0,0 +1,176 @@
+package com.davidmascharka.lips;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Splits the 102x64 grid into named partitions, each of which gets its own position
+ * classifiers. A point belongs to the first partition whose rectangle contains it.
+ *
+ * FIVE is the scheme the models in assets/5partition were trained with. The names are
+ * in the same order as the nominal values of the random forest's partition attribute,
+ * so a partition's index here is also the value the forest predicts for it. FULL, THREE
+ * and SEVEN are the other choices SelectPartitionDialogFragment offers. No models were
+ * ever shipped for them, so their bounds only follow the building's wings and hallway.
+ */
+public class PartitionScheme {
+
+	/**
+	 * The whole grid, with no partition classifier
+	 */
+	public static final PartitionScheme FULL = new PartitionScheme("Full",
+			new String[] {"full"},
+			new float[][] {{0, 0, 102, 64}});
+
+	/**
+	 * The left wing, the middle hallway and the right wing
+	 */
+	public static final PartitionScheme THREE = new PartitionScheme("3Partition",
+			new String[] {"left", "middle", "right"},
+			new float[][] {
+					{0, 0, 34, 64},
+					{34, 0, 68, 64},
+					{68, 0, 102, 64}});
+
+	/**
+	 * Upper left and lower left wings, the middle hallway, and the upper right and
+	 * lower right wings
+	 */
+	public static final PartitionScheme FIVE = new PartitionScheme("5Partition",
+			new String[] {"upperleft", "lowerleft", "middle", "upperright", "lowerright"},
+			new float[][] {
+					{0, 32, 34, 64},
+					{0, 0, 34, 32},
+					{34, 0, 68, 64},
+					{68, 23, 102, 64},
+					{68, 0, 102, 23}});
+
+	/**
+	 * FIVE with the middle hallway, which runs left to right, split into thirds
+	 */
+	public static final PartitionScheme SEVEN = new PartitionScheme("7Partition",
+			new String[] {"upperleft", "lowerleft", "middleleft", "middle", "middleright",
+					"upperright", "lowerright"},
+			new float[][] {
+					{0, 32, 34, 64},
+					{0, 0, 34, 32},
+					{34, 0, 45, 64},
+					{45, 0, 57, 64},
+					{57, 0, 68, 64},
+					{68, 23, 102, 64},
+					{68, 0, 102, 23}});
+
+	/**
+	 * Every scheme, in the order SelectPartitionDialogFragment lists them
+	 */
+	public static final List<PartitionScheme> SCHEMES = Collections.unmodifiableList(
+			Arrays.asList(FULL, THREE, FIVE, SEVEN));
+
+	private final String name;
+	private final List<String> names;
+
+	// {minX, minY, maxX, maxY} for each partition, max exclusive
+	private final float[][] bounds;
+
+	public PartitionScheme(String name, String[] names, float[][] bounds) {
+		if (names.length != bounds.length) {
+			throw new IllegalArgumentException("Every partition needs bounds");
+		}
+		this.name = name;
+		this.names = Collections.unmodifiableList(Arrays.asList(names.clone()));
+		this.bounds = bounds.clone();
+	}
+
+	/**
+	 * @return the scheme called name, e.g. "5Partition", or null if there isn't one
+	 */
+	public static PartitionScheme forName(String name) {
+		for (PartitionScheme scheme : SCHEMES) {
+			if (scheme.name.equals(name)) {
+				return scheme;
+			}
+		}
+		return null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getPartitionCount() {
+		return names.size();
+	}
+
+	public String getPartitionName(int partition) {
+		return names.get(partition);
+	}
+
+	/**
+	 * @return {minX, minY, maxX, maxY} of the partition, max exclusive
+	 */
+	public float[] getBounds(int partition) {
+		return bounds[partition].clone();
+	}
+
+	public List<String> getPartitionNames() {
+		return names;
+	}
+
+	/**
+	 * @return the index of the partition called name, or -1 if there isn't one
+	 */
+	public int indexOf(String name) {
+		return names.indexOf(name);
+	}
+
+	/**
+	 * @return the partition a surveyed datapoint belongs to, which is the one its
+	 *         position is in
+	 */
+	public int partitionOf(SurveyRecord record) {
+		return partitionOf(record.x, record.y);
+	}
+
+	/**
+	 * @return the partition (x, y) is in. Points outside every partition go to the
+	 *         closest one
+	 */
+	public int partitionOf(float x, float y) {
+		int closest = 0;
+		float closestDistance = Float.MAX_VALUE;
+		for (int i = 0; i < bounds.length; i++) {
+			float[] b = bounds[i];
+			float dx = Math.max(0, Math.max(b[0] - x, x - b[2]));
+			float dy = Math.max(0, Math.max(b[1] - y, y - b[3]));
+			if (x >= b[0] && x < b[2] && y >= b[1] && y < b[3]) {
+				return i;
+			}
+			float distance = dx * dx + dy * dy;
+			if (distance < closestDistance) {
+				closest = i;
+				closestDistance = distance;
+			}
+		}
+		return closest;
+	}
+}
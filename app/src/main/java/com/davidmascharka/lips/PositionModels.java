@@ -0,0 +1,344 @@
+package com.davidmascharka.lips;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Locale;
+
+import weka.classifiers.lazy.KStar;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The K* models that predict x and y in each partition, which new survey datapoints can
+ * be added to without training anything again
+ *
+ * K* keeps every datapoint it was trained on and compares against all of them when it
+ * predicts, so adding a datapoint only appends it to the model's store. The only other
+ * state is a cache of per-attribute blend values that K* throws away on every update
+ * and rebuilds on the next prediction. A partition's models are loaded the first time
+ * they're needed, and save() writes out just the partitions that changed.
+ *
+ * Each partition's models may use only some of the access points, which are read from
+ * the attributes they were trained with. Instances for them are built with just those.
+ *
+ * xSpread() and ySpread() say how sure a prediction can be, from how far apart the
+ * datapoints with levels closest to the scan are.
+ */
+public class PositionModels {
+
+	/**
+	 * Where the models are read from, e.g. the app's assets
+	 */
+	public interface Source {
+		InputStream open(String name) throws IOException;
+	}
+
+	// Datapoints spread() looks at
+	private static final int NEIGHBOURS = 5;
+
+	// Level given to access points that weren't heard when comparing datapoints
+	private static final double UNHEARD = -100;
+
+	// KStar.m_Train, looked up the first time it's needed
+	private static Field train;
+
+	private final PartitionScheme scheme;
+	private final Source source;
+
+	private final KStar[] xModels;
+	private final KStar[] yModels;
+
+	// Empty data sets with the header each model was trained with, which is what a new
+	// datapoint has to match
+	private final Instances[] xHeaders;
+	private final Instances[] yHeaders;
+
+	// The access points each model was trained with
+	private final int[][] xAccessPoints;
+	private final int[][] yAccessPoints;
+
+	private final boolean[] changed;
+
+	// The closest datapoints found by spread(), kept so it doesn't allocate
+	private final double[] neighbourDistances = new double[NEIGHBOURS];
+	private final double[] neighbourPositions = new double[NEIGHBOURS];
+
+	public PositionModels(PartitionScheme scheme, Source source) {
+		this.scheme = scheme;
+		this.source = source;
+		int partitions = scheme.getPartitionCount();
+		xModels = new KStar[partitions];
+		yModels = new KStar[partitions];
+		xHeaders = new Instances[partitions];
+		yHeaders = new Instances[partitions];
+		xAccessPoints = new int[partitions][];
+		yAccessPoints = new int[partitions][];
+		changed = new boolean[partitions];
+	}
+
+	/**
+	 * @return the name of a partition's model, e.g. 5partition/model_x_middle.model
+	 * @param axis "x" or "y"
+	 */
+	public static String modelName(PartitionScheme scheme, String axis, int partition) {
+		return scheme.getName().toLowerCase(Locale.US) + "/model_" + axis + "_"
+				+ scheme.getPartitionName(partition) + ".model";
+	}
+
+	/**
+	 * @return the name of the random forest that predicts the partition, e.g.
+	 *         5partition/model_randomforest.model
+	 */
+	public static String forestName(PartitionScheme scheme) {
+		return scheme.getName().toLowerCase(Locale.US) + "/model_randomforest.model";
+	}
+
+	public PartitionScheme getScheme() {
+		return scheme;
+	}
+
+	public synchronized KStar getX(int partition) throws Exception {
+		load(partition);
+		return xModels[partition];
+	}
+
+	public synchronized KStar getY(int partition) throws Exception {
+		load(partition);
+		return yModels[partition];
+	}
+
+	/**
+	 * @return a reading as an instance for the partition's x model, with only the access
+	 *         points it uses
+	 */
+	public synchronized Instance xInstance(int partition, SurveyRecord reading)
+			throws Exception {
+		load(partition);
+		return FingerprintInstances.toInstance(reading, xHeaders[partition], scheme,
+				xAccessPoints[partition]);
+	}
+
+	/**
+	 * @return a reading as an instance for the partition's y model, with only the access
+	 *         points it uses
+	 */
+	public synchronized Instance yInstance(int partition, SurveyRecord reading)
+			throws Exception {
+		load(partition);
+		return FingerprintInstances.toInstance(reading, yHeaders[partition], scheme,
+				yAccessPoints[partition]);
+	}
+
+	/**
+	 * @param instance a scan from xInstance()
+	 * @return the root mean square distance in x from predicted of the partition's
+	 *         datapoints with the closest levels to the scan, in cells
+	 */
+	public synchronized double xSpread(int partition, Instance instance, double predicted)
+			throws Exception {
+		load(partition);
+		return spread(trainingData(xModels[partition]), instance,
+				xAccessPoints[partition].length, predicted);
+	}
+
+	/**
+	 * @param instance a scan from yInstance()
+	 * @return the root mean square distance in y from predicted of the partition's
+	 *         datapoints with the closest levels to the scan, in cells
+	 */
+	public synchronized double ySpread(int partition, Instance instance, double predicted)
+			throws Exception {
+		load(partition);
+		return spread(trainingData(yModels[partition]), instance,
+				yAccessPoints[partition].length, predicted);
+	}
+
+	/**
+	 * @return the access points the partition's x model uses
+	 */
+	public synchronized int[] getAccessPoints(int partition) throws Exception {
+		load(partition);
+		return xAccessPoints[partition].clone();
+	}
+
+	/**
+	 * @return the number of datapoints the partition's models predict from
+	 */
+	public synchronized int size(int partition) throws Exception {
+		load(partition);
+		return trainingData(xModels[partition]).numInstances();
+	}
+
+	/**
+	 * Adds a datapoint to the x and y models of the partition it's in
+	 *
+	 * @return the partition
+	 * @throws IllegalArgumentException if the datapoint doesn't have the access points
+	 *         the models were trained with
+	 */
+	public synchronized int append(SurveyRecord record) throws Exception {
+		int partition = scheme.partitionOf(record);
+		load(partition);
+
+		int needed = Math.max(highest(xAccessPoints[partition]),
+				highest(yAccessPoints[partition])) + 1;
+		if (record.getAccessPointCount() < needed) {
+			throw new IllegalArgumentException("Datapoint has " + record.getAccessPointCount()
+					+ " access points but the models use " + needed);
+		}
+
+		xModels[partition].updateClassifier(FingerprintInstances.toInstance(record,
+				xHeaders[partition], scheme, xAccessPoints[partition]));
+		yModels[partition].updateClassifier(FingerprintInstances.toInstance(record,
+				yHeaders[partition], scheme, yAccessPoints[partition]));
+		changed[partition] = true;
+		return partition;
+	}
+
+	/**
+	 * Writes the models of every partition that's had datapoints added since it was
+	 * loaded or last saved to directory, under the same names they're loaded by. Each
+	 * file is written next to its destination and renamed over it, so a model is never
+	 * left half written
+	 *
+	 * @return the number of partitions written
+	 */
+	public synchronized int save(File directory) throws Exception {
+		int saved = 0;
+		for (int partition = 0; partition < changed.length; partition++) {
+			if (changed[partition]) {
+				write(new File(directory, modelName(scheme, "x", partition)), xModels[partition]);
+				write(new File(directory, modelName(scheme, "y", partition)), yModels[partition]);
+				changed[partition] = false;
+				saved++;
+			}
+		}
+		return saved;
+	}
+
+	public synchronized boolean isChanged(int partition) {
+		return changed[partition];
+	}
+
+	private void load(int partition) throws Exception {
+		if (xModels[partition] != null) {
+			return;
+		}
+		KStar x = read(modelName(scheme, "x", partition));
+		KStar y = read(modelName(scheme, "y", partition));
+		xHeaders[partition] = new Instances(trainingData(x), 0);
+		yHeaders[partition] = new Instances(trainingData(y), 0);
+		xAccessPoints[partition] = FingerprintInstances.accessPoints(xHeaders[partition]);
+		yAccessPoints[partition] = FingerprintInstances.accessPoints(yHeaders[partition]);
+		xModels[partition] = x;
+		yModels[partition] = y;
+	}
+
+	/*
+	 * Finds the NEIGHBOURS datapoints closest to the scan by the Euclidean distance
+	 * between their access point levels, keeping them sorted by insertion
+	 */
+	private double spread(Instances data, Instance instance, int accessPoints,
+			double predicted) {
+		int found = 0;
+		int classIndex = data.classIndex();
+		for (int row = 0; row < data.numInstances(); row++) {
+			Instance datapoint = data.instance(row);
+			double distance = 0;
+			for (int column = SurveyRecord.SENSOR_COUNT;
+					column < SurveyRecord.SENSOR_COUNT + accessPoints; column++) {
+				double difference = level(datapoint.value(column)) - level(instance.value(column));
+				distance += difference * difference;
+			}
+			if (found == NEIGHBOURS && distance >= neighbourDistances[found - 1]) {
+				continue;
+			}
+			int i = found < NEIGHBOURS ? found++ : found - 1;
+			for (; i > 0 && neighbourDistances[i - 1] > distance; i--) {
+				neighbourDistances[i] = neighbourDistances[i - 1];
+				neighbourPositions[i] = neighbourPositions[i - 1];
+			}
+			neighbourDistances[i] = distance;
+			neighbourPositions[i] = datapoint.value(classIndex);
+		}
+		if (found == 0) {
+			return 0;
+		}
+		double sum = 0;
+		for (int i = 0; i < found; i++) {
+			double offset = neighbourPositions[i] - predicted;
+			sum += offset * offset;
+		}
+		return Math.sqrt(sum / found);
+	}
+
+	private static double level(double value) {
+		return value == 0 || Double.isNaN(value) ? UNHEARD : value;
+	}
+
+	private static int highest(int[] accessPoints) {
+		int highest = -1;
+		for (int accessPoint : accessPoints) {
+			highest = Math.max(highest, accessPoint);
+		}
+		return highest;
+	}
+
+	private KStar read(String name) throws Exception {
+		InputStream in = source.open(name);
+		try {
+			return (KStar) SerializationHelper.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, KStar model) throws Exception {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Couldn't create " + parent);
+		}
+		File temporary = new File(parent, file.getName() + ".tmp");
+		SerializationHelper.write(temporary.getPath(), model);
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+
+	/**
+	 * K* doesn't expose the data it was trained on, but a new datapoint has to be built
+	 * with exactly that header. The shipped models were trained in the WEKA GUI with
+	 * different attribute names than the app uses
+	 */
+	private static Instances trainingData(KStar model) throws Exception {
+		if (train == null) {
+			Field field = KStar.class.getDeclaredField("m_Train");
+			field.setAccessible(true);
+			train = field;
+		}
+		return (Instances) train.get(model);
+	}
+}
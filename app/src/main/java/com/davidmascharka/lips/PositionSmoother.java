@@ -0,0 +1,167 @@
+package com.davidmascharka.lips;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Smooths the positions predicted from successive scans with a constant velocity Kalman
+ * filter, trusting each prediction as much as the models were sure of it
+ *
+ * How far off a prediction is likely to be comes from two things. The forest gives the
+ * probability that the scan is in the partition it picked, and if it picked the wrong
+ * one the partition's models can be anywhere. The datapoints whose levels are closest to
+ * the scan say how much the position models had to go on: if they're spread across the
+ * building the prediction is a guess. variance() turns both into the variance of the
+ * prediction, and predictions the forest is too unsure of aren't used at all.
+ *
+ * x and y are filtered separately, each with a position and a velocity, so an update is
+ * a few dozen multiplications and allocates nothing. The methods are synchronized since
+ * the classifier thread updates it and the UI thread reads it.
+ */
+public class PositionSmoother {
+
+	// How quickly someone walking changes speed, in cells per second squared
+	private static final double ACCELERATION = 0.5;
+
+	// How fast someone might be walking when the first prediction comes in, in cells
+	// per second
+	private static final double INITIAL_SPEED = 1.5;
+
+	// The smallest standard deviation given to a prediction, in cells, since even the
+	// datapoints it was made from were only surveyed to the nearest cell
+	private static final double MIN_SIGMA = 1;
+
+	// Predictions are ignored when the forest is less sure than this of the partition
+	static final double MIN_PROBABILITY = 0.4;
+
+	// After this long without a prediction the velocity means nothing, so start over
+	private static final long MAX_GAP = 10000;
+
+	private final Axis x = new Axis();
+	private final Axis y = new Axis();
+	private boolean started;
+	private long lastTime;
+
+	/**
+	 * @param spread how far the positions of the datapoints closest to the scan are from
+	 *        the prediction, in cells
+	 * @param probability the forest's probability that the scan is in the partition
+	 *        the prediction was made in
+	 * @return the variance of a prediction, in cells squared
+	 */
+	public static double variance(double spread, double probability) {
+		return (MIN_SIGMA * MIN_SIGMA + spread * spread) / Math.max(probability, 0.01);
+	}
+
+	/**
+	 * Adds a prediction. The first one starts the filter wherever it is however unsure
+	 * the forest was, since there's nothing better to show
+	 *
+	 * @param time when the scan was taken, in milliseconds
+	 * @return true if the prediction was used, false if the forest was too unsure of it
+	 *         and the position was only moved along at the velocity
+	 */
+	public synchronized boolean update(float predictedX, float predictedY, double spreadX,
+			double spreadY, double probability, long time) {
+		if (!started || time - lastTime > MAX_GAP || time < lastTime) {
+			x.start(predictedX, variance(spreadX, probability));
+			y.start(predictedY, variance(spreadY, probability));
+			started = true;
+			lastTime = time;
+			return true;
+		}
+
+		double seconds = (time - lastTime) / 1000.0;
+		lastTime = time;
+		x.predict(seconds);
+		y.predict(seconds);
+		if (probability < MIN_PROBABILITY) {
+			return false;
+		}
+		x.update(predictedX, variance(spreadX, probability));
+		y.update(predictedY, variance(spreadY, probability));
+		return true;
+	}
+
+	/**
+	 * @return true once there's been a prediction
+	 */
+	public synchronized boolean isStarted() {
+		return started;
+	}
+
+	public synchronized float getX() {
+		return (float) x.position;
+	}
+
+	public synchronized float getY() {
+		return (float) y.position;
+	}
+
+	/**
+	 * Forgets everything, e.g. when the user has moved somewhere else entirely
+	 */
+	public synchronized void reset() {
+		started = false;
+	}
+
+	/**
+	 * The position and velocity along one axis and their covariance
+	 */
+	private static class Axis {
+		double position;
+		double velocity;
+		double positionVariance;
+		double covariance;
+		double velocityVariance;
+
+		void start(double measured, double variance) {
+			position = measured;
+			velocity = 0;
+			positionVariance = variance;
+			covariance = 0;
+			velocityVariance = INITIAL_SPEED * INITIAL_SPEED;
+		}
+
+		/**
+		 * Moves along at the velocity, with the uncertainty growing as if the speed
+		 * changed randomly by ACCELERATION every second
+		 */
+		void predict(double dt) {
+			double q = ACCELERATION * ACCELERATION;
+			position += velocity * dt;
+			positionVariance += dt * (2 * covariance + dt * velocityVariance)
+					+ q * dt * dt * dt / 3;
+			covariance += dt * velocityVariance + q * dt * dt / 2;
+			velocityVariance += q * dt;
+		}
+
+		void update(double measured, double variance) {
+			double innovation = measured - position;
+			double total = positionVariance + variance;
+			double positionGain = positionVariance / total;
+			double velocityGain = covariance / total;
+			position += positionGain * innovation;
+			velocity += velocityGain * innovation;
+			velocityVariance -= velocityGain * covariance;
+			covariance -= positionGain * covariance;
+			positionVariance -= positionGain * positionVariance;
+		}
+	}
+}
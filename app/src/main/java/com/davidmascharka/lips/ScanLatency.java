@@ -0,0 +1,119 @@
+package com.davidmascharka.lips;
+
+import java.util.Locale;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How long each stage between a WiFi scan coming in and its position being shown takes
+ * in the tracker
+ *
+ * The stages run from the scan results broadcast being received to the results being
+ * copied into the readings, the instances being built from them, the classification
+ * thread starting, the forest predicting the partition, the partition's models
+ * predicting x and y, and the UI thread running what was posted to show them. TOTAL is
+ * the whole way from the broadcast to the display. Each is a LatencyHistogram of
+ * System.nanoTime() differences, so timing a scan doesn't allocate.
+ */
+public class ScanLatency {
+
+	public static final int COPY = 0;
+	public static final int FEATURES = 1;
+	public static final int HANDOFF = 2;
+	public static final int PARTITION = 3;
+	public static final int POSITION = 4;
+	public static final int DISPLAY = 5;
+	public static final int TOTAL = 6;
+	public static final int STAGES = 7;
+
+	private static final String[] NAMES = {"copy", "features", "handoff", "partition",
+			"position", "display", "total"};
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[STAGES];
+
+	public ScanLatency() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param start when the stage started, from System.nanoTime()
+	 * @param end when it finished, from System.nanoTime()
+	 */
+	public void record(int stage, long start, long end) {
+		stages[stage].record(end - start);
+	}
+
+	public static String name(int stage) {
+		return NAMES[stage];
+	}
+
+	public LatencyHistogram get(int stage) {
+		return stages[stage];
+	}
+
+	/**
+	 * @return the number of scans that made it all the way to the display
+	 */
+	public long getScans() {
+		return stages[TOTAL].getCount();
+	}
+
+	public void reset() {
+		for (LatencyHistogram stage : stages) {
+			stage.reset();
+		}
+	}
+
+	/**
+	 * @return a line for each stage with its median, 90th and 99th percentile and the
+	 *         longest it's taken, in milliseconds, for showing over the map
+	 */
+	public String describe() {
+		StringBuilder text = new StringBuilder(String.format(Locale.US,
+				"%-9s %6s %6s %6s %6s", "ms", "p50", "p90", "p99", "max"));
+		for (int i = 0; i < stages.length; i++) {
+			LatencyHistogram stage = stages[i];
+			text.append(String.format(Locale.US, "\n%-9s %6.1f %6.1f %6.1f %6.1f", NAMES[i],
+					stage.getValueAtPercentile(50) / 1e6, stage.getValueAtPercentile(90) / 1e6,
+					stage.getValueAtPercentile(99) / 1e6, stage.getMax() / 1e6));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the whole session on one line: the number of scans shown and each stage's
+	 *         count, median, 90th and 99th percentile and maximum in microseconds, e.g.
+	 *         "scans 120 copy 140:210/350/900/1200 features ..."
+	 */
+	public String summarize() {
+		StringBuilder line = new StringBuilder("scans ").append(getScans());
+		for (int i = 0; i < stages.length; i++) {
+			LatencyHistogram stage = stages[i];
+			line.append(' ').append(NAMES[i]).append(' ').append(stage.getCount())
+					.append(':').append(stage.getValueAtPercentile(50) / 1000)
+					.append('/').append(stage.getValueAtPercentile(90) / 1000)
+					.append('/').append(stage.getValueAtPercentile(99) / 1000)
+					.append('/').append(stage.getMax() / 1000);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,77 @@
+package com.davidmascharka.lips;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counts steps from accelerometer readings
+ *
+ * Each step shows up as a bump in the magnitude of the acceleration as the foot lands.
+ * The magnitude is smoothed to take out the jitter, and a step is counted when it rises
+ * above gravity by PEAK and then falls back below gravity by VALLEY, as long as the last
+ * step was at least MIN_INTERVAL ago. Works at any sampling rate and doesn't allocate.
+ */
+public class StepDetector {
+
+	private static final float GRAVITY = 9.81f;
+
+	// m/s^2 above and below gravity the smoothed magnitude has to swing through
+	private static final float PEAK = 1.2f;
+	private static final float VALLEY = 0.6f;
+
+	// Nobody walks faster than about four steps a second
+	private static final long MIN_INTERVAL = 250000000L;
+
+	// Weight of each new reading in the smoothed magnitude
+	private static final float SMOOTHING = 0.25f;
+
+	private float magnitude = GRAVITY;
+	private boolean rising;
+	private long lastStep = Long.MIN_VALUE / 2;
+	private int steps;
+
+	/**
+	 * @param time when the reading was taken in nanoseconds, e.g. SensorEvent.timestamp
+	 * @return true if the reading finishes a step
+	 */
+	public boolean onAccelerometer(float x, float y, float z, long time) {
+		float current = (float) Math.sqrt(x * x + y * y + z * z);
+		magnitude += SMOOTHING * (current - magnitude);
+
+		if (!rising) {
+			if (magnitude > GRAVITY + PEAK) {
+				rising = true;
+			}
+			return false;
+		}
+		if (magnitude < GRAVITY - VALLEY) {
+			rising = false;
+			if (time - lastStep >= MIN_INTERVAL) {
+				lastStep = time;
+				steps++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+}
@@ -0,0 +1,219 @@
+package com.davidmascharka.lips;
+
+import java.nio.charset.Charset;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Constants and helpers shared by SurveyLogWriter and SurveyLogReader
+ *
+ * A compressed log starts with the magic bytes and a version, then holds a sequence
+ * of records that each begin with a tag byte. Every writer session starts with a
+ * SYNC record so a log can be appended to without knowing what was written before.
+ *
+ * A row is a line of comma separated fields with an optional " %suffix" comment, which
+ * is what MainActivity and TrackerActivity write. The type of each column (decimal,
+ * missing or plain string) is described by a SHAPE record that only gets written when
+ * it changes. Decimal columns are stored as the difference from the same column in the
+ * previous row, zig-zag varint packed, with runs of unchanged columns collapsed into a
+ * single count. Anything that doesn't look like a row is stored as a literal line.
+ */
+final class SurveyLogFormat {
+
+	static final byte[] MAGIC = {'L', 'I', 'P', 'Z'};
+	static final int VERSION = 1;
+
+	/**
+	 * File extension for compressed logs, added in place of .txt
+	 */
+	static final String EXTENSION = ".lipz";
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Record tags
+	static final int TAG_SYNC = 0;
+	static final int TAG_LINE = 1;
+	static final int TAG_ROW = 2;
+	static final int TAG_SHAPE = 3;
+	static final int TAG_BLANK = 4;
+	static final int TAG_PARTIAL = 5;
+
+	// Column types
+	static final byte TYPE_DECIMAL = 0;
+	static final byte TYPE_MISSING = 1;
+	static final byte TYPE_STRING = 2;
+
+	// Types for whatever follows " %" at the end of a row
+	static final byte SUFFIX_NONE = 0;
+	static final byte SUFFIX_TIMESTAMP = 1;
+	static final byte SUFFIX_STRING = 2;
+
+	/**
+	 * Lines with fewer fields than this are stored as literals
+	 */
+	static final int MIN_ROW_FIELDS = 8;
+
+	/**
+	 * Most digits a decimal can have and still fit its unscaled value in a long
+	 */
+	static final int MAX_DIGITS = 18;
+
+	/**
+	 * Each decimal column is written as (zigzag(delta) << 3 | scale change). A scale
+	 * change of this value escapes to two separate varints instead
+	 */
+	static final int SCALE_ESCAPE = 7;
+
+	private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i <= MAX_DIGITS; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private SurveyLogFormat() {}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Rescales the previous value of a column to the scale of the current value so that
+	 * 3.1087 followed by 3.10871 still gives a small delta. Both sides of the codec do the
+	 * same integer arithmetic so the result only needs to be deterministic, not exact
+	 */
+	static long align(long unscaled, int fromScale, int toScale) {
+		if (toScale == fromScale) {
+			return unscaled;
+		} else if (toScale > fromScale) {
+			int shift = toScale - fromScale;
+			if (shift > MAX_DIGITS) {
+				return 0;
+			}
+			long power = POWERS_OF_TEN[shift];
+			if (unscaled > Long.MAX_VALUE / power || unscaled < Long.MIN_VALUE / power) {
+				return 0;
+			}
+			return unscaled * power;
+		} else {
+			int shift = fromScale - toScale;
+			return shift > MAX_DIGITS ? 0 : unscaled / POWERS_OF_TEN[shift];
+		}
+	}
+
+	/**
+	 * Appends a decimal in exactly the form it was parsed from
+	 */
+	static void appendDecimal(StringBuilder sb, long unscaled, int scale, char[] scratch) {
+		// Fill scratch from the end, padding with zeros so there's a digit before the point
+		int position = scratch.length;
+		int digits = 0;
+		long remaining = unscaled;
+		do {
+			if (digits == scale && scale > 0) {
+				scratch[--position] = '.';
+			}
+			scratch[--position] = (char) ('0' + Math.abs(remaining % 10));
+			remaining /= 10;
+			digits++;
+		} while (remaining != 0 || digits <= scale);
+		if (unscaled < 0) {
+			scratch[--position] = '-';
+		}
+		sb.append(scratch, position, scratch.length - position);
+	}
+
+	/**
+	 * Milliseconds since the epoch for a date in the proleptic Gregorian calendar. Times
+	 * are treated as UTC so the encoding doesn't depend on the phone's time zone
+	 */
+	static long toMillis(int year, int month, int day, int hour, int minute, int second,
+			int millis) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = (long) era * 146097 + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+	}
+
+	/**
+	 * Appends a time in the format of java.sql.Timestamp.toString(), which is how the
+	 * activities stamp each row: yyyy-mm-dd hh:mm:ss.f with trailing zeros removed from
+	 * the fraction
+	 */
+	static void appendTimestamp(StringBuilder sb, long time) {
+		long days = time / 86400000L;
+		long millisOfDay = time % 86400000L;
+		if (millisOfDay < 0) {
+			millisOfDay += 86400000L;
+			days--;
+		}
+
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		appendPadded(sb, year, 4);
+		sb.append('-');
+		appendPadded(sb, month, 2);
+		sb.append('-');
+		appendPadded(sb, day, 2);
+		sb.append(' ');
+		appendPadded(sb, millisOfDay / 3600000, 2);
+		sb.append(':');
+		appendPadded(sb, millisOfDay / 60000 % 60, 2);
+		sb.append(':');
+		appendPadded(sb, millisOfDay / 1000 % 60, 2);
+		sb.append('.');
+
+		int millis = (int) (millisOfDay % 1000);
+		if (millis == 0) {
+			sb.append('0');
+		} else {
+			sb.append((char) ('0' + millis / 100));
+			if (millis % 100 != 0) {
+				sb.append((char) ('0' + millis / 10 % 10));
+				if (millis % 10 != 0) {
+					sb.append((char) ('0' + millis % 10));
+				}
+			}
+		}
+	}
+
+	private static void appendPadded(StringBuilder sb, long value, int width) {
+		for (long limit = POWERS_OF_TEN[width - 1]; limit > 1 && value < limit; limit /= 10) {
+			sb.append('0');
+		}
+		sb.append(value);
+	}
+}
@@ -0,0 +1,385 @@
+package com.davidmascharka.lips;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import static com.davidmascharka.lips.SurveyLogFormat.*;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Streams a log written by SurveyLogWriter back out as the exact text that went in.
+ * Records are decoded one at a time as the text is read, so wrapping this in a
+ * BufferedReader gives back the rows of an arbitrarily long session without holding
+ * more than one of them in memory.
+ */
+public class SurveyLogReader extends Reader {
+
+	private final InputStream in;
+
+	/**
+	 * Encoded bytes read ahead from in. Going to the stream for every byte is several
+	 * times slower than decoding
+	 */
+	private final byte[] buffer = new byte[8192];
+	private int position;
+	private int limit;
+
+	// Bytes read from in before the start of buffer, and where the last whole record
+	// decoded ended
+	private long bufferStart;
+	private long recordEnd;
+
+	/**
+	 * Text of the last decoded record that hasn't been read yet
+	 */
+	private final StringBuilder pending = new StringBuilder(2048);
+	private int pendingPosition;
+
+	// Shape and values of the last row, mirroring SurveyLogWriter
+	private int columns;
+	private byte[] columnTypes = new byte[0];
+	private byte suffixType;
+	private long[] previousValues = new long[0];
+	private int[] previousScales = new int[0];
+	private long previousTime;
+	private String[] strings = new String[0];
+	private final char[] digits = new char[24];
+
+	private boolean closed;
+
+	public static SurveyLogReader open(File file) throws IOException {
+		return new SurveyLogReader(new FileInputStream(file));
+	}
+
+	/**
+	 * Whether file starts like a compressed log rather than plain text
+	 */
+	public static boolean isCompressed(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			for (byte b : MAGIC) {
+				if (in.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return how many bytes at the start of file are the header and whole records.
+	 *         Anything after that is a record torn by the app being killed while it was
+	 *         written
+	 * @throws IOException if file is long enough to have a header but isn't a
+	 *         compressed log
+	 */
+	public static long validLength(File file) throws IOException {
+		if (file.length() < MAGIC.length + 1) {
+			return 0;
+		}
+		SurveyLogReader reader = open(file);
+		try {
+			reader.recordEnd = MAGIC.length + 1;
+			try {
+				while (reader.decodeRecord()) {
+					// Only the position matters
+				}
+			} catch (IOException e) {
+				// Torn: keep what was decoded before it
+			}
+			return reader.recordEnd;
+		} finally {
+			reader.close();
+		}
+	}
+
+	public SurveyLogReader(InputStream in) throws IOException {
+		this.in = in;
+		for (byte b : MAGIC) {
+			if (nextByte() != b) {
+				throw new IOException("Not a compressed survey log");
+			}
+		}
+		int version = nextByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported survey log version " + version);
+		}
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Survey log reader is closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		int read = 0;
+		while (read < len) {
+			if (pendingPosition == pending.length() && !decodeRecord()) {
+				return read == 0 ? -1 : read;
+			}
+			int count = Math.min(len - read, pending.length() - pendingPosition);
+			pending.getChars(pendingPosition, pendingPosition + count, cbuf, off + read);
+			pendingPosition += count;
+			read += count;
+
+			// Hand back whole lines as soon as they're available
+			if (pendingPosition == pending.length()) {
+				break;
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		in.close();
+	}
+
+	/**
+	 * Decodes the next record into pending
+	 *
+	 * @return false at the end of the log
+	 */
+	private boolean decodeRecord() throws IOException {
+		pending.setLength(0);
+		pendingPosition = 0;
+
+		while (pending.length() == 0) {
+			int tag = nextByte();
+			switch (tag) {
+				case -1:
+					return false;
+				case TAG_SYNC:
+					columns = 0;
+					columnTypes = new byte[0];
+					previousTime = 0;
+					break;
+				case TAG_LINE:
+					readText(pending);
+					pending.append('\n');
+					break;
+				case TAG_PARTIAL:
+					// A partial line with no text would look like the end of the log
+					readText(pending);
+					if (pending.length() == 0) {
+						continue;
+					}
+					break;
+				case TAG_BLANK:
+					pending.append('\n');
+					break;
+				case TAG_SHAPE:
+					readShape();
+					break;
+				case TAG_ROW:
+					readRow();
+					break;
+				default:
+					throw new IOException("Unknown record " + tag + " in survey log");
+			}
+			recordEnd = bufferStart + position;
+		}
+		return true;
+	}
+
+	private void readShape() throws IOException {
+		int count = (int) readVarint();
+		if (count != columns) {
+			columnTypes = new byte[count];
+			previousValues = new long[count];
+			previousScales = new int[count];
+			strings = new String[count];
+			columns = count;
+		}
+		suffixType = (byte) readByte();
+
+		int column = 0;
+		while (column < count) {
+			int run = (int) readVarint();
+			byte type = (byte) readByte();
+			if (run <= 0 || column + run > count) {
+				throw new IOException("Malformed shape in survey log");
+			}
+			for (int i = 0; i < run; i++) {
+				columnTypes[column++] = type;
+			}
+		}
+	}
+
+	private void readRow() throws IOException {
+		if (columns == 0) {
+			throw new IOException("Row before any shape in survey log");
+		}
+
+		// Decimal columns come as runs of unchanged columns, each followed by a change
+		int column = nextDecimal(0);
+		while (column < columns) {
+			long unchanged = readVarint();
+			while (unchanged > 0 && column < columns) {
+				column = nextDecimal(column + 1);
+				unchanged--;
+			}
+			if (column == columns) {
+				break;
+			}
+
+			long packed = readVarint();
+			long scaleChange;
+			long delta;
+			if ((packed & 7) == SCALE_ESCAPE) {
+				scaleChange = readVarint();
+				delta = readVarint();
+			} else {
+				scaleChange = packed & 7;
+				delta = packed >>> 3;
+			}
+			int scale = previousScales[column] + (int) unZigZag(scaleChange);
+			if (scale < 0 || scale > MAX_DIGITS) {
+				throw new IOException("Malformed decimal in survey log");
+			}
+			previousValues[column] = align(previousValues[column], previousScales[column], scale)
+					+ unZigZag(delta);
+			previousScales[column] = scale;
+			column = nextDecimal(column + 1);
+		}
+
+		for (int i = 0; i < columns; i++) {
+			if (columnTypes[i] == TYPE_STRING) {
+				strings[i] = readString();
+			}
+		}
+
+		for (int i = 0; i < columns; i++) {
+			if (i > 0) {
+				pending.append(',');
+			}
+			switch (columnTypes[i]) {
+				case TYPE_DECIMAL:
+					appendDecimal(pending, previousValues[i], previousScales[i], digits);
+					break;
+				case TYPE_MISSING:
+					pending.append('?');
+					break;
+				default:
+					pending.append(strings[i]);
+					break;
+			}
+		}
+
+		if (suffixType == SUFFIX_TIMESTAMP) {
+			previousTime += unZigZag(readVarint());
+			pending.append(" %");
+			appendTimestamp(pending, previousTime);
+		} else if (suffixType == SUFFIX_STRING) {
+			pending.append(" %");
+			readText(pending);
+		}
+		pending.append('\n');
+	}
+
+	/**
+	 * @return the first decimal column at or after from, or columns if there are none
+	 */
+	private int nextDecimal(int from) {
+		int column = from;
+		while (column < columns && columnTypes[column] != TYPE_DECIMAL) {
+			column++;
+		}
+		return column;
+	}
+
+	private String readString() throws IOException {
+		int length = (int) readVarint();
+		if (length <= limit - position) {
+			String text = new String(buffer, position, length, UTF8);
+			position += length;
+			return text;
+		}
+
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			if (position == limit && !fill()) {
+				throw new EOFException("Survey log ended in the middle of a record");
+			}
+			int count = Math.min(length - read, limit - position);
+			System.arraycopy(buffer, position, bytes, read, count);
+			position += count;
+			read += count;
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private void readText(StringBuilder sb) throws IOException {
+		sb.append(readString());
+	}
+
+	/**
+	 * @return the next byte of the log, or -1 at the end
+	 */
+	private int nextByte() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	private int readByte() throws IOException {
+		int value = nextByte();
+		if (value < 0) {
+			throw new EOFException("Survey log ended in the middle of a record");
+		}
+		return value;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in survey log");
+	}
+
+	private boolean fill() throws IOException {
+		int count = in.read(buffer, 0, buffer.length);
+		if (count <= 0) {
+			return false;
+		}
+		bufferStart += limit;
+		position = 0;
+		limit = count;
+		return true;
+	}
+}
@@ -0,0 +1,525 @@
+package com.davidmascharka.lips;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import static com.davidmascharka.lips.SurveyLogFormat.*;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Writes the dataset and live test logs in the compressed format described in
+ * SurveyLogFormat. Text is encoded a line at a time as it comes in, so this can be
+ * wrapped in the same PrintWriter the activities use for the plain text files.
+ *
+ * Consecutive rows only differ by a few dB here and there, so each row is stored as
+ * the change from the row before it. Use SurveyLogReader to get the text back.
+ */
+public class SurveyLogWriter extends Writer {
+
+	private static final int FLUSH_THRESHOLD = 8192;
+
+	private final OutputStream out;
+
+	/**
+	 * Characters of the line currently being written
+	 */
+	private final StringBuilder line = new StringBuilder(2048);
+
+	/**
+	 * Encoded records waiting to be written to the stream
+	 */
+	private byte[] buffer = new byte[FLUSH_THRESHOLD * 2];
+	private int position;
+
+	// Shape of the last row written. Rows with the same shape don't repeat it
+	private boolean haveShape;
+	private int columns;
+	private byte[] columnTypes = new byte[0];
+	private byte suffixType;
+
+	// Values of the decimal columns in the last row, to take the deltas against
+	private long[] previousValues = new long[0];
+	private int[] previousScales = new int[0];
+	private long previousTime;
+
+	// Scratch space for splitting up and classifying the current row
+	private char[] chars = new char[2048];
+	private int[] fieldStarts = new int[256];
+	private int[] fieldEnds = new int[256];
+	private byte[] rowTypes = new byte[256];
+	private long[] rowValues = new long[256];
+	private int[] rowScales = new int[256];
+	private long parsedValue;
+	private int parsedScale;
+	private long parsedTime;
+	private final StringBuilder timestamp = new StringBuilder(32);
+
+	private boolean closed;
+
+	/**
+	 * Opens the compressed log at file for appending, creating it if needed
+	 */
+	public static SurveyLogWriter open(File file) throws IOException {
+		boolean header = !file.exists() || file.length() == 0;
+		return new SurveyLogWriter(new BufferedOutputStream(new FileOutputStream(file, true)),
+				header);
+	}
+
+	/**
+	 * Where the compressed version of a plain text log lives, e.g. dataset_Howard.lipz
+	 * for dataset_Howard.txt
+	 */
+	public static File compressedFile(File dir, String baseName) {
+		return new File(dir, baseName + EXTENSION);
+	}
+
+	/**
+	 * @param out where to write the encoded records
+	 * @param writeHeader whether out is at the start of a new log. Pass false when
+	 *                    appending to a log that already has its header
+	 */
+	public SurveyLogWriter(OutputStream out, boolean writeHeader) throws IOException {
+		this.out = out;
+		if (writeHeader) {
+			out.write(MAGIC);
+			out.write(VERSION);
+		}
+		// Nothing from an earlier session can be used as the base for the first delta
+		writeTag(TAG_SYNC);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			if (cbuf[i] == '\n') {
+				line.append(cbuf, off, i - off);
+				encodeLine();
+				off = i + 1;
+			}
+		}
+		line.append(cbuf, off, end - off);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		ensureOpen();
+		int end = off + len;
+		int newline;
+		while ((newline = str.indexOf('\n', off)) >= 0 && newline < end) {
+			line.append(str, off, newline);
+			encodeLine();
+			off = newline + 1;
+		}
+		line.append(str, off, end);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		if (c == '\n') {
+			encodeLine();
+		} else {
+			line.append((char) c);
+		}
+	}
+
+	/**
+	 * Writes out every complete line. A partial line stays buffered until its newline
+	 * arrives, since it can't be encoded as a row until then
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (line.length() > 0) {
+				writeTag(TAG_PARTIAL);
+				writeText(line, 0, line.length());
+				line.setLength(0);
+			}
+			drain();
+		} finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Survey log writer is closed");
+		}
+	}
+
+	private void encodeLine() throws IOException {
+		if (line.length() == 0) {
+			writeTag(TAG_BLANK);
+		} else if (line.charAt(0) == '%' || !encodeRow()) {
+			writeTag(TAG_LINE);
+			writeText(line, 0, line.length());
+		}
+		line.setLength(0);
+
+		if (position >= FLUSH_THRESHOLD) {
+			drain();
+		}
+	}
+
+	/**
+	 * Encodes line as a row if it splits into enough fields
+	 *
+	 * @return false if the line should be written as a literal instead
+	 */
+	private boolean encodeRow() throws IOException {
+		int length = line.length();
+		if (length > chars.length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		line.getChars(0, length, chars, 0);
+		int suffixStart = line.indexOf(" %");
+		int fieldsEnd = suffixStart < 0 ? length : suffixStart;
+
+		// Split on commas, keeping empty fields
+		int count = 0;
+		int start = 0;
+		for (int i = 0; i <= fieldsEnd; i++) {
+			if (i == fieldsEnd || chars[i] == ',') {
+				if (count == fieldStarts.length) {
+					growRowScratch();
+				}
+				fieldStarts[count] = start;
+				fieldEnds[count] = i;
+				count++;
+				start = i + 1;
+			}
+		}
+		if (count < MIN_ROW_FIELDS) {
+			return false;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int fieldStart = fieldStarts[i];
+			int fieldEnd = fieldEnds[i];
+			if (fieldEnd - fieldStart == 1 && chars[fieldStart] == '?') {
+				rowTypes[i] = TYPE_MISSING;
+			} else if (parseDecimal(fieldStart, fieldEnd)) {
+				rowTypes[i] = TYPE_DECIMAL;
+				rowValues[i] = parsedValue;
+				rowScales[i] = parsedScale;
+			} else {
+				rowTypes[i] = TYPE_STRING;
+			}
+		}
+
+		byte rowSuffix;
+		if (suffixStart < 0) {
+			rowSuffix = SUFFIX_NONE;
+		} else if (parseTimestamp(suffixStart + 2, length)) {
+			rowSuffix = SUFFIX_TIMESTAMP;
+		} else {
+			rowSuffix = SUFFIX_STRING;
+		}
+
+		if (!sameShape(count, rowSuffix)) {
+			writeShape(count, rowSuffix);
+		}
+
+		writeTag(TAG_ROW);
+
+		// Decimal columns: runs of unchanged columns, each followed by a changed value
+		long unchanged = 0;
+		for (int i = 0; i < count; i++) {
+			if (rowTypes[i] != TYPE_DECIMAL) {
+				continue;
+			}
+
+			long value = rowValues[i];
+			int scale = rowScales[i];
+			long delta = zigZag(value - align(previousValues[i], previousScales[i], scale));
+			long scaleChange = zigZag(scale - previousScales[i]);
+			previousValues[i] = value;
+			previousScales[i] = scale;
+
+			if (delta == 0 && scaleChange == 0) {
+				unchanged++;
+				continue;
+			}
+
+			writeVarint(unchanged);
+			unchanged = 0;
+			if (scaleChange < SCALE_ESCAPE && (delta >>> 60) == 0) {
+				writeVarint(delta << 3 | scaleChange);
+			} else {
+				writeVarint(SCALE_ESCAPE);
+				writeVarint(scaleChange);
+				writeVarint(delta);
+			}
+		}
+		if (unchanged > 0) {
+			writeVarint(unchanged);
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (rowTypes[i] == TYPE_STRING) {
+				writeText(line, fieldStarts[i], fieldEnds[i]);
+			}
+		}
+
+		if (rowSuffix == SUFFIX_TIMESTAMP) {
+			writeVarint(zigZag(parsedTime - previousTime));
+			previousTime = parsedTime;
+		} else if (rowSuffix == SUFFIX_STRING) {
+			writeText(line, suffixStart + 2, length);
+		}
+
+		return true;
+	}
+
+	private boolean sameShape(int count, byte rowSuffix) {
+		if (!haveShape || count != columns || rowSuffix != suffixType) {
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			if (rowTypes[i] != columnTypes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the column types as runs of the same type, which is usually just one run
+	 */
+	private void writeShape(int count, byte rowSuffix) throws IOException {
+		if (count != columns) {
+			columnTypes = new byte[count];
+			previousValues = new long[count];
+			previousScales = new int[count];
+		}
+		System.arraycopy(rowTypes, 0, columnTypes, 0, count);
+		columns = count;
+		suffixType = rowSuffix;
+		haveShape = true;
+
+		writeTag(TAG_SHAPE);
+		writeVarint(count);
+		writeByte(rowSuffix);
+		int runStart = 0;
+		for (int i = 1; i <= count; i++) {
+			if (i == count || columnTypes[i] != columnTypes[runStart]) {
+				writeVarint(i - runStart);
+				writeByte(columnTypes[runStart]);
+				runStart = i;
+			}
+		}
+	}
+
+	/**
+	 * Parses a plain decimal like -0.23536 or 1341.0 into parsedValue and parsedScale.
+	 * Only accepts text that appendDecimal would produce again character for character
+	 */
+	private boolean parseDecimal(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && chars[i] == '-') {
+			negative = true;
+			i++;
+		}
+
+		int integerStart = i;
+		while (i < end && isDigit(chars[i])) {
+			i++;
+		}
+		int integerDigits = i - integerStart;
+		if (integerDigits == 0 || (integerDigits > 1 && chars[integerStart] == '0')) {
+			return false;
+		}
+
+		int scale = 0;
+		if (i < end) {
+			if (chars[i] != '.') {
+				return false;
+			}
+			i++;
+			int fractionStart = i;
+			while (i < end && isDigit(chars[i])) {
+				i++;
+			}
+			scale = i - fractionStart;
+			if (scale == 0 || i != end) {
+				return false;
+			}
+		}
+
+		if (integerDigits + scale > MAX_DIGITS) {
+			return false;
+		}
+
+		long value = 0;
+		for (int j = integerStart; j < end; j++) {
+			char c = chars[j];
+			if (c != '.') {
+				value = value * 10 + (c - '0');
+			}
+		}
+		if (negative && value == 0) {
+			// -0.0 can't be told apart from 0.0 once parsed
+			return false;
+		}
+
+		parsedValue = negative ? -value : value;
+		parsedScale = scale;
+		return true;
+	}
+
+	/**
+	 * Parses a java.sql.Timestamp string into parsedTime. Only accepts text that
+	 * appendTimestamp would produce again character for character
+	 */
+	private boolean parseTimestamp(int start, int end) {
+		int length = end - start;
+		if (length < 21 || length > 23) {
+			return false;
+		}
+
+		int year = digitsAt(start, 4);
+		int month = digitsAt(start + 5, 2);
+		int day = digitsAt(start + 8, 2);
+		int hour = digitsAt(start + 11, 2);
+		int minute = digitsAt(start + 14, 2);
+		int second = digitsAt(start + 17, 2);
+		int millis = digitsAt(start + 20, length - 20);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0
+				|| hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+				|| millis < 0) {
+			return false;
+		}
+		for (int i = length - 20; i < 3; i++) {
+			millis *= 10;
+		}
+
+		parsedTime = toMillis(year, month, day, hour, minute, second, millis);
+
+		timestamp.setLength(0);
+		appendTimestamp(timestamp, parsedTime);
+		if (timestamp.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (timestamp.charAt(i) != chars[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number made up of count digits at start, or -1 if they aren't all digits
+	 */
+	private int digitsAt(int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = chars[i];
+			if (!isDigit(c)) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private void growRowScratch() {
+		int size = fieldStarts.length * 2;
+		fieldStarts = copyOf(fieldStarts, size);
+		fieldEnds = copyOf(fieldEnds, size);
+		rowScales = copyOf(rowScales, size);
+		long[] values = new long[size];
+		System.arraycopy(rowValues, 0, values, 0, rowValues.length);
+		rowValues = values;
+		byte[] types = new byte[size];
+		System.arraycopy(rowTypes, 0, types, 0, rowTypes.length);
+		rowTypes = types;
+	}
+
+	private static int[] copyOf(int[] array, int size) {
+		int[] copy = new int[size];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	private void writeTag(int tag) throws IOException {
+		writeByte(tag);
+	}
+
+	private void writeText(CharSequence text, int start, int end) throws IOException {
+		byte[] bytes = text.subSequence(start, end).toString().getBytes(UTF8);
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) value;
+	}
+
+	private void writeVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (position + extra > buffer.length) {
+			byte[] bigger = new byte[Math.max(buffer.length * 2, position + extra)];
+			System.arraycopy(buffer, 0, bigger, 0, position);
+			buffer = bigger;
+		}
+	}
+
+	private void drain() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.davidmascharka.lips;
+
+import java.sql.Timestamp;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One datapoint from dataset_BUILDING.txt, as written by MainActivity:
+ *
+ * 13 sensor readings, the level of each access point (0 if it wasn't heard), latitude,
+ * longitude and location accuracy (? if there was no location), the x and y position
+ * and finally " %" followed by the time the datapoint was saved
+ */
+public class SurveyRecord {
+
+	public static final int SENSOR_COUNT = 13;
+
+	// Latitude, longitude, location accuracy, x and y come after the WiFi levels
+	private static final int TRAILING_FIELDS = 5;
+
+	public final float[] sensors;
+	public final int[] levels;
+
+	// NaN when the phone didn't have a location
+	public final double latitude;
+	public final double longitude;
+	public final float accuracy;
+
+	public final float x;
+	public final float y;
+
+	// Milliseconds since the epoch, or -1 if the row has no timestamp
+	public final long time;
+
+	private SurveyRecord(float[] sensors, int[] levels, double latitude, double longitude,
+			float accuracy, float x, float y, long time) {
+		this.sensors = sensors;
+		this.levels = levels;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.accuracy = accuracy;
+		this.x = x;
+		this.y = y;
+		this.time = time;
+	}
+
+	/**
+	 * @return a scan taken while tracking, which has no position
+	 */
+	public static SurveyRecord reading(float[] sensors, int[] levels, double latitude,
+			double longitude, float accuracy, long time) {
+		return new SurveyRecord(sensors, levels, latitude, longitude, accuracy, Float.NaN,
+				Float.NaN, time);
+	}
+
+	/**
+	 * @return a datapoint that wasn't read from a survey, e.g. one standing in for several
+	 */
+	public static SurveyRecord datapoint(float[] sensors, int[] levels, double latitude,
+			double longitude, float accuracy, float x, float y, long time) {
+		return new SurveyRecord(sensors, levels, latitude, longitude, accuracy, x, y, time);
+	}
+
+	public int getAccessPointCount() {
+		return levels.length;
+	}
+
+	/**
+	 * @return the datapoint on line, or null if the line is blank, a % comment or
+	 *         doesn't look like a datapoint
+	 */
+	public static SurveyRecord parse(String line) {
+		return parse(line, TRAILING_FIELDS);
+	}
+
+	/**
+	 * @return the scan on a line of the livetest_BUILDING_values.txt file TrackerActivity
+	 *         writes, which is a datapoint without the x and y, or null if the line
+	 *         doesn't look like one
+	 */
+	public static SurveyRecord parseReading(String line) {
+		return parse(line, TRAILING_FIELDS - 2);
+	}
+
+	private static SurveyRecord parse(String line, int trailingFields) {
+		if (line.length() == 0 || line.charAt(0) == '%') {
+			return null;
+		}
+
+		int end = line.indexOf(" %");
+		long time = -1;
+		if (end < 0) {
+			end = line.length();
+		} else {
+			try {
+				time = Timestamp.valueOf(line.substring(end + 2).trim()).getTime();
+			} catch (IllegalArgumentException e) {
+				// Keep the datapoint, it just doesn't have a usable time
+			}
+		}
+
+		// Split on commas without a regex, this gets called for every row of the file
+		int count = 1;
+		for (int i = 0; i < end; i++) {
+			if (line.charAt(i) == ',') {
+				count++;
+			}
+		}
+		int accessPoints = count - SENSOR_COUNT - trailingFields;
+		if (accessPoints < 0) {
+			return null;
+		}
+
+		String[] fields = new String[count];
+		int start = 0;
+		int field = 0;
+		for (int i = 0; i <= end; i++) {
+			if (i == end || line.charAt(i) == ',') {
+				fields[field++] = line.substring(start, i);
+				start = i + 1;
+			}
+		}
+
+		try {
+			float[] sensors = new float[SENSOR_COUNT];
+			for (int i = 0; i < SENSOR_COUNT; i++) {
+				sensors[i] = Float.parseFloat(fields[i]);
+			}
+
+			int[] levels = new int[accessPoints];
+			for (int i = 0; i < accessPoints; i++) {
+				levels[i] = Integer.parseInt(fields[SENSOR_COUNT + i]);
+			}
+
+			int next = SENSOR_COUNT + accessPoints;
+			double latitude = parseOptional(fields[next]);
+			double longitude = parseOptional(fields[next + 1]);
+			float accuracy = (float) parseOptional(fields[next + 2]);
+			float x = Float.NaN;
+			float y = Float.NaN;
+			if (trailingFields == TRAILING_FIELDS) {
+				x = Float.parseFloat(fields[next + 3]);
+				y = Float.parseFloat(fields[next + 4]);
+			}
+
+			return new SurveyRecord(sensors, levels, latitude, longitude, accuracy, x, y, time);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static double parseOptional(String field) {
+		return field.equals("?") ? Double.NaN : Double.parseDouble(field);
+	}
+}
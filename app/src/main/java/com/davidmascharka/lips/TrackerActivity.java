@@ -1,10 +1,12 @@
 package com.davidmascharka.lips;
 
 import android.Manifest;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -18,6 +20,7 @@ import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
@@ -35,11 +38,13 @@ import android.widget.Toast;
 import com.mascharka.indoorlocalization.R;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 
@@ -48,7 +53,9 @@ import weka.classifiers.lazy.KStar;
 import weka.classifiers.trees.RandomForest;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Utils;
 
 /**
  *  Copyright 2015 David Mascharka
@@ -172,6 +179,35 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	 */
 	private float[] orientation;
 
+	/**
+	 * The latest accelerometer and magnetic readings, for working out the orientation
+	 * without allocating on every sensor event
+	 */
+	private final float[] gravity = new float[3];
+	private final float[] geomagnetic = new float[3];
+
+	/**
+	 * Particles used to track the user between scans
+	 */
+	private static final int PARTICLES = 2000;
+
+	/**
+	 * Counts the user's steps to move the tracked position between scans
+	 */
+	private final StepDetector stepDetector = new StepDetector();
+
+	/**
+	 * The tracked position: each scan's predicted position combined with the steps
+	 * taken since the last one
+	 */
+	private ParticleFilter tracker;
+
+	/**
+	 * The cells of the building someone can stand in, or null if there's no mask for it.
+	 * Predictions and the tracked position are kept to these
+	 */
+	private WalkableMask mask;
+
 	/**
 	 * Displays the user's x coordinate (predicted)
 	 */
@@ -239,7 +275,7 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	BroadcastReceiver receiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			updateScanResults();
+			updateScanResults(System.nanoTime());
 		}
 	};
 
@@ -269,6 +305,12 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	private float predictedY;
 
 	private Timestamp time;
+
+	/**
+	 * The latest scan and sensor values, which the position models build their instances
+	 * from since each may use only some of the access points
+	 */
+	private SurveyRecord reading;
 	
 	File file;
 	File valuesFile;
@@ -280,78 +322,90 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	private double predictedPartition;
 
 	/**
-	 * K* classifier for predicting x position
+	 * The predicted positions smoothed over time, shown instead of the raw ones when
+	 * smoothPosition is set
 	 */
-	KStar classifierXKStar;
+	private final PositionSmoother smoother = new PositionSmoother();
+	private boolean smoothPosition;
 
 	/**
-	 * RBF regression classifier for predicting x position
+	 * How long each scan takes to get from the broadcast to the display this session,
+	 * shown over the map when showLatency is set and saved to latency_BUILDING.txt when
+	 * the tracker is paused
 	 */
-	RBFRegressor classifierXRBFRegressor;
-
-	/**
-	 * K* classifier for predicting y position
-	 */
-	KStar classifierYKStar;
-
-	/**
-	 * RBF regression classifier for predicting y position
-	 */
-	RBFRegressor classifierYRBFRegressor;
+	private final ScanLatency latency = new ScanLatency();
+	private boolean showLatency;
+	private TextView latencyText;
 
-	/**
-	 * K* classifier for just the lower left portion of the building, predicting x
-	 */
-	KStar partitionLowerLeftX = null;
+	// How often the metrics are written out while the tracker is running
+	private static final long METRICS_INTERVAL = 60000;
 
 	/**
-	 * K* classifier for just the lower right portion of the building, predicting x
-	 */
-	KStar partitionLowerRightX = null;
+	 * What the tracker has done since it was created, written to logcat and
+	 * metrics_BUILDING.txt every METRICS_INTERVAL and when it's paused. The counters are
+	 * kept here so the classification thread never has to look them up
+	 */
+	private final TrackerMetrics metrics = new TrackerMetrics();
+	private TrackerMetrics.Counter scansReceived;
+	private TrackerMetrics.Counter scansDropped;
+	private TrackerMetrics.Counter inferenceErrors;
+	private TrackerMetrics.Counter modelLoadFailures;
+	private TrackerMetrics.Counter partitionChanges;
+	private TrackerMetrics.Counter[] partitionCounts;
+	private LatencyHistogram valuesWrites;
+	private int lastPartition = -1;
+	private final Handler metricsHandler = new Handler();
+	private final Runnable saveMetrics = new Runnable() {
+		public void run() {
+			saveMetrics();
+			metricsHandler.postDelayed(this, METRICS_INTERVAL);
+		}
+	};
 
 	/**
-	 * K* classifier for just the upper left portion of the building, predicting x
+	 * The partitions the building is split into, learned ones if the tools module's
+	 * DiscoverPartitions has made some, otherwise the five hand-drawn ones
 	 */
-	KStar partitionUpperLeftX = null;
+	private PartitionScheme scheme;
 
 	/**
-	 * K* classifier for just the upper right portion of the building, predicting x
+	 * The per-partition K* models, with any datapoints added to them while surveying
 	 */
-	KStar partitionUpperRightX = null;
+	private PositionModels positionModels;
 
 	/**
-	 * K* classifier for just the middle portion of the building, predicting x
+	 * K* classifier for predicting x position
 	 */
-	KStar partitionMiddleX = null;
+	KStar classifierXKStar;
 
 	/**
-	 * K* classifier for just the lower left portion of the building, predicting y
+	 * RBF regression classifier for predicting x position
 	 */
-	KStar partitionLowerLeftY = null;
+	RBFRegressor classifierXRBFRegressor;
 
 	/**
-	 * K* classifier for just the lower right portion of the building, predicting y
+	 * K* classifier for predicting y position
 	 */
-	KStar partitionLowerRightY = null;
+	KStar classifierYKStar;
 
 	/**
-	 * K* classifier for just the upper left portion of the building, predicting y
+	 * RBF regression classifier for predicting y position
 	 */
-	KStar partitionUpperLeftY = null;
+	RBFRegressor classifierYRBFRegressor;
 
 	/**
-	 * K* classifier for just the upper right portion of the building, predicting y
+	 * K* classifiers for each partition of the building, predicting x, by partition index
 	 */
-	KStar partitionUpperRightY = null;
+	KStar[] partitionX;
 
 	/**
-	 * K* classifier for just the middle portion of the building, predicting y
+	 * K* classifiers for each partition of the building, predicting y, by partition index
 	 */
-	KStar partitionMiddleY = null;
+	KStar[] partitionY;
 
 	/**
 	 * Random forest model to predict which portion of the building the user is in
-	 * Determines if the user is in upper left, lower left, upper right, lower right, middle
+	 * Its prediction is the index of the partition in the scheme
 	 */
 	RandomForest partitionClassifier;
 
@@ -546,8 +600,7 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	Attribute attrLocationAccuracy = new Attribute("locationAccuracy");
 	Attribute attrXPosition = new Attribute("xPosition");
 	Attribute attrYPosition = new Attribute("yPosition");
-	List<String> values = Arrays.asList("upperleft", "lowerleft", "middle", "upperright", "lowerright");
-	Attribute attrPartition = new Attribute("partition", values);
+	Attribute attrPartition;
 	ArrayList<Attribute> xClass = new ArrayList<Attribute>(173);
 	ArrayList<Attribute> yClass = new ArrayList<Attribute>(173);
 	ArrayList<Attribute> partitionClass = new ArrayList<Attribute>(173);
@@ -602,6 +655,11 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 			public void onProviderDisabled(String provider) {}
 		};
 
+		scheme = loadScheme(this);
+		setUpMetrics();
+		tracker = new ParticleFilter(PARTICLES, PartitionScheme.FULL.getBounds(0),
+				System.nanoTime());
+		positionModels = new PositionModels(scheme, modelSource(this));
 		loadXClassifierModels();
 		loadYClassifierModels();
 		loadPartitionClassifierModels();
@@ -619,6 +677,62 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	}
 
 
+	/**
+	 * Registers everything the tracker counts, so a dump lists all of it even before
+	 * anything has happened
+	 */
+	private void setUpMetrics() {
+		scansReceived = metrics.counter("scans.received");
+		scansDropped = metrics.counter("scans.dropped");
+		inferenceErrors = metrics.counter("inference.errors");
+		modelLoadFailures = metrics.counter("model.load.failures");
+		partitionChanges = metrics.counter("partition.changes");
+		partitionCounts = new TrackerMetrics.Counter[scheme.getPartitionCount()];
+		for (int i = 0; i < partitionCounts.length; i++) {
+			partitionCounts[i] = metrics.counter("partition." + i);
+		}
+		metrics.histogram("model.load.forest");
+		metrics.histogram("model.load.kstar");
+		metrics.histogram("model.load.rbf");
+
+		// Each values row is written and flushed as the scan comes in, so a backed up
+		// writer shows up as the time that takes and as the writer's error flag
+		valuesWrites = metrics.histogram("values.write");
+		metrics.register("values.error", new TrackerMetrics.Gauge() {
+			@Override
+			public long get() {
+				return valuesWriter != null && valuesWriter.checkError() ? 1 : 0;
+			}
+		});
+		for (int stage = 0; stage < ScanLatency.STAGES; stage++) {
+			metrics.register("latency." + ScanLatency.name(stage), latency.get(stage));
+		}
+	}
+
+	/**
+	 * Writes the metrics to logcat and over metrics_BUILDING.txt
+	 */
+	private void saveMetrics() {
+		String dump = metrics.dump();
+		Log.i("TrackerMetrics", dump);
+
+		File dir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ "/indoor_localization");
+		File file = new File(dir, "metrics_" + building + ".txt");
+		File partial = new File(dir, file.getName() + ".tmp");
+		try {
+			PrintWriter metricsWriter = new PrintWriter(new FileOutputStream(partial));
+			metricsWriter.print("%" + new Timestamp(System.currentTimeMillis()) + "\n");
+			metricsWriter.print(dump);
+			metricsWriter.close();
+			if (!partial.renameTo(file)) {
+				Log.w("TrackerMetrics", "Couldn't replace " + file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
     private void requestMyPermissions() {
 		//@author Mahesh Gaya added new permission statement
 		if (ActivityCompat.shouldShowRequestPermissionRationale(this,
@@ -1185,6 +1299,8 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		partitionClass.add(attrLatitude);
 		partitionClass.add(attrLongitude);
 		partitionClass.add(attrLocationAccuracy);
+		attrPartition = new Attribute("partition",
+				new ArrayList<String>(scheme.getPartitionNames()));
 		partitionClass.add(attrPartition);
 
 		partitionInstances = new Instances("partition", partitionClass, 1);
@@ -1199,13 +1315,29 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		File root = Environment.getExternalStorageDirectory();
 		File dir = new File(root.getAbsolutePath() + "/indoor_localization");
 		dir.mkdirs();
+		SharedPreferences prefs = getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE);
+		building = prefs.getString(getPackageName() + ".building", "Howard");
+		smoothPosition = prefs.getBoolean(getPackageName() + ".smoothPosition", false);
+		showLatency = prefs.getBoolean(getPackageName() + ".showLatency", false);
+		mask = loadMask(this, building);
+		tracker.setMask(mask);
+
 		file = new File(dir, "livetest_" + building + ".txt");
 		valuesFile = new File(dir, "livetest_" + building + "_values.txt");
+
+		// The values log gets a row every scan so it's the one worth compressing if the
+		// user has chosen to in the data collection settings
+		boolean compressLogs = prefs.getBoolean(getPackageName() + ".compressLogs", false);
 		try {
 			outputStream = new FileOutputStream(file, true);
-			valuesOutputStream = new FileOutputStream(valuesFile, true);
 			writer = new PrintWriter(outputStream);
-			valuesWriter = new PrintWriter(valuesOutputStream);
+			if (compressLogs) {
+				valuesWriter = new PrintWriter(SurveyLogWriter.open(
+						SurveyLogWriter.compressedFile(dir, "livetest_" + building + "_values")));
+			} else {
+				valuesOutputStream = new FileOutputStream(valuesFile, true);
+				valuesWriter = new PrintWriter(valuesOutputStream);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -1219,10 +1351,11 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		//roomSizeText.setText("Room size: " + roomWidth + " x " + roomLength);
 
 		// Set grid options
-		GridView grid = (GridView) findViewById(R.id.tracker_gridView);
+		grid = (GridView) findViewById(R.id.tracker_gridView);
 		//grid.setGridSize(roomWidth, roomLength);
 		grid.setGridSize(102, 64);
 		grid.setCatchInput(false);
+		metrics.register("grid.draw", grid.getDrawTimes());
 		//grid.setDisplayMap(displayMap);
 
 		// Register to get sensor updates from all the available sensors
@@ -1265,6 +1398,10 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 
 		xText = (TextView) findViewById(R.id.tracker_text_xcoord);
 		yText = (TextView) findViewById(R.id.tracker_text_ycoord);
+		latencyText = (TextView) findViewById(R.id.tracker_text_latency);
+		latencyText.setVisibility(showLatency ? View.VISIBLE : View.GONE);
+
+		metricsHandler.postDelayed(saveMetrics, METRICS_INTERVAL);
 	}
 
 	@Override
@@ -1289,8 +1426,11 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
         }
 		unregisterReceiver(receiver);
 		
+		metricsHandler.removeCallbacks(saveMetrics);
+		saveMetrics();
 		writer.close();
 		valuesWriter.close();
+		saveLatency();
 
 		//savePreferences();
 
@@ -1304,10 +1444,35 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		this.location = location;
 	}
 
+	/**
+	 * Appends how long this session's scans took at each stage to latency_BUILDING.txt,
+	 * one line a session, and starts counting again for the next one
+	 */
+	private void saveLatency() {
+		if (latency.getScans() > 0) {
+			File dir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+					+ "/indoor_localization");
+			try {
+				PrintWriter latencyWriter = new PrintWriter(new FileOutputStream(
+						new File(dir, "latency_" + building + ".txt"), true));
+				latencyWriter.print(latency.summarize());
+				latencyWriter.print(" %" + new Timestamp(System.currentTimeMillis()) + "\n");
+				latencyWriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		latency.reset();
+	}
+
 	/**
 	 * When a new WiFi scan comes in, get sensor values and predict position
+	 *
+	 * @param received when the scan results broadcast was received, from
+	 *        System.nanoTime()
 	 */
-	private void updateScanResults() {
+	private void updateScanResults(final long received) {
+		scansReceived.increment();
 		resetWifiReadings();
 
 		scanResults = wifiManager.getScanResults();
@@ -1322,6 +1487,8 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 				wifiReadings.put(result.BSSID, result.level);
 			} // else BSSID wasn't programmed in
 		}
+		final long copied = System.nanoTime();
+		latency.record(ScanLatency.COPY, received, copied);
 	//@author Mahesh Gaya added permission if-statment
 		if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION)
 				!= PackageManager.PERMISSION_GRANTED
@@ -1343,15 +1510,21 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 			}
 		}
 		setInstanceValues();
+		final long built = System.nanoTime();
+		latency.record(ScanLatency.FEATURES, copied, built);
 		
 		printValues();
+		valuesWrites.record(System.nanoTime() - built);
 
 		// this is where the magic happens
 		// TODO clean up
 		if (!t.isAlive()) {
 			t = new Thread(new Runnable() {
 				public void run() {
+					long started = System.nanoTime();
+					latency.record(ScanLatency.HANDOFF, built, started);
 					Timestamp myTime = time;
+					SurveyRecord myReading = reading;
 					// This doesn't do anything -> classifierXKStar is null -> not loaded
 					/*try {
 						predictedX = (float) classifierXRBFRegressor.classifyInstance(xInstances.get(0));
@@ -1368,113 +1541,114 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 					// Get the partition that the new instance is in
 					// Use the classifier of the predicted partition to predict an x and y value for
 					// the new instance if the classifier is loaded (not null)
+					// The smoother trusts a prediction less the less sure the forest is of
+					// the partition and the further apart the closest datapoints are
+					double probability = 0;
+					boolean partitioned = false;
 					try {
-						predictedPartition = partitionClassifier.classifyInstance(partitionInstances.get(0));
-						//double[] dist = partitionClassifier.distributionForInstance(partitionInstances.get(0)); // gets the probability distribution for the instance
+						double[] distribution = partitionClassifier.distributionForInstance(
+								partitionInstances.get(0));
+						predictedPartition = Utils.maxIndex(distribution);
+						probability = distribution[(int) predictedPartition];
+						partitioned = true;
 					} catch (Exception e) {
+						inferenceErrors.increment();
 						e.printStackTrace();
 					}
+					long routed = System.nanoTime();
+					latency.record(ScanLatency.PARTITION, started, routed);
 
-					String partitionString = partitionInstances.classAttribute().value((int) predictedPartition);
-					if (partitionString.equals("upperleft")) {
-						if (partitionUpperLeftX != null) {
-							try {
-								predictedX = (float) partitionUpperLeftX.classifyInstance(xInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						if (partitionUpperLeftY != null) {
-							try {
-								predictedY = (float) partitionUpperLeftY.classifyInstance(yInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-					} else if (partitionString.equals("upperright")) {
-						if (partitionUpperRightX != null) {
-							try {
-								predictedX = (float) partitionUpperRightX.classifyInstance(xInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						if (partitionUpperRightY != null) {
-							try {
-								predictedY = (float) partitionUpperRightY.classifyInstance(yInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-					} else if (partitionString.equals("lowerleft")) {
-						if (partitionLowerLeftX != null) {
-							try {
-								predictedX = (float) partitionLowerLeftX.classifyInstance(xInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						if (partitionLowerLeftY != null) {
-							try {
-								predictedY = (float) partitionLowerLeftY.classifyInstance(yInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-					} else if (partitionString.equals("lowerright")) {
-						if (partitionLowerRightX != null) {
-							try {
-								predictedX = (float) partitionLowerRightX.classifyInstance(xInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						if (partitionLowerRightY != null) {
-							try {
-								predictedY = (float) partitionLowerRightY.classifyInstance(yInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-					} else if (partitionString.equals("middle")) {
-						if (partitionMiddleX != null) {
-							try {
-								predictedX = (float) partitionMiddleX.classifyInstance(xInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
+					int partition = (int) predictedPartition;
+					if (partition < partitionCounts.length) {
+						partitionCounts[partition].increment();
+					}
+					if (lastPartition != -1 && partition != lastPartition) {
+						partitionChanges.increment();
+					}
+					lastPartition = partition;
+					double spreadX = 0;
+					double spreadY = 0;
+					boolean freshX = false;
+					boolean freshY = false;
+					if (partitionX[partition] != null) {
+						try {
+							Instance instance = positionModels.xInstance(partition, myReading);
+							predictedX = (float) partitionX[partition].classifyInstance(instance);
+							spreadX = positionModels.xSpread(partition, instance, predictedX);
+							freshX = true;
+						} catch (Exception e) {
+							inferenceErrors.increment();
+							e.printStackTrace();
 						}
-						if (partitionMiddleX != null) {
-							try {
-								predictedY = (float) partitionMiddleY.classifyInstance(yInstances.get(0));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
+					}
+					if (partitionY[partition] != null) {
+						try {
+							Instance instance = positionModels.yInstance(partition, myReading);
+							predictedY = (float) partitionY[partition].classifyInstance(instance);
+							spreadY = positionModels.ySpread(partition, instance, predictedY);
+							freshY = true;
+						} catch (Exception e) {
+							inferenceErrors.increment();
+							e.printStackTrace();
 						}
 					}
+					latency.record(ScanLatency.POSITION, routed, System.nanoTime());
+
+					WalkableMask walkable = mask;
+					if (walkable != null && !walkable.isWalkable(predictedX, predictedY)) {
+						int cell = walkable.nearestCell(predictedX, predictedY);
+						predictedX = walkable.getCellX(cell);
+						predictedY = walkable.getCellY(cell);
+					}
 
+					smoother.update(predictedX, predictedY, spreadX, spreadY, probability,
+							myTime.getTime());
+					// Only a position this scan predicted, trusted as much as the smoother
+					// trusts it, or the particles are pulled toward an old fix again
+					if (partitioned && freshX && freshY
+							&& probability >= PositionSmoother.MIN_PROBABILITY) {
+						tracker.correct(predictedX, predictedY, (float) Math.sqrt(
+								PositionSmoother.variance(Math.max(spreadX, spreadY),
+										probability)));
+					}
+					showTrackedPosition();
+
+					float smoothedX = predictedX;
+					float smoothedY = predictedY;
+					if (smoothPosition) {
+						// Averaging two walkable fixes can still land in the wall between
+						smoothedX = smoother.getX();
+						smoothedY = smoother.getY();
+						if (walkable != null && !walkable.isWalkable(smoothedX, smoothedY)) {
+							int cell = walkable.nearestCell(smoothedX, smoothedY);
+							smoothedX = walkable.getCellX(cell);
+							smoothedY = walkable.getCellY(cell);
+						}
+					}
+					final float shownX = smoothedX;
+					final float shownY = smoothedY;
+					final long posted = System.nanoTime();
 					xText.post(new Runnable() {
 						public void run() {
-							xText.setText("X Position: " + predictedX);
+							xText.setText("X Position: " + shownX);
 						}
 					});
 
 					yText.post(new Runnable() {
 						public void run() {
-							yText.setText("Y Position: " + predictedY);
+							yText.setText("Y Position: " + shownY);
+							long shown = System.nanoTime();
+							latency.record(ScanLatency.DISPLAY, posted, shown);
+							latency.record(ScanLatency.TOTAL, received, shown);
+							if (showLatency) {
+								latencyText.setText(latency.describe());
+							}
 						}
 					});
 					
-					// TODO: make this work -> grid is apparently null here. For whatever reason.
-					/*runOnUiThread(new Runnable() {
-						public void run() {
-							grid.setUserPointCoords(predictedX, predictedY);
-						}
-					});*/
-					
-					
+
 					// Unnecessary if you're not testing
-					writer.print("(" + predictedX + "," + predictedY + ")");
+					writer.print("(" + shownX + "," + shownY + ")");
 					writer.print(" %" + myTime.toString() + "\t " + time.toString() +
 							"\t" + new Timestamp(System.currentTimeMillis()) + "\n");
 					writer.flush();
@@ -1482,6 +1656,9 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 			});
 			t.setPriority(Thread.MIN_PRIORITY); // run in the background
 			t.start();
+		} else {
+			// Still working on the last scan
+			scansDropped.increment();
 		}
 	}
 
@@ -1601,6 +1778,8 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
 		getMenuInflater().inflate(R.menu.tracker, menu);
+		menu.findItem(R.id.action_smooth_position).setChecked(smoothPosition);
+		menu.findItem(R.id.action_show_latency).setChecked(showLatency);
 		return true;
 	}
 
@@ -1619,6 +1798,23 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 				// todo something with this
 				showSelectPartitionDialog();
 				break;
+			case R.id.action_smooth_position:
+				smoothPosition = !smoothPosition;
+				item.setChecked(smoothPosition);
+				getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE).edit()
+						.putBoolean(getPackageName() + ".smoothPosition", smoothPosition).apply();
+				break;
+			case R.id.action_show_latency:
+				showLatency = !showLatency;
+				item.setChecked(showLatency);
+				latencyText.setText(latency.describe());
+				latencyText.setVisibility(showLatency ? View.VISIBLE : View.GONE);
+				getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE).edit()
+						.putBoolean(getPackageName() + ".showLatency", showLatency).apply();
+				break;
+			case R.id.action_model_memory:
+				showModelMemory();
+				break;
 			case R.id.action_start_data_collection:
 				// start main activity
 				Intent intent = new Intent(this, MainActivity.class);
@@ -1668,15 +1864,110 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 				break;
 		}
 
-		SensorManager.getRotationMatrix(rotation, inclination, 
-				new float[] {accelerometerX, accelerometerY, accelerometerZ}, 
-				new float[] {magneticX, magneticY, magneticZ});
+		gravity[0] = accelerometerX;
+		gravity[1] = accelerometerY;
+		gravity[2] = accelerometerZ;
+		geomagnetic[0] = magneticX;
+		geomagnetic[1] = magneticY;
+		geomagnetic[2] = magneticZ;
+		SensorManager.getRotationMatrix(rotation, inclination, gravity, geomagnetic);
 		orientation = SensorManager.getOrientation(rotation, orientation);
+
+		// Move the tracked position along with the user between scans
+		if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER
+				&& stepDetector.onAccelerometer(accelerometerX, accelerometerY,
+						accelerometerZ, event.timestamp)
+				&& tracker.isStarted()) {
+			tracker.step(orientation[0]);
+			showTrackedPosition();
+		}
+	}
+
+	/**
+	 * Moves the user's point on the grid to the tracked position. Called on every step
+	 * and every scan, from whichever thread noticed it
+	 */
+	private final Runnable moveUserPoint = new Runnable() {
+		public void run() {
+			float x = tracker.getX();
+			float y = tracker.getY();
+			// The middle of a cloud split between two hallways can be in the wall
+			// between them
+			WalkableMask walkable = mask;
+			if (walkable != null && !walkable.isWalkable(x, y)) {
+				int cell = walkable.nearestCell(x, y);
+				x = walkable.getCellX(cell);
+				y = walkable.getCellY(cell);
+			}
+			grid.setUserPointCoords(x, y);
+		}
+	};
+
+	private void showTrackedPosition() {
+		if (grid != null) {
+			grid.removeCallbacks(moveUserPoint);
+			grid.post(moveUserPoint);
+		}
 	}
 
 	@Override
 	public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 
+	/**
+	 * Opens models from the app's private files if MainActivity has saved an updated
+	 * copy there, otherwise from the assets they shipped in
+	 */
+	static PositionModels.Source modelSource(final Context context) {
+		return new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				File updated = new File(context.getFilesDir(), name);
+				if (updated.isFile()) {
+					return new FileInputStream(updated);
+				}
+				return context.getAssets().open(name);
+			}
+		};
+	}
+
+	/**
+	 * @return the building's walkable cells, from the mask MainActivity saved from its map
+	 *         or one in the assets, or null if there's neither
+	 */
+	static WalkableMask loadMask(Context context, String building) {
+		String name = WalkableMask.fileName(building);
+		File saved = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ "/indoor_localization", name);
+		try {
+			InputStream in = saved.isFile() ? new FileInputStream(saved)
+					: context.getAssets().open(name);
+			try {
+				return WalkableMask.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the partitions DiscoverPartitions learned if they've been added to the
+	 *         assets, otherwise the hand-drawn five partitions
+	 */
+	static PartitionScheme loadScheme(Context context) {
+		try {
+			InputStream in = modelSource(context).open(ClusteredPartitionScheme.FILE_NAME);
+			try {
+				return ClusteredPartitionScheme.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return PartitionScheme.FIVE;
+		}
+	}
+
 	/**
 	 * Loads the classifiers for predicting the X position
 	 */
@@ -1684,25 +1975,26 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		try {
 			//classifierXKStar = (KStar) weka.core.SerializationHelper.read(
 			//		getAssets().open("5partition/model_x_upperright.model"));
-			partitionLowerLeftX = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_x_lowerleft.model"));
-			partitionLowerRightX = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_x_lowerright.model"));
-			partitionUpperLeftX = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_x_upperleft.model"));
-			partitionUpperRightX = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_x_upperright.model"));
-			partitionMiddleX = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_x_middle.model"));
+			// Reads each partition's x and y models together
+			long start = System.nanoTime();
+			partitionX = new KStar[scheme.getPartitionCount()];
+			for (int i = 0; i < partitionX.length; i++) {
+				partitionX[i] = positionModels.getX(i);
+			}
+			metrics.histogram("model.load.kstar").record(System.nanoTime() - start);
 		} catch (Exception e) {
+			modelLoadFailures.increment();
 			e.printStackTrace();
 			Toast.makeText(this, "KStar x classifier did not load", Toast.LENGTH_LONG).show();
 		}
 
 		try {
+			long start = System.nanoTime();
 			classifierXRBFRegressor = (RBFRegressor) weka.core.SerializationHelper.read(
 					getAssets().open("classifier_x_rbfreg.model"));
+			metrics.histogram("model.load.rbf").record(System.nanoTime() - start);
 		} catch (Exception e) {
+			modelLoadFailures.increment();
 			e.printStackTrace();
 			Toast.makeText(this, "RBFRegressor x classifier did not load", Toast.LENGTH_LONG).show();
 		}
@@ -1715,25 +2007,23 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 		try {
 			//classifierYKStar = (KStar) weka.core.SerializationHelper.read(
 			//		getAssets().open("5partition/model_y_upperright.model"));
-			partitionLowerLeftY = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_y_lowerleft.model"));
-			partitionLowerRightY = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_y_lowerright.model"));
-			partitionUpperLeftY = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_y_upperleft.model"));
-			partitionUpperRightY = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_y_upperright.model"));
-			partitionMiddleY = (KStar) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_y_middle.model"));
+			partitionY = new KStar[scheme.getPartitionCount()];
+			for (int i = 0; i < partitionY.length; i++) {
+				partitionY[i] = positionModels.getY(i);
+			}
 		} catch (Exception e) {
+			modelLoadFailures.increment();
 			e.printStackTrace();
 			Toast.makeText(this, "KStar y classifier did not load", Toast.LENGTH_LONG).show();
 		}
 
 		try {
+			long start = System.nanoTime();
 			classifierYRBFRegressor = (RBFRegressor) weka.core.SerializationHelper.read(
 					getAssets().open("classifier_y_rbfreg.model"));
+			metrics.histogram("model.load.rbf").record(System.nanoTime() - start);
 		} catch (Exception e) {
+			modelLoadFailures.increment();
 			e.printStackTrace();
 			Toast.makeText(this, "RBFRegressor y classifier did not load", Toast.LENGTH_LONG).show();
 		}
@@ -1744,14 +2034,73 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 	 */
 	private void loadPartitionClassifierModels() {
 		try {
-			partitionClassifier = (RandomForest) weka.core.SerializationHelper.read(
-					getAssets().open("5partition/model_randomforest.model"));
+			long start = System.nanoTime();
+			InputStream in = modelSource(this).open(PositionModels.forestName(scheme));
+			try {
+				partitionClassifier = (RandomForest) weka.core.SerializationHelper.read(in);
+			} finally {
+				in.close();
+			}
+			metrics.histogram("model.load.forest").record(System.nanoTime() - start);
 		} catch (Exception e) {
+			modelLoadFailures.increment();
 			e.printStackTrace();
 			Toast.makeText(this, "Partition classifier did not load", Toast.LENGTH_LONG).show();
 		}
 	}
 
+	/**
+	 * Works out how much heap each loaded model keeps, in the background since it walks
+	 * every instance K* holds, and shows it
+	 */
+	private void showModelMemory() {
+		Toast.makeText(this, "Measuring models...", Toast.LENGTH_SHORT).show();
+		final RandomForest forest = partitionClassifier;
+		final KStar[] xModels = partitionX;
+		final KStar[] yModels = partitionY;
+		final RBFRegressor xRBFRegressor = classifierXRBFRegressor;
+		final RBFRegressor yRBFRegressor = classifierYRBFRegressor;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ModelMemory memory = new ModelMemory();
+				if (forest != null) {
+					memory.add(PositionModels.forestName(scheme), forest);
+				}
+				for (int i = 0; xModels != null && i < xModels.length; i++) {
+					if (xModels[i] != null) {
+						memory.add(PositionModels.modelName(scheme, "x", i), xModels[i]);
+					}
+				}
+				for (int i = 0; yModels != null && i < yModels.length; i++) {
+					if (yModels[i] != null) {
+						memory.add(PositionModels.modelName(scheme, "y", i), yModels[i]);
+					}
+				}
+				if (xRBFRegressor != null) {
+					memory.add("classifier_x_rbfreg.model", xRBFRegressor);
+				}
+				if (yRBFRegressor != null) {
+					memory.add("classifier_y_rbfreg.model", yRBFRegressor);
+				}
+				final String report = memory.report();
+				Log.i("ModelMemory", report);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (!isFinishing()) {
+							new AlertDialog.Builder(TrackerActivity.this)
+									.setTitle(R.string.action_model_memory)
+									.setMessage(report)
+									.setPositiveButton(android.R.string.ok, null)
+									.show();
+						}
+					}
+				});
+			}
+		}).start();
+	}
+
 	/**
 	 * Let the user pick what partitioning scheme they want to use
 	 */
@@ -2676,5 +3025,21 @@ SelectPartitionDialogFragment.SelectPartitionDialogListener,
 			partitionInstances.get(0).setMissing(attrLongitude);
 			partitionInstances.get(0).setMissing(attrLocationAccuracy);
 		}
+
+		int[] levels = new int[wifiReadings.size()];
+		int next = 0;
+		for (int level : wifiReadings.values()) {
+			levels[next++] = level;
+		}
+		float[] sensors = {accelerometerX, accelerometerY, accelerometerZ, magneticX,
+				magneticY, magneticZ, light, rotationX, rotationY, rotationZ,
+				orientation[0], orientation[1], orientation[2]};
+		if (location != null) {
+			reading = SurveyRecord.reading(sensors, levels, location.getLatitude(),
+					location.getLongitude(), location.getAccuracy(), time.getTime());
+		} else {
+			reading = SurveyRecord.reading(sensors, levels, Double.NaN, Double.NaN, Float.NaN,
+					time.getTime());
+		}
 	}
 }
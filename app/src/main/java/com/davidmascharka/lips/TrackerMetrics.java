@@ -0,0 +1,143 @@
+package com.davidmascharka.lips;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counters, gauges and histograms of what the tracker has been doing, for finding out
+ * what went wrong on a device nobody was watching
+ *
+ * Everything is registered by name once, when the tracker starts, and the tracker keeps
+ * what it's given, so counting is an add on a Counter and never looks anything up.
+ * Counters are split into stripes the way LongAdder is, which Android only has from API
+ * 24, so the UI thread and the classification thread don't fight over one value.
+ * Gauges are read and histograms summarized only when the metrics are dumped.
+ */
+public class TrackerMetrics {
+
+	/**
+	 * A value read when the metrics are dumped, e.g. the size of a queue
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	/**
+	 * A count that any thread can add to without locking
+	 */
+	public static class Counter {
+		// A power of two, so a thread's stripe is a mask of its id
+		private static final int STRIPES = 8;
+
+		// Each stripe gets a cache line of its own
+		private static final int PADDING = 8;
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		public void increment() {
+			add(1);
+		}
+
+		public void add(long amount) {
+			int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			cells.addAndGet(stripe * PADDING, amount);
+		}
+
+		public long get() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+	/**
+	 * @return the counter called name, which is made if there isn't one yet
+	 */
+	public synchronized Counter counter(String name) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new Counter();
+			metrics.put(name, metric);
+		}
+		return (Counter) metric;
+	}
+
+	/**
+	 * @return the histogram called name, which is made if there isn't one yet
+	 */
+	public synchronized LatencyHistogram histogram(String name) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new LatencyHistogram();
+			metrics.put(name, metric);
+		}
+		return (LatencyHistogram) metric;
+	}
+
+	/**
+	 * Dumps a histogram that's kept somewhere else, e.g. one of ScanLatency's, as name
+	 */
+	public synchronized void register(String name, LatencyHistogram histogram) {
+		metrics.put(name, histogram);
+	}
+
+	public synchronized void register(String name, Gauge gauge) {
+		metrics.put(name, gauge);
+	}
+
+	/**
+	 * Writes a line for each metric in the order they were registered: its name and its
+	 * value, or for a histogram its count, median, 99th percentile and maximum in
+	 * microseconds
+	 */
+	public synchronized void dump(PrintWriter out) {
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			Object metric = entry.getValue();
+			if (metric instanceof Counter) {
+				out.println(entry.getKey() + " " + ((Counter) metric).get());
+			} else if (metric instanceof Gauge) {
+				out.println(entry.getKey() + " " + ((Gauge) metric).get());
+			} else {
+				LatencyHistogram histogram = (LatencyHistogram) metric;
+				out.println(String.format(Locale.US, "%s count=%d p50=%d p99=%d max=%d",
+						entry.getKey(), histogram.getCount(),
+						histogram.getValueAtPercentile(50) / 1000,
+						histogram.getValueAtPercentile(99) / 1000, histogram.getMax() / 1000));
+			}
+		}
+		out.flush();
+	}
+
+	public String dump() {
+		StringWriter text = new StringWriter();
+		dump(new PrintWriter(text));
+		return text.toString();
+	}
+}
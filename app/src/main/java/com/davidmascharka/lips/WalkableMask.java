@@ -0,0 +1,298 @@
+package com.davidmascharka.lips;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Which cells of the grid someone can actually stand in, so positions inside walls or
+ * outside the building can be moved somewhere possible
+ *
+ * The cells are packed one bit each into longs, row by row from y = 0. When the mask is
+ * built, a distance transform finds the closest walkable cell to every cell, so checking
+ * a position and moving it out of a wall both take one lookup.
+ *
+ * A mask can be read from a text file with a line per row of the grid, the top row
+ * (highest y) first as it's shown on screen, and # for each cell nobody can stand in:
+ *
+ *   ####....####
+ *   ............
+ *
+ * or made from a floor plan with fromPixels(), stretched over the grid the way GridView
+ * draws it. MainActivity makes one whenever a map is picked and saves it under
+ * fileName(building), where TrackerActivity looks for it.
+ */
+public class WalkableMask {
+
+	// Pixels darker than this are drawn walls
+	private static final int DARK = 96;
+
+	// A cell is a wall when at least this fraction of its pixels are dark, so the thin
+	// lines of a floor plan don't close off the rooms they go around
+	private static final float WALL_FRACTION = 0.5f;
+
+	private final int width;
+	private final int height;
+	private final long[] bits;
+
+	// The index of the closest walkable cell to each cell, y * width + x
+	private final int[] nearest;
+
+	/**
+	 * @param walkable whether each cell can be stood in, indexed y * width + x
+	 * @throws IllegalArgumentException if no cell is walkable
+	 */
+	public WalkableMask(int width, int height, boolean[] walkable) {
+		if (walkable.length != width * height) {
+			throw new IllegalArgumentException("Mask has " + walkable.length + " cells, expected "
+					+ width * height);
+		}
+		this.width = width;
+		this.height = height;
+		bits = new long[(width * height + 63) >>> 6];
+		boolean any = false;
+		for (int i = 0; i < walkable.length; i++) {
+			if (walkable[i]) {
+				bits[i >>> 6] |= 1L << i;
+				any = true;
+			}
+		}
+		if (!any) {
+			throw new IllegalArgumentException("Mask has no walkable cells");
+		}
+		nearest = distanceTransform();
+	}
+
+	/**
+	 * @return the name a building's mask is saved under
+	 */
+	public static String fileName(String building) {
+		return "walkable_" + building + ".txt";
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return true if (x, y) is in a walkable cell. Anything off the grid isn't
+	 */
+	public boolean isWalkable(float x, float y) {
+		if (!(x >= 0 && y >= 0 && x < width && y < height)) {
+			return false;
+		}
+		int i = (int) y * width + (int) x;
+		return (bits[i >>> 6] & 1L << i) != 0;
+	}
+
+	/**
+	 * @return the index of the closest walkable cell to (x, y), which is its own cell if
+	 *         that's walkable. Positions off the grid go by the closest cell on it
+	 */
+	public int nearestCell(float x, float y) {
+		int cellX = x < 0 ? 0 : x >= width ? width - 1 : (int) x;
+		int cellY = y < 0 ? 0 : y >= height ? height - 1 : (int) y;
+		return nearest[cellY * width + cellX];
+	}
+
+	/**
+	 * @return the x coordinate of the middle of a cell from nearestCell()
+	 */
+	public float getCellX(int cell) {
+		return cell % width + 0.5f;
+	}
+
+	/**
+	 * @return the y coordinate of the middle of a cell from nearestCell()
+	 */
+	public float getCellY(int cell) {
+		return cell / width + 0.5f;
+	}
+
+	/**
+	 * Felzenszwalb and Huttenlocher's exact Euclidean distance transform, keeping which
+	 * cell each distance was to instead of the distance. Each column is scanned for the
+	 * closest walkable cell above or below, then each row takes the lower envelope of the
+	 * parabolas those make. Linear in the number of cells
+	 */
+	private int[] distanceTransform() {
+		final long none = Long.MAX_VALUE;
+		// Squared distance to, and row of, the closest walkable cell in the same column
+		long[] columnDistance = new long[width * height];
+		int[] columnRow = new int[width * height];
+		for (int x = 0; x < width; x++) {
+			int last = -1;
+			for (int y = 0; y < height; y++) {
+				if (isWalkableCell(x, y)) {
+					last = y;
+				}
+				columnRow[y * width + x] = last;
+			}
+			last = -1;
+			for (int y = height - 1; y >= 0; y--) {
+				int i = y * width + x;
+				if (isWalkableCell(x, y)) {
+					last = y;
+				}
+				if (last >= 0 && (columnRow[i] < 0 || last - y < y - columnRow[i])) {
+					columnRow[i] = last;
+				}
+				columnDistance[i] = columnRow[i] < 0 ? none
+						: (long) (y - columnRow[i]) * (y - columnRow[i]);
+			}
+		}
+
+		int[] result = new int[width * height];
+		int[] vertices = new int[width];
+		double[] boundaries = new double[width + 1];
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int k = -1;
+			for (int q = 0; q < width; q++) {
+				if (columnDistance[row + q] == none) {
+					continue;
+				}
+				double s = 0;
+				while (k >= 0) {
+					int v = vertices[k];
+					s = ((columnDistance[row + q] + (long) q * q)
+							- (columnDistance[row + v] + (long) v * v)) / (2.0 * (q - v));
+					if (s > boundaries[k]) {
+						break;
+					}
+					k--;
+				}
+				k++;
+				vertices[k] = q;
+				boundaries[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+				boundaries[k + 1] = Double.POSITIVE_INFINITY;
+			}
+
+			int j = 0;
+			for (int q = 0; q < width; q++) {
+				while (boundaries[j + 1] < q) {
+					j++;
+				}
+				int column = vertices[j];
+				result[row + q] = columnRow[row + column] * width + column;
+			}
+		}
+		return result;
+	}
+
+	private boolean isWalkableCell(int x, int y) {
+		int i = y * width + x;
+		return (bits[i >>> 6] & 1L << i) != 0;
+	}
+
+	/**
+	 * Makes a mask from a floor plan drawn dark on light, stretched over the whole grid
+	 *
+	 * @param pixels the image's ARGB pixels, row by row from the top
+	 */
+	public static WalkableMask fromPixels(int[] pixels, int imageWidth, int imageHeight,
+			int width, int height) {
+		boolean[] walkable = new boolean[width * height];
+		for (int y = 0; y < height; y++) {
+			// Row 0 of the image is the top of the grid, the highest y
+			int top = (height - 1 - y) * imageHeight / height;
+			int bottom = Math.max(top + 1, (height - y) * imageHeight / height);
+			for (int x = 0; x < width; x++) {
+				int left = x * imageWidth / width;
+				int right = Math.max(left + 1, (x + 1) * imageWidth / width);
+				int dark = 0;
+				for (int py = top; py < bottom; py++) {
+					for (int px = left; px < right; px++) {
+						int argb = pixels[py * imageWidth + px];
+						int luminance = (299 * (argb >> 16 & 0xff) + 587 * (argb >> 8 & 0xff)
+								+ 114 * (argb & 0xff)) / 1000;
+						// Transparent pixels show the background, not a wall
+						if (luminance < DARK && (argb >>> 24) > 0x80) {
+							dark++;
+						}
+					}
+				}
+				walkable[y * width + x] = dark < WALL_FRACTION * (bottom - top) * (right - left);
+			}
+		}
+		return new WalkableMask(width, height, walkable);
+	}
+
+	public static WalkableMask read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		List<String> rows = new ArrayList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() > 0) {
+				rows.add(line);
+			}
+		}
+		if (rows.isEmpty()) {
+			throw new IOException("Mask is empty");
+		}
+		int width = rows.get(0).length();
+		int height = rows.size();
+		boolean[] walkable = new boolean[width * height];
+		for (int r = 0; r < height; r++) {
+			String row = rows.get(r);
+			if (row.length() != width) {
+				throw new IOException("Row " + (r + 1) + " of the mask has " + row.length()
+						+ " cells, expected " + width);
+			}
+			int y = height - 1 - r;
+			for (int x = 0; x < width; x++) {
+				walkable[y * width + x] = row.charAt(x) != '#';
+			}
+		}
+		try {
+			return new WalkableMask(width, height, walkable);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public void write(OutputStream out) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+		StringBuilder row = new StringBuilder(width);
+		for (int y = height - 1; y >= 0; y--) {
+			row.setLength(0);
+			for (int x = 0; x < width; x++) {
+				row.append(isWalkableCell(x, y) ? '.' : '#');
+			}
+			writer.println(row);
+		}
+		writer.flush();
+		if (writer.checkError()) {
+			throw new IOException("Couldn't write mask");
+		}
+	}
+}
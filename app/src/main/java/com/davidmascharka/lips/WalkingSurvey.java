@@ -0,0 +1,111 @@
+package com.davidmascharka.lips;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Keeps track of one walk in walking survey mode
+ *
+ * The surveyor picks a start point, presses confirm and walks in a straight line at a
+ * steady pace to the end point while the phone scans as fast as it can. Each scan is
+ * held here until the end point is known, then labelled with the point along the walk
+ * that matches the time it was taken and written out in the same format as a datapoint
+ * collected by hand.
+ */
+public class WalkingSurvey {
+
+	private boolean walking;
+
+	private float startX;
+	private float startY;
+	private long startTime;
+
+	// Readings taken so far: everything in the dataset row that comes before the position
+	private final List<String> readings = new ArrayList<String>();
+	private final List<Long> times = new ArrayList<Long>();
+
+	public boolean isWalking() {
+		return walking;
+	}
+
+	public int getScanCount() {
+		return readings.size();
+	}
+
+	/**
+	 * Starts a walk from (x, y). Any scans from an unfinished walk are thrown away
+	 */
+	public void start(float x, float y, long time) {
+		cancel();
+		startX = x;
+		startY = y;
+		startTime = time;
+		walking = true;
+	}
+
+	/**
+	 * @param reading the sensor, WiFi and location fields of a dataset row
+	 */
+	public void addScan(String reading, long time) {
+		if (walking) {
+			readings.add(reading);
+			times.add(time);
+		}
+	}
+
+	/**
+	 * Ends the walk at (x, y)
+	 *
+	 * @return a dataset row for every scan taken along the way with its interpolated
+	 *         position and the time it was taken
+	 */
+	public List<String> finish(float x, float y, long time) {
+		long duration = time - startTime;
+		int count = readings.size();
+		List<String> rows = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			long scanTime = times.get(i);
+
+			// Fraction of the walk covered when the scan finished. Scans can't be
+			// placed outside the segment even if the clock says otherwise
+			float fraction = duration <= 0 ? 1 : (float) (scanTime - startTime) / duration;
+			fraction = Math.max(0, Math.min(1, fraction));
+
+			rows.add(readings.get(i) + "," + (startX + (x - startX) * fraction) + ","
+					+ (startY + (y - startY) * fraction) + " %"
+					+ (new Timestamp(scanTime)).toString());
+		}
+
+		cancel();
+		return rows;
+	}
+
+	/**
+	 * Stops walking without writing anything
+	 */
+	public void cancel() {
+		walking = false;
+		readings.clear();
+		times.clear();
+	}
+}
@@ -0,0 +1,182 @@
+package com.davidmascharka.lips;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Torn rows at the end of a dataset file, plain or compressed, are cut off and the index
+ * notices
+ */
+public class DatasetAppenderTest {
+
+	private static final String HEADER = "%Data collected by test\n%Format of data: ...\n\n";
+	private static final String ROW =
+			"0.2,9.81,0.0,1,2,3,4,5,6,7,8,9,10,-71,0,-88,?,?,?,34.5,12.5 %2016-04-01 13:30:00.0";
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("dataset_", ".txt");
+		write(HEADER, false);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		DatasetIndex.indexFile(file).delete();
+	}
+
+	@Test
+	public void intactFileIsLeftAlone() throws Exception {
+		append(3);
+		long length = file.length();
+		assertEquals(0, DatasetAppender.recover(file));
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void tornRowIsDropped() throws Exception {
+		append(3);
+		long length = file.length();
+		write(ROW.substring(0, 40), true);
+		assertEquals(40, DatasetAppender.recover(file));
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void garbageLinesAreDropped() throws Exception {
+		append(2);
+		long length = file.length();
+		write("0.2,9.81,\u0000\u0000\u0000\n\n\u0000\u0000", true);
+		DatasetAppender.recover(file);
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void headerOnlyFileIsKept() throws Exception {
+		assertEquals(0, DatasetAppender.recover(file));
+		assertEquals(HEADER.length(), file.length());
+	}
+
+	@Test
+	public void rowsLongerThanTheWindowAreKept() throws Exception {
+		StringBuilder row = new StringBuilder("0.2,9.81,0.0,1,2,3,4,5,6,7,8,9,10");
+		for (int i = 0; i < 10000; i++) {
+			row.append(",-71");
+		}
+		row.append(",?,?,?,34.5,12.5 %2016-04-01 13:30:00.0");
+		DatasetAppender appender = DatasetAppender.open(file,
+				DatasetAppender.SyncPolicy.EVERY_SAVE);
+		appender.append(Arrays.asList(row.toString()));
+		appender.close();
+		long length = file.length();
+		write("0.2,9.8", true);
+		DatasetAppender.recover(file);
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void indexDropsRowsThatNoLongerMatch() throws Exception {
+		append(5);
+		int crc = DatasetIndex.open(file, PartitionScheme.FIVE).getCrc(4);
+
+		// Change the last row the way a write that never reached storage would
+		RandomAccessFile data = new RandomAccessFile(file, "rw");
+		data.seek(file.length() - 5);
+		data.write('9');
+		data.close();
+
+		DatasetIndex index = DatasetIndex.open(file, PartitionScheme.FIVE);
+		assertEquals(5, index.size());
+		assertNotEquals(crc, index.getCrc(4));
+		assertEquals(9, index.read(4).time % 60000 / 1000);
+	}
+
+	@Test
+	public void rowThatNoLongerMatchesItsCrcIsDropped() throws Exception {
+		append(4);
+		long length = file.length();
+		append(1);
+		DatasetIndex.open(file, PartitionScheme.FIVE);
+
+		// Still a datapoint, just not the one that was written
+		RandomAccessFile data = new RandomAccessFile(file, "rw");
+		data.seek(file.length() - 5);
+		data.write('9');
+		data.close();
+
+		assertEquals(ROW.length() + 2, DatasetAppender.recover(file));
+		assertEquals(length, file.length());
+		assertEquals(4, DatasetIndex.open(file, PartitionScheme.FIVE).size());
+	}
+
+	@Test
+	public void rowsAfterTheIndexAreCheckedByParsing() throws Exception {
+		append(2);
+		DatasetIndex.open(file, PartitionScheme.FIVE);
+		append(2);
+		long length = file.length();
+		write(ROW.substring(0, 40), true);
+
+		assertEquals(40, DatasetAppender.recover(file));
+		assertEquals(length, file.length());
+		assertEquals(4, DatasetIndex.open(file, PartitionScheme.FIVE).size());
+	}
+
+	@Test
+	public void tornRecordIsDroppedFromCompressedLog() throws Exception {
+		File compressed = File.createTempFile("dataset_", SurveyLogFormat.EXTENSION);
+		compressed.delete();
+		try {
+			for (int session = 0; session < 2; session++) {
+				DatasetAppender appender = DatasetAppender.open(compressed,
+						DatasetAppender.SyncPolicy.NONE);
+				appender.append(Arrays.asList(ROW, ROW.replace("-71", "-72")));
+				appender.close();
+			}
+			long length = compressed.length();
+			RandomAccessFile data = new RandomAccessFile(compressed, "rw");
+			data.setLength(length - 3);
+			data.close();
+
+			assertTrue(DatasetAppender.recover(compressed) > 0);
+			assertEquals(0, DatasetAppender.recover(compressed));
+			BufferedReader lines = new BufferedReader(SurveyLogReader.open(compressed));
+			assertEquals(ROW, lines.readLine());
+			assertEquals("", lines.readLine());
+			assertEquals(ROW.replace("-71", "-72"), lines.readLine());
+			assertEquals("", lines.readLine());
+			assertEquals(ROW, lines.readLine());
+			assertEquals("", lines.readLine());
+			assertNull(lines.readLine());
+			lines.close();
+		} finally {
+			compressed.delete();
+		}
+	}
+
+	private void append(int rows) throws IOException {
+		DatasetAppender appender = DatasetAppender.open(file, DatasetAppender.SyncPolicy.NONE);
+		for (int i = 0; i < rows; i++) {
+			appender.append(Arrays.asList(ROW));
+		}
+		appender.close();
+	}
+
+	private void write(String text, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+	}
+}
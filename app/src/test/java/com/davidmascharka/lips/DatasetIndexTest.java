@@ -0,0 +1,148 @@
+package com.davidmascharka.lips;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The index is built from the dataset file, catches up with rows appended to it, and is
+ * built again when it can't be trusted
+ */
+public class DatasetIndexTest {
+
+	private static final String HEADER = "%Data collected by test\n%Format of data: ...\n\n";
+	private static final long START_TIME =
+			Timestamp.valueOf("2016-04-01 13:30:00").getTime();
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("dataset_", ".txt");
+		write(HEADER, false);
+		// Upper left, middle and lower right in 5Partition
+		append(row(10, 50, 0), row(50, 10, 1), row(80, 5, 2));
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		DatasetIndex.indexFile(file).delete();
+	}
+
+	@Test
+	public void indexesEveryRow() throws Exception {
+		DatasetIndex index = DatasetIndex.open(file, PartitionScheme.FIVE);
+		assertEquals(3, index.size());
+		assertEquals(HEADER.length(), index.getOffset(0));
+		assertEquals(row(10, 50, 0).length(), index.getLength(0));
+		assertEquals(HEADER.length() + row(10, 50, 0).length() + 2, index.getOffset(1));
+		assertEquals(START_TIME + 2000, index.getTime(2));
+		assertEquals(0, index.getPartition(0));
+		assertEquals(2, index.getPartition(1));
+		assertEquals(4, index.getPartition(2));
+
+		assertArrayEquals(new int[] {1}, index.rowsInPartition(2));
+		assertArrayEquals(new int[0], index.rowsInPartition(1));
+		assertArrayEquals(new int[] {1, 2},
+				index.rowsBetween(START_TIME + 1000, START_TIME + 3000));
+		List<SurveyRecord> records = index.read(new int[] {2, 0});
+		assertEquals(80, records.get(0).x, 0);
+		assertEquals(50, records.get(1).y, 0);
+	}
+
+	@Test
+	public void catchesUpWithAppendedRows() throws Exception {
+		DatasetIndex index = DatasetIndex.open(file, PartitionScheme.FIVE);
+		append(row(20, 10, 3), row(90, 40, 4));
+		// Still being written
+		write(row(20, 10, 5).substring(0, 30), true);
+
+		assertEquals(2, index.catchUp());
+		assertEquals(5, index.size());
+		assertArrayEquals(new int[] {3}, index.rowsInPartition(1));
+		assertEquals(0, index.catchUp());
+
+		// The entries were appended to the index file rather than indexed again
+		DatasetIndex reopened = DatasetIndex.open(file, PartitionScheme.FIVE);
+		assertEquals(5, reopened.size());
+		assertEquals(index.getOffset(4), reopened.getOffset(4));
+		assertEquals(90, reopened.read(4).x, 0);
+	}
+
+	@Test
+	public void corruptIndexIsRebuilt() throws Exception {
+		long offset = DatasetIndex.open(file, PartitionScheme.FIVE).getOffset(2);
+		File indexFile = DatasetIndex.indexFile(file);
+
+		// Torn last entry
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(indexFile.length() - 10);
+		index.close();
+		assertEquals(offset, DatasetIndex.open(file, PartitionScheme.FIVE).getOffset(2));
+
+		// Garbage over the header
+		index = new RandomAccessFile(indexFile, "rw");
+		index.write(new byte[] {'n', 'o', 'p', 'e'});
+		index.close();
+		DatasetIndex rebuilt = DatasetIndex.open(file, PartitionScheme.FIVE);
+		assertEquals(3, rebuilt.size());
+		assertEquals(offset, rebuilt.getOffset(2));
+	}
+
+	@Test
+	public void indexOfAResetFileIsRebuilt() throws Exception {
+		DatasetIndex.open(file, PartitionScheme.FIVE);
+		write(HEADER, false);
+		append(row(90, 40, 7));
+
+		DatasetIndex index = DatasetIndex.open(file, PartitionScheme.FIVE);
+		assertEquals(1, index.size());
+		assertEquals(3, index.getPartition(0));
+		assertEquals(START_TIME + 7000, index.getTime(0));
+	}
+
+	@Test
+	public void indexFromAnotherSchemeIsRebuilt() throws Exception {
+		DatasetIndex.open(file, PartitionScheme.FIVE);
+		PartitionScheme flipped = new PartitionScheme(PartitionScheme.FIVE.getName(),
+				PartitionScheme.FIVE.getPartitionNames().toArray(new String[0]),
+				new float[][] {
+						{68, 0, 102, 23},
+						{68, 23, 102, 64},
+						{34, 0, 68, 64},
+						{0, 0, 34, 32},
+						{0, 32, 34, 64}});
+
+		DatasetIndex index = DatasetIndex.open(file, flipped);
+		assertEquals(3, index.size());
+		assertEquals(4, index.getPartition(0));
+		assertEquals(0, index.getPartition(2));
+	}
+
+	private static String row(float x, float y, int seconds) {
+		return "0.2,9.81,0.0,1,2,3,4,5,6,7,8,9,10,-71,0,-88,?,?,?," + x + "," + y + " %"
+				+ new Timestamp(START_TIME + seconds * 1000L);
+	}
+
+	private void append(String... rows) throws IOException {
+		for (String row : rows) {
+			write(row + "\n\n", true);
+		}
+	}
+
+	private void write(String text, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+	}
+}
@@ -0,0 +1,59 @@
+package com.davidmascharka.lips;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's percentiles against the exact ones of the values recorded
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void percentilesAreWithinTheBucketWidth() {
+		Random random = new Random(7);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			// Anywhere from a microsecond to a few seconds
+			values[i] = (long) Math.exp(7 + 15 * random.nextDouble());
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long estimate = histogram.getValueAtPercentile(percentile);
+			assertTrue(percentile + ": " + estimate + " for " + exact,
+					estimate >= exact && estimate <= exact * 1.04);
+		}
+	}
+
+	@Test
+	public void bucketsCoverEveryValueInOrder() {
+		long previous = -1;
+		for (int i = 0; i < LatencyHistogram.index(Long.MAX_VALUE); i++) {
+			long highest = LatencyHistogram.highestValue(i);
+			assertEquals(i, LatencyHistogram.index(previous + 1));
+			assertEquals(i, LatencyHistogram.index(highest));
+			previous = highest;
+		}
+	}
+
+	@Test
+	public void resetForgetsEverything() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5000);
+		histogram.record(-3);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+}
@@ -0,0 +1,172 @@
+package com.davidmascharka.lips;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fails the build if a change makes localizing with the shipped models less accurate, or
+ * when asked to, slower
+ *
+ * heldout_Howard.txt is a tenth of the survey, set aside by the tools' HeldOutScans
+ * before the shipped models were trained on the rest, so none of its scans are in the
+ * models. Each scan goes through the pipeline TrackerActivity runs, the forest then the
+ * partition's K* models, and the mean and 95th percentile of the distance from where it
+ * was taken must stay within MEAN_ERROR and P95_ERROR cells. The budgets come from
+ * cross validating the training datapoints rather than from this file, with room for
+ * 311 scans being a smaller sample than a whole survey, so pruned or condensed models
+ * that are as accurate in cross validation pass too.
+ *
+ * Times depend on the machine, so the median and 95th percentile time per scan, after a
+ * pass to warm up the JIT, are only printed unless the test is run with
+ * -Dlips.latencyTolerance=N, which holds them to N times budgets several times what a
+ * laptop takes. Run with -Dlips.assets=DIR to test other models.
+ */
+public class LocalizationRegressionTest {
+
+	// 2.82 and 8.99 cells cross validated over 10 folds, 2.52 and 9.49 on the held out
+	// scans. The rest is room for 311 scans being a small sample
+	private static final double MEAN_ERROR = 3.4;
+	private static final double P95_ERROR = 11;
+
+	// 19 and 24 ms on a laptop
+	private static final double MEDIAN_MILLIS = 60;
+	private static final double P95_MILLIS = 100;
+
+	private static final PartitionScheme SCHEME = PartitionScheme.FIVE;
+
+	private static RandomForest forest;
+	private static PositionModels models;
+	private static List<SurveyRecord> scans;
+	private static int rows;
+	private static Instances header;
+
+	@BeforeClass
+	public static void loadModels() throws Exception {
+		final File assets = assets();
+		forest = (RandomForest) SerializationHelper.read(
+				new File(assets, PositionModels.forestName(SCHEME)).getPath());
+		models = new PositionModels(SCHEME, new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				return new FileInputStream(new File(assets, name));
+			}
+		});
+
+		scans = new ArrayList<SurveyRecord>();
+		BufferedReader lines = new BufferedReader(new InputStreamReader(
+				LocalizationRegressionTest.class.getResourceAsStream("/heldout_Howard.txt"),
+				"UTF-8"));
+		try {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				if (line.trim().length() > 0 && !line.startsWith("%")) {
+					rows++;
+				}
+				SurveyRecord record = SurveyRecord.parse(line);
+				if (record != null) {
+					scans.add(record);
+				}
+			}
+		} finally {
+			lines.close();
+		}
+		header = FingerprintInstances.partition(SCHEME, scans.get(0).getAccessPointCount(), 0);
+	}
+
+	@Test
+	public void errorStaysWithinBudget() throws Exception {
+		double[] errors = new double[scans.size()];
+		double total = 0;
+		for (int i = 0; i < scans.size(); i++) {
+			SurveyRecord scan = scans.get(i);
+			float[] position = localize(scan);
+			errors[i] = Math.hypot(position[0] - scan.x, position[1] - scan.y);
+			total += errors[i];
+		}
+		Arrays.sort(errors);
+		double mean = total / errors.length;
+		double p95 = percentile(errors, 95);
+
+		assertTrue("no scans", rows > 0);
+		assertEquals("scans that didn't parse", rows, scans.size());
+		assertTrue("mean error " + mean + " cells, budget " + MEAN_ERROR, mean <= MEAN_ERROR);
+		assertTrue("p95 error " + p95 + " cells, budget " + P95_ERROR, p95 <= P95_ERROR);
+	}
+
+	@Test
+	public void latencyStaysWithinBudget() throws Exception {
+		String tolerance = System.getProperty("lips.latencyTolerance");
+		for (SurveyRecord scan : scans) {
+			localize(scan);
+		}
+
+		double[] millis = new double[scans.size()];
+		for (int i = 0; i < scans.size(); i++) {
+			long start = System.nanoTime();
+			localize(scans.get(i));
+			millis[i] = (System.nanoTime() - start) / 1e6;
+		}
+		Arrays.sort(millis);
+		double median = percentile(millis, 50);
+		double p95 = percentile(millis, 95);
+		System.out.printf("Localizing took %.1f ms a scan at the median and %.1f ms at the "
+				+ "95th percentile%n", median, p95);
+
+		if (tolerance != null) {
+			double scale = Double.parseDouble(tolerance);
+			assertTrue("median " + median + " ms a scan, budget " + MEDIAN_MILLIS * scale,
+					median <= MEDIAN_MILLIS * scale);
+			assertTrue("p95 " + p95 + " ms a scan, budget " + P95_MILLIS * scale,
+					p95 <= P95_MILLIS * scale);
+		}
+	}
+
+	/**
+	 * @return the x and y TrackerActivity would predict for scan
+	 */
+	private static float[] localize(SurveyRecord scan) throws Exception {
+		SurveyRecord reading = SurveyRecord.reading(scan.sensors, scan.levels, scan.latitude,
+				scan.longitude, scan.accuracy, scan.time);
+		int partition = Utils.maxIndex(forest.distributionForInstance(
+				FingerprintInstances.toInstance(reading, header, SCHEME)));
+		Instance x = models.xInstance(partition, reading);
+		Instance y = models.yInstance(partition, reading);
+		return new float[] {(float) models.getX(partition).classifyInstance(x),
+				(float) models.getY(partition).classifyInstance(y)};
+	}
+
+	private static double percentile(double[] sorted, double percentile) {
+		return sorted[(int) Math.ceil(percentile / 100 * sorted.length) - 1];
+	}
+
+	/**
+	 * The app's assets, whether the tests are run from the app module like gradle does
+	 * or from the top of the project
+	 */
+	static File assets() {
+		String property = System.getProperty("lips.assets");
+		if (property != null) {
+			return new File(property);
+		}
+		File assets = new File("src/main/assets");
+		return assets.isDirectory() ? assets : new File("app/src/main/assets");
+	}
+}
@@ -0,0 +1,72 @@
+package com.davidmascharka.lips;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import weka.core.SerializationHelper;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fails the build if the shipped models come to keep much more heap than they do now
+ *
+ * The sizes are ModelMemory's estimates, which are worked out from the classes' fields
+ * rather than measured, so they're the same on any machine and the budgets can be
+ * close: about a tenth over what the models keep now. A model that's retrained on a
+ * bigger survey, or a change that makes K* keep more of each datapoint, goes over and
+ * the budget has to be raised on purpose.
+ */
+public class ModelMemoryTest {
+
+	private static final PartitionScheme SCHEME = PartitionScheme.FIVE;
+
+	// 1645 KB now
+	private static final long FOREST_KB = 1800;
+
+	// 8104 KB and 8036 KB for all ten, and 980 KB for the biggest, now
+	private static final long KSTAR_KB = 8900;
+	private static final long KSTAR_INSTANCES_KB = 8800;
+	private static final long LARGEST_KSTAR_KB = 1080;
+
+	@Test
+	public void forestStaysWithinBudget() throws Exception {
+		ModelMemory memory = new ModelMemory();
+		long[] bytes = memory.add("forest", read(PositionModels.forestName(SCHEME)));
+		assertWithin("forest", sum(bytes), FOREST_KB);
+	}
+
+	@Test
+	public void positionModelsStayWithinBudget() throws Exception {
+		ModelMemory memory = new ModelMemory();
+		long instances = 0;
+		for (int partition = 0; partition < SCHEME.getPartitionCount(); partition++) {
+			for (String axis : new String[] {"x", "y"}) {
+				String name = PositionModels.modelName(SCHEME, axis, partition);
+				long[] bytes = memory.add(name, read(name));
+				assertWithin(name, sum(bytes), LARGEST_KSTAR_KB);
+				instances += bytes[ModelMemory.INSTANCES];
+			}
+		}
+		assertWithin("K* models", memory.getTotal(), KSTAR_KB);
+		assertWithin("K* instances", instances, KSTAR_INSTANCES_KB);
+	}
+
+	private static Object read(String name) throws Exception {
+		return SerializationHelper.read(
+				new File(LocalizationRegressionTest.assets(), name).getPath());
+	}
+
+	private static void assertWithin(String what, long bytes, long budgetKb) {
+		assertTrue(what + " keeps " + bytes / 1024 + " KB, budget " + budgetKb + " KB",
+				bytes <= budgetKb * 1024);
+	}
+
+	private static long sum(long[] bytes) {
+		long sum = 0;
+		for (long value : bytes) {
+			sum += value;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,69 @@
+package com.davidmascharka.lips;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks a simulated user around the grid with noisy fixes and a compass that doesn't
+ * line up with the grid
+ */
+public class ParticleFilterTest {
+
+	private static final float[] BOUNDS = {0, 0, 102, 64};
+
+	@Test
+	public void stepsAndFixesBeatFixesAlone() {
+		Random random = new Random(3);
+		ParticleFilter filter = new ParticleFilter(2000, BOUNDS, 1);
+		// The grid's y axis is turned 1.1 radians from north and a step is 0.8 cells
+		float gridTurn = 1.1f;
+		float step = 0.8f;
+		float[][] legs = {{1, 0}, {0, 1}, {-1, 0}, {0, -1}};
+
+		float x = 10;
+		float y = 20;
+		int leg = 0;
+		int stepsInLeg = 0;
+		double fixError = 0;
+		double trackedError = 0;
+		for (int s = 0; s < 600; s++) {
+			if (++stepsInLeg > (leg % 2 == 0 ? 60 : 25)) {
+				leg = (leg + 1) % 4;
+				stepsInLeg = 0;
+			}
+			x += step * legs[leg][0];
+			y += step * legs[leg][1];
+			double heading = Math.atan2(legs[leg][0], legs[leg][1]) - gridTurn;
+			filter.step((float) (heading + 0.1 * random.nextGaussian()));
+
+			if (s % 3 == 0) {
+				float fixX = (float) (x + 2.4 * random.nextGaussian());
+				float fixY = (float) (y + 2.4 * random.nextGaussian());
+				filter.correct(fixX, fixY, 3);
+				// Give the particles a few laps to settle on the grid's heading
+				if (s > 150) {
+					fixError += Math.hypot(fixX - x, fixY - y);
+					trackedError += Math.hypot(filter.getX() - x, filter.getY() - y);
+				}
+			}
+		}
+		assertTrue("tracked " + trackedError + " against fixes " + fixError,
+				trackedError < fixError / 2);
+	}
+
+	@Test
+	public void startsOverWhenAFixIsFarFromEveryParticle() {
+		ParticleFilter filter = new ParticleFilter(500, BOUNDS, 1);
+		assertFalse(filter.isStarted());
+		filter.correct(10, 10, 1);
+		assertTrue(filter.isStarted());
+		assertEquals(10, filter.getX(), 0.5);
+
+		filter.correct(90, 50, 1);
+		assertEquals(90, filter.getX(), 0.5);
+		assertEquals(50, filter.getY(), 0.5);
+	}
+}
@@ -0,0 +1,144 @@
+package com.davidmascharka.lips;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips text through SurveyLogWriter and SurveyLogReader
+ */
+public class SurveyLogTest {
+
+	private static final String HEADER = "%Dataset for Howard\n"
+			+ "%AccelerometerX,AccelerometerY,AccelerometerZ,BSSID1,BSSID2,BSSID3,"
+			+ "Latitude,Longitude,LocationAccuracy,xPosition,yPosition\n\n";
+
+	@Test
+	public void datasetRowsRoundTrip() throws Exception {
+		String text = HEADER
+				+ "0.23536,9.8066,-0.1,-71,0,-88,41.60300251,-93.65449,24.0,34.5,12.5 %2016-04-01 13:30:00.0\n\n"
+				+ "0.23536,9.8067,-0.1,-72,0,0,41.60300251,-93.65449,24.0,34.5,12.5 %2016-04-01 13:30:01.52\n\n"
+				+ "0.2,9.81,0.0,0,-45,0,?,?,?,35.5,12.5 %2016-04-01 13:30:03.003\n\n";
+		assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void unusualFieldsFallBackToText() throws Exception {
+		String text = "1.0E-4,-0.0,007,1.,+3,-,osition: 12.5,,9223372036854775807 %not a time\n"
+				+ "1,2,3,4,5,6,7,8 %2016-02-30 10:00:00.0\n"
+				+ "1,2,3,4,5,6,7,8 %\n"
+				+ "1,2,3,4,5,6,7,8\n"
+				+ "short,line\n"
+				+ "\n"
+				+ "unicode \u00e9\u4e2d,1,2,3,4,5,6,7 %1999-12-31 23:59:59.999\n";
+		assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void liveTestLinesRoundTrip() throws Exception {
+		String text = "(34.5,12.5) %2016-04-01 13:30:00.0\t 2016-04-01 13:30:00.12\t2016-04-01 13:30:00.5\n"
+				+ "DONE: (34.5,12.5) %2016-04-01 13:30:10.0\n\n";
+		assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void partialLastLineIsKept() throws Exception {
+		String text = "1,2,3,4,5,6,7,8 %2016-04-01 13:30:00.0\n1,2,3,4,5";
+		assertEquals(text, roundTrip(text));
+	}
+
+	@Test
+	public void appendedSessionsDecodeAsOne() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String first = "1.5,2,3,4,5,6,7,8 %2016-04-01 13:30:00.0\n\n";
+		String second = "1.25,2,3,4,5,6,7,8,9 %2016-04-02 08:00:00.0\n\n";
+
+		PrintWriter writer = new PrintWriter(new SurveyLogWriter(bytes, true));
+		writer.print(first);
+		writer.close();
+		writer = new PrintWriter(new SurveyLogWriter(bytes, false));
+		writer.print(second);
+		writer.close();
+
+		assertEquals(first + second, decode(bytes.toByteArray()));
+	}
+
+	@Test
+	public void randomSessionsRoundTrip() throws Exception {
+		Random random = new Random(7);
+		StringBuilder text = new StringBuilder(HEADER);
+		long time = 1459517400000L;
+		float[] values = new float[20];
+		for (int row = 0; row < 2000; row++) {
+			for (int i = 0; i < values.length; i++) {
+				if (random.nextInt(4) == 0) {
+					values[i] += (float) random.nextGaussian() * (i < 5 ? 0.01f : 1000f);
+				}
+				text.append(i > 0 ? "," : "").append(values[i]);
+			}
+			text.append(',').append(-random.nextInt(100));
+			text.append(',').append(random.nextDouble() * 1e-9);
+			time += random.nextInt(3000) - 200;
+			text.append(" %").append(new Timestamp(time)).append("\n\n");
+		}
+		assertEquals(text.toString(), roundTrip(text.toString()));
+	}
+
+	@Test
+	public void compressesRows() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int row = 0; row < 100; row++) {
+			text.append("0.23536,9.8066,-0.1");
+			for (int i = 0; i < 156; i++) {
+				text.append(',').append(i % 7 == 0 ? -60 - row % 3 : 0);
+			}
+			text.append(",?,?,?,34.5,12.5 %2016-04-01 13:30:0").append(row % 10).append(".0\n\n");
+		}
+		byte[] encoded = encode(text.toString());
+		assertTrue(encoded.length * 5 < text.length());
+		assertEquals(text.toString(), decode(encoded));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedLogThrows() throws Exception {
+		byte[] encoded = encode("0.5,1,2,3,4,5,6,7 %2016-04-01 13:30:00.0\n");
+		byte[] truncated = new byte[encoded.length - 2];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		decode(truncated);
+	}
+
+	private static String roundTrip(String text) throws IOException {
+		return decode(encode(text));
+	}
+
+	private static byte[] encode(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintWriter writer = new PrintWriter(new SurveyLogWriter(bytes, true));
+		// Write in uneven pieces so lines get split across calls
+		for (int i = 0; i < text.length(); i += 37) {
+			writer.print(text.substring(i, Math.min(text.length(), i + 37)));
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+
+	private static String decode(byte[] encoded) throws IOException {
+		Reader reader = new SurveyLogReader(new ByteArrayInputStream(encoded));
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[100];
+		int read;
+		while ((read = reader.read(buffer)) >= 0) {
+			text.append(buffer, 0, read);
+		}
+		reader.close();
+		return text.toString();
+	}
+}
@@ -0,0 +1,55 @@
+package com.davidmascharka.lips;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * A small floor plan: two rooms joined by a door, with a wall down the middle
+ */
+public class WalkableMaskTest {
+
+	private static final String PLAN =
+			"##########\n" +
+			"#...#....#\n" +
+			"#........#\n" +
+			"#...#....#\n" +
+			"##########\n";
+
+	@Test
+	public void readsTheTopRowAsTheHighestY() throws Exception {
+		WalkableMask mask = WalkableMask.read(new ByteArrayInputStream(PLAN.getBytes("UTF-8")));
+		assertEquals(10, mask.getWidth());
+		assertEquals(5, mask.getHeight());
+		// The door is in the middle row, the wall above and below it
+		assertTrue(mask.isWalkable(4.5f, 2.5f));
+		assertFalse(mask.isWalkable(4.5f, 3.5f));
+		assertFalse(mask.isWalkable(4.5f, 1.5f));
+		assertFalse(mask.isWalkable(-1, 2));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mask.write(out);
+		assertEquals(PLAN, out.toString("UTF-8"));
+	}
+
+	@Test
+	public void movesPositionsToTheClosestWalkableCell() throws Exception {
+		WalkableMask mask = WalkableMask.read(new ByteArrayInputStream(PLAN.getBytes("UTF-8")));
+		int cell = mask.nearestCell(4.2f, 3.5f);
+		assertEquals(1, Math.abs(mask.getCellX(cell) - 4.5f) + Math.abs(mask.getCellY(cell) - 3.5f),
+				0.001);
+		assertTrue(mask.isWalkable(mask.getCellX(cell), mask.getCellY(cell)));
+
+		// Off the grid goes by the closest cell on it
+		cell = mask.nearestCell(20, 2.5f);
+		assertEquals(8.5f, mask.getCellX(cell), 0.001);
+		assertEquals(2.5f, mask.getCellY(cell), 0.001);
+
+		cell = mask.nearestCell(2.5f, 2.5f);
+		assertEquals(2.5f, mask.getCellX(cell), 0.001);
+		assertEquals(2.5f, mask.getCellY(cell), 0.001);
+	}
+}
@@ -0,0 +1,135 @@
+package com.davidmascharka.lips.benchmarks;
+
+import com.davidmascharka.lips.DatasetAppender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How many saves a second the dataset file can take under each sync policy, against
+ * opening and closing the file for every save the way MainActivity used to
+ *
+ * A save is one datapoint when surveying by hand, or a walk's worth of scans in walking
+ * survey mode. The file lives in java.io.tmpdir, which should be on the kind of storage
+ * being measured; forcing a tmpfs costs nothing. Every iteration starts a new file, and
+ * recovery is timed on the file it leaves behind with a torn row added to the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatasetAppenderBenchmark {
+
+	// A sync policy, or REOPEN to open and close the file for every save
+	@Param({"REOPEN", "NONE", "EVERY_SAVE", "EVERY_ROW"})
+	public String mode;
+
+	// 1 for a datapoint saved by hand, 20 for a walk
+	@Param({"1", "20"})
+	public int rowsPerSave;
+
+	private SyntheticSession session;
+	private File file;
+	private DatasetAppender appender;
+	private int row;
+
+	@Setup
+	public void setUp() {
+		session = new SyntheticSession(1000, 42);
+	}
+
+	@Setup(Level.Iteration)
+	public void openFile() throws IOException {
+		file = File.createTempFile("dataset_", ".txt");
+		if (!mode.equals("REOPEN")) {
+			appender = DatasetAppender.open(file, DatasetAppender.SyncPolicy.valueOf(mode));
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeFile() throws IOException {
+		if (appender != null) {
+			appender.close();
+			appender = null;
+		}
+
+		// Leave a torn row at the end and time how long it takes to cut it off again
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(session.body(0).substring(0, 100).getBytes());
+		out.close();
+		long start = System.nanoTime();
+		long dropped = DatasetAppender.recover(file);
+		System.out.printf("%nRecovered %d MB file in %.2f ms, dropped %d bytes%n",
+				file.length() >> 20, (System.nanoTime() - start) / 1e6, dropped);
+
+		file.delete();
+	}
+
+	@Benchmark
+	public void save() throws IOException {
+		List<String> rows = nextSave();
+		if (appender != null) {
+			appender.append(rows);
+			return;
+		}
+
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true)));
+		for (String row : rows) {
+			writer.print(row);
+			writer.print("\n\n");
+		}
+		writer.flush();
+		writer.close();
+	}
+
+	private List<String> nextSave() {
+		List<String> rows = new ArrayList<String>(rowsPerSave);
+		for (int i = 0; i < rowsPerSave; i++) {
+			rows.add(session.body(row) + " %" + SyntheticSession.timestamp(row));
+			row++;
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,188 @@
+package com.davidmascharka.lips.benchmarks;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.PositionSmoother;
+import com.davidmascharka.lips.SurveyRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import weka.classifiers.lazy.KStar;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * What the tracker spends on each scan, stage by stage, with the models the app ships
+ *
+ * The 5partition forest and K* models are read from the assets directory, the app's by
+ * default or any other with -p assets=DIR, e.g. one written by the tools. The scans are
+ * SCANS rows of a synthetic walk, routed to a partition by the forest during setup just
+ * as the tracker would. Every call takes the next scan, since K* caches what it works
+ * out for each attribute value and repeating one scan would be all cache hits.
+ *
+ * The stages are building the instances the forest and the partition's models take
+ * from a scan, routing with the forest, the partition's x and y predictions, and the
+ * whole pipeline TrackerActivity runs, which adds the spread of the closest datapoints
+ * and the smoother. Each is measured as sampled latency, for its percentiles, and as
+ * throughput, in microseconds for the stages that take a few and milliseconds for the
+ * ones that go through a K* model's every datapoint. The heap is fixed so the collector
+ * sizes it the same way on every run, and the scans are the same for a given seed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class LocalizationBenchmark {
+
+	private static final int SCANS = 256;
+
+	@Param("../app/src/main/assets")
+	public String assets;
+
+	@Param("42")
+	public long seed;
+
+	private final PartitionScheme scheme = PartitionScheme.FIVE;
+
+	private RandomForest forest;
+	private PositionModels models;
+	private Instances partitionHeader;
+	private final PositionSmoother smoother = new PositionSmoother();
+
+	private final SurveyRecord[] scans = new SurveyRecord[SCANS];
+	private final Instance[] partitionInstances = new Instance[SCANS];
+	private final Instance[] xInstances = new Instance[SCANS];
+	private final Instance[] yInstances = new Instance[SCANS];
+	private final int[] partitions = new int[SCANS];
+	private final KStar[] xModels = new KStar[SCANS];
+	private final KStar[] yModels = new KStar[SCANS];
+	private int next;
+	private long time;
+
+	@Setup
+	public void setUp() throws Exception {
+		final File directory = new File(assets);
+		forest = (RandomForest) SerializationHelper.read(
+				new File(directory, PositionModels.forestName(scheme)).getPath());
+		models = new PositionModels(scheme, new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				return new FileInputStream(new File(directory, name));
+			}
+		});
+		partitionHeader = FingerprintInstances.partition(scheme, SyntheticSession.BSSIDS, 0);
+
+		SyntheticSession session = new SyntheticSession(SCANS, seed);
+		for (int i = 0; i < SCANS; i++) {
+			SurveyRecord record = SurveyRecord.parse(session.body(i));
+			scans[i] = SurveyRecord.reading(record.sensors, record.levels, record.latitude,
+					record.longitude, record.accuracy, record.time);
+			partitionInstances[i] = FingerprintInstances.toInstance(scans[i], partitionHeader,
+					scheme);
+			partitions[i] = (int) forest.classifyInstance(partitionInstances[i]);
+			xInstances[i] = models.xInstance(partitions[i], scans[i]);
+			yInstances[i] = models.yInstance(partitions[i], scans[i]);
+			xModels[i] = models.getX(partitions[i]);
+			yModels[i] = models.getY(partitions[i]);
+		}
+	}
+
+	@Benchmark
+	public void features(Blackhole blackhole) throws Exception {
+		int scan = next();
+		blackhole.consume(FingerprintInstances.toInstance(scans[scan], partitionHeader,
+				scheme));
+		blackhole.consume(models.xInstance(partitions[scan], scans[scan]));
+		blackhole.consume(models.yInstance(partitions[scan], scans[scan]));
+	}
+
+	@Benchmark
+	public double[] route() throws Exception {
+		return forest.distributionForInstance(partitionInstances[next()]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public double predictX() throws Exception {
+		int scan = next();
+		return xModels[scan].classifyInstance(xInstances[scan]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public double predictY() throws Exception {
+		int scan = next();
+		return yModels[scan].classifyInstance(yInstances[scan]);
+	}
+
+	/**
+	 * Everything TrackerActivity's classification thread does with a scan, short of
+	 * showing it
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public float pipeline() throws Exception {
+		SurveyRecord scan = scans[next()];
+		double[] distribution = forest.distributionForInstance(
+				FingerprintInstances.toInstance(scan, partitionHeader, scheme));
+		int partition = Utils.maxIndex(distribution);
+
+		Instance xInstance = models.xInstance(partition, scan);
+		float x = (float) models.getX(partition).classifyInstance(xInstance);
+		double spreadX = models.xSpread(partition, xInstance, x);
+		Instance yInstance = models.yInstance(partition, scan);
+		float y = (float) models.getY(partition).classifyInstance(yInstance);
+		double spreadY = models.ySpread(partition, yInstance, y);
+
+		time += 1500;
+		smoother.update(x, y, spreadX, spreadY, distribution[partition], time);
+		return smoother.getX() + smoother.getY();
+	}
+
+	private int next() {
+		next = (next + 1) % SCANS;
+		return next;
+	}
+}
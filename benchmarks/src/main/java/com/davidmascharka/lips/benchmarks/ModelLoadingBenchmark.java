@@ -0,0 +1,172 @@
+package com.davidmascharka.lips.benchmarks;
+
+import com.davidmascharka.lips.ModelMemory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import weka.core.SerializationHelper;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How long TrackerActivity takes to read each of the models it loads when it starts,
+ * and how much memory that costs
+ *
+ * Every model in the assets directory (the app's by default, or -p assets=DIR) is read
+ * with SerializationHelper.read the way the activity reads it, from bytes already in
+ * memory so the time is deserializing rather than the disk. cold reads the model once
+ * in a new JVM, so it includes loading and initializing WEKA's classes like the first
+ * model the app reads does. warm reads it again and again once the JIT has compiled the
+ * deserialization code, like the rest of the models.
+ *
+ * The bytes allocated while reading and the heap the model keeps once it's read don't
+ * depend on the machine, so like SurveyLogBenchmark's sizes they're printed rather than
+ * measured, once the trial is over so the cold read comes first. Next to them goes
+ * ModelMemory's estimate of the retained heap, split into instances, attribute metadata,
+ * tree nodes and the rest, which is what the tracker's Model memory report shows. A
+ * model loading change can be compared against these and the times in
+ * build/jmh-results.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ModelLoadingBenchmark {
+
+	@Param({"5partition/model_randomforest.model",
+			"5partition/model_x_lowerleft.model", "5partition/model_y_lowerleft.model",
+			"5partition/model_x_lowerright.model", "5partition/model_y_lowerright.model",
+			"5partition/model_x_middle.model", "5partition/model_y_middle.model",
+			"5partition/model_x_upperleft.model", "5partition/model_y_upperleft.model",
+			"5partition/model_x_upperright.model", "5partition/model_y_upperright.model",
+			"classifier_x_rbfreg.model", "classifier_y_rbfreg.model"})
+	public String model;
+
+	@Param("../app/src/main/assets")
+	public String assets;
+
+	private static final int COPIES = 4;
+
+	private byte[] bytes;
+
+	// Holds the models printMemory() reads while their heap is counted
+	private final Object[] counted = new Object[COPIES];
+
+	@Setup
+	public void setUp() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(assets, model), "r");
+		try {
+			bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Benchmark
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(value = 10, jvmArgs = {"-Xms1g", "-Xmx1g"})
+	public Object cold() throws Exception {
+		return read();
+	}
+
+	@Benchmark
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+	public Object warm() throws Exception {
+		return read();
+	}
+
+	@TearDown
+	public void printMemory() throws Exception {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		// One read first so the serialization caches it fills aren't counted, then a few
+		// copies held at once so garbage the collector misses now and then is spread
+		// across them
+		read();
+		long before = usedHeap();
+		long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < COPIES; i++) {
+			counted[i] = read();
+		}
+		long allocated = (threads.getThreadAllocatedBytes(thread) - allocatedBefore) / COPIES;
+		long retained = (usedHeap() - before) / COPIES;
+		Arrays.fill(counted, null);
+
+		// What the app's Model memory report makes of it, which should be close
+		long[] estimate = new ModelMemory().add(model, read());
+		StringBuilder split = new StringBuilder();
+		long estimated = 0;
+		for (int category = 0; category < estimate.length; category++) {
+			estimated += estimate[category];
+			split.append(category == 0 ? "" : ", ").append(ModelMemory.getCategoryName(category))
+					.append(' ').append(estimate[category] / 1024).append(" KB");
+		}
+
+		System.out.printf("%n%s: %d KB file, %d KB allocated, %d KB retained, "
+				+ "%d KB estimated (%s)%n", model, bytes.length / 1024, allocated / 1024,
+				retained / 1024, estimated / 1024, split);
+	}
+
+	private Object read() throws Exception {
+		return SerializationHelper.read(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * @return the heap in use once everything unreachable has been collected
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// A collection can leave garbage for the next one, so stop once it stops going down
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+}
@@ -0,0 +1,211 @@
+package com.davidmascharka.lips.benchmarks;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.SurveyRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import weka.classifiers.lazy.KStar;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * What adding surveyed datapoints to the position models costs as a partition's store
+ * grows: the append itself, the first prediction after it, a prediction with nothing
+ * added, and writing the changed partition back out
+ *
+ * The middle partition's models are trained on storeSize synthetic datapoints and kept
+ * serialized, and every iteration starts from a fresh copy. Each iteration is a single
+ * operation, since appending changes the store that's being measured. The append score
+ * is for a batch of APPENDS datapoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PositionModelsBenchmark {
+
+	private static final int APPENDS = 100;
+	private static final int QUERIES = 16;
+
+	@Param({"500", "2000", "8000"})
+	public int storeSize;
+
+	private final PartitionScheme scheme = PartitionScheme.FIVE;
+	private final int partition = scheme.indexOf("middle");
+
+	private final Map<String, byte[]> serialized = new HashMap<String, byte[]>();
+	private List<SurveyRecord> appends;
+	private final Instance[] queryXs = new Instance[QUERIES];
+	private final Instance[] queryYs = new Instance[QUERIES];
+	private int query;
+
+	private PositionModels models;
+	private int next;
+	private File directory;
+
+	@Setup
+	public void setUp() throws Exception {
+		List<SurveyRecord> records = middleRecords(storeSize + APPENDS + QUERIES);
+		appends = records.subList(storeSize, storeSize + APPENDS);
+
+		Instances xs = FingerprintInstances.position(FingerprintInstances.X_POSITION,
+				SyntheticSession.BSSIDS, storeSize);
+		Instances ys = FingerprintInstances.position(FingerprintInstances.Y_POSITION,
+				SyntheticSession.BSSIDS, storeSize);
+		for (SurveyRecord record : records.subList(0, storeSize)) {
+			xs.add(FingerprintInstances.toInstance(record, xs, scheme));
+			ys.add(FingerprintInstances.toInstance(record, ys, scheme));
+		}
+		serialized.put(PositionModels.modelName(scheme, "x", partition), train(xs));
+		serialized.put(PositionModels.modelName(scheme, "y", partition), train(ys));
+		for (int i = 0; i < QUERIES; i++) {
+			SurveyRecord record = records.get(storeSize + APPENDS + i);
+			queryXs[i] = FingerprintInstances.toInstance(record, xs, scheme);
+			queryYs[i] = FingerprintInstances.toInstance(record, ys, scheme);
+		}
+
+		directory = File.createTempFile("models_", "");
+		directory.delete();
+	}
+
+	/**
+	 * Loads the models again and predicts once, so the blend cache is built like it
+	 * would be on a device that's been tracking for a while. The prediction that's
+	 * measured is for the next held out datapoint, since repeating a query is all
+	 * cache hits
+	 */
+	@Setup(Level.Iteration)
+	public void loadModels() throws Exception {
+		models = new PositionModels(scheme, new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				byte[] bytes = serialized.get(name);
+				if (bytes == null) {
+					throw new FileNotFoundException(name);
+				}
+				return new ByteArrayInputStream(bytes);
+			}
+		});
+		predict();
+		query = (query + 1) % QUERIES;
+		next = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (int i = 0; i < scheme.getPartitionCount(); i++) {
+			new File(directory, PositionModels.modelName(scheme, "x", i)).delete();
+			new File(directory, PositionModels.modelName(scheme, "y", i)).delete();
+		}
+		new File(directory, PositionModels.modelName(scheme, "x", 0)).getParentFile().delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	@Measurement(iterations = 20, batchSize = APPENDS)
+	@Warmup(iterations = 5, batchSize = APPENDS)
+	public int append() throws Exception {
+		return models.append(appends.get(next++));
+	}
+
+	@Benchmark
+	public double queryAfterAppend() throws Exception {
+		models.append(appends.get(0));
+		return predict();
+	}
+
+	@Benchmark
+	public double query() throws Exception {
+		return predict();
+	}
+
+	@Benchmark
+	public int save() throws Exception {
+		models.append(appends.get(0));
+		return models.save(directory);
+	}
+
+	private double predict() throws Exception {
+		return models.getX(partition).classifyInstance(queryXs[query])
+				+ models.getY(partition).classifyInstance(queryYs[query]);
+	}
+
+	private static byte[] train(Instances data) throws Exception {
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B 20 -M a"));
+		kStar.buildClassifier(data);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SerializationHelper.write(out, kStar);
+		return out.toByteArray();
+	}
+
+	/**
+	 * The first count datapoints of a synthetic walk that are in the middle partition.
+	 * The walk wanders, so it's made longer until there are enough
+	 */
+	private List<SurveyRecord> middleRecords(int count) {
+		for (int rows = count * 3; ; rows *= 2) {
+			SyntheticSession session = new SyntheticSession(rows, 42);
+			List<SurveyRecord> records = new ArrayList<SurveyRecord>(count);
+			for (int row = 0; row < rows && records.size() < count; row++) {
+				SurveyRecord record = SurveyRecord.parse(session.body(row));
+				if (scheme.partitionOf(record.x, record.y) == partition) {
+					records.add(record);
+				}
+			}
+			if (records.size() == count) {
+				return records;
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.davidmascharka.lips.benchmarks;
+
+import com.davidmascharka.lips.SurveyLogReader;
+import com.davidmascharka.lips.SurveyLogWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Size and speed of the compressed survey log against the plain text the activities
+ * write today, over a synthetic session of a million rows. Each benchmark writes or
+ * reads the whole session once.
+ *
+ * The sizes don't depend on the machine so they're printed once during setup rather
+ * than measured. Writing plain text is the baseline for writeCompressed; both include
+ * the cost of producing the timestamp like the activities do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class SurveyLogBenchmark {
+
+	static final int ROWS = 1000000;
+
+	private SyntheticSession session;
+	private byte[] compressed;
+
+	@Setup
+	public void setUp() throws IOException {
+		session = new SyntheticSession(50000, 42);
+
+		CountingOutputStream text = new CountingOutputStream();
+		writeSession(new OutputStreamWriter(text));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024 * 1024);
+		writeSession(new SurveyLogWriter(bytes, true));
+		compressed = bytes.toByteArray();
+
+		System.out.printf("%n%d rows: %d bytes as text, %d bytes compressed (%.1f%%), "
+				+ "%.1f bytes per row%n", ROWS, text.count, compressed.length,
+				100.0 * compressed.length / text.count, (double) compressed.length / ROWS);
+	}
+
+	@Benchmark
+	public long writeText() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		writeSession(new OutputStreamWriter(out));
+		return out.count;
+	}
+
+	@Benchmark
+	public long writeCompressed() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		writeSession(new SurveyLogWriter(out, true));
+		return out.count;
+	}
+
+	@Benchmark
+	public void readCompressed(Blackhole blackhole) throws IOException {
+		BufferedReader reader = new BufferedReader(new SurveyLogReader(
+				new ByteArrayInputStream(compressed)));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			blackhole.consume(line);
+		}
+		reader.close();
+	}
+
+	/**
+	 * Writes the rows the same way MainActivity.updateScanResults does
+	 */
+	private void writeSession(Writer out) {
+		PrintWriter writer = new PrintWriter(out);
+		for (int row = 0; row < ROWS; row++) {
+			writer.print(session.body(row));
+			writer.print(" %" + SyntheticSession.timestamp(row));
+			writer.print("\n\n");
+		}
+		writer.close();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.davidmascharka.lips.benchmarks;
+
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Rows that look like the ones MainActivity writes to dataset_BUILDING.txt: a surveyor
+ * walking around a 102x64 grid with 156 access points, one scan every 1.5 seconds.
+ *
+ * Holding a million rows of text would take most of a gigabyte, so only a fixed number
+ * of distinct walks are generated and rows cycle through them. The timestamp at the
+ * end of each row is added by the caller so it keeps increasing across the cycles.
+ */
+final class SyntheticSession {
+
+	static final int BSSIDS = 156;
+	static final int GRID_WIDTH = 102;
+	static final int GRID_HEIGHT = 64;
+
+	private static final long START_TIME = 1459517400000L;
+	private static final long SCAN_INTERVAL = 1500;
+
+	private final String[] bodies;
+
+	SyntheticSession(int distinctRows, long seed) {
+		Random random = new Random(seed);
+
+		float[] apX = new float[BSSIDS];
+		float[] apY = new float[BSSIDS];
+		for (int i = 0; i < BSSIDS; i++) {
+			apX[i] = random.nextFloat() * GRID_WIDTH;
+			apY[i] = random.nextFloat() * GRID_HEIGHT;
+		}
+
+		bodies = new String[distinctRows];
+		float x = GRID_WIDTH / 2;
+		float y = GRID_HEIGHT / 2;
+		float heading = 0;
+		float light = 300;
+		StringBuilder sb = new StringBuilder(1024);
+		for (int row = 0; row < distinctRows; row++) {
+			heading += (float) random.nextGaussian() * 0.3f;
+			x = Math.max(0, Math.min(GRID_WIDTH - 1, x + (float) Math.cos(heading)));
+			y = Math.max(0, Math.min(GRID_HEIGHT - 1, y + (float) Math.sin(heading)));
+			light = Math.max(0, light + (float) random.nextGaussian() * 20);
+
+			sb.setLength(0);
+			sb.append((float) random.nextGaussian() * 0.3f).append(',')
+					.append(0.2f + (float) random.nextGaussian() * 0.3f).append(',')
+					.append(9.8f + (float) random.nextGaussian() * 0.3f).append(',')
+					.append(5.3f + (float) random.nextGaussian()).append(',')
+					.append(-46.2f + (float) random.nextGaussian()).append(',')
+					.append(-42f + (float) random.nextGaussian()).append(',')
+					.append((float) Math.floor(light)).append(',')
+					.append((float) random.nextGaussian() * 0.05f).append(',')
+					.append((float) random.nextGaussian() * 0.05f).append(',')
+					.append(0.7f + (float) random.nextGaussian() * 0.05f).append(',')
+					.append(heading).append(',')
+					.append((float) random.nextGaussian() * 0.1f).append(',')
+					.append((float) random.nextGaussian() * 0.1f);
+
+			// Log distance path loss with a bit of shadowing. Anything under -90 dBm isn't
+			// heard and is written as 0 just like MainActivity does, which leaves a couple
+			// dozen access points in each scan
+			for (int i = 0; i < BSSIDS; i++) {
+				double dx = x - apX[i];
+				double dy = y - apY[i];
+				double distance = Math.sqrt(dx * dx + dy * dy) + 1;
+				int level = (int) Math.round(-40 - 40 * Math.log10(distance)
+						+ random.nextGaussian() * 3);
+				sb.append(',').append(level < -90 ? 0 : level);
+			}
+
+			sb.append(',').append(41.60300 + random.nextGaussian() * 0.00002)
+					.append(',').append(-93.65449 + random.nextGaussian() * 0.00002)
+					.append(',').append((float) (20 + random.nextInt(20)))
+					.append(',').append((float) Math.floor(x) + 0.5f)
+					.append(',').append((float) Math.floor(y) + 0.5f);
+			bodies[row] = sb.toString();
+		}
+	}
+
+	/**
+	 * Everything in a row up to the timestamp comment
+	 */
+	String body(int row) {
+		return bodies[row % bodies.length];
+	}
+
+	/**
+	 * The timestamp MainActivity would have put on a row, as text
+	 */
+	static String timestamp(int row) {
+		return new Timestamp(START_TIME + row * SCAN_INTERVAL).toString();
+	}
+}
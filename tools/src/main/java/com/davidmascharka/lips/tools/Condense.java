@@ -0,0 +1,530 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.lazy.KStar;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Shrinks the set of datapoints each partition's K* models store:
+ *
+ *   Condense [options] dataset_BUILDING.txt ASSETS_DIR
+ *
+ * K* keeps every datapoint it's trained on and compares a scan against all of them, so
+ * both the size of a model and the time to predict grow with the survey. Two ways of
+ * condensing a partition's datapoints are compared against keeping them all:
+ *
+ *   cells N  averages the datapoints in each N by N block of grid cells into one. An
+ *            access point counts as heard in the average if it was heard in at least
+ *            half of them, at the mean of the levels it was heard at
+ *   cnn D    condensed nearest neighbour. A datapoint is kept only if the closest one
+ *            already kept, by access point levels, is more than D grid cells away from
+ *            it, so the kept set still places every datapoint within D cells
+ *
+ * The models use the access points the scheme's models in ASSETS_DIR use, so condensing
+ * works on top of SelectFeatures. Every method is trained on four fifths of the survey
+ * and predicts the rest, routed to the partition each datapoint was surveyed in. For
+ * each partition it reports the datapoints kept, the reduction ratio, the serialized
+ * size of the models and how much smaller that is, the 50th percentile CPU time to
+ * predict x and y, and the mean error. The method chosen for a partition is the one
+ * that keeps the fewest datapoints with a mean error at most --tolerance worse than
+ * keeping them all. The methods and partitions are tested on a fork/join pool.
+ *
+ * With --write, each partition's chosen method is applied to all of its datapoints and
+ * the models trained on them are written over the ones in ASSETS_DIR.
+ *
+ * Options:
+ *   --threads N      pool size, the number of processors by default
+ *   --scheme NAME    5Partition by default, or the path of a partitions.txt written by
+ *                    DiscoverPartitions
+ *   --partition NAME only condense this partition of the scheme. A plain text DATASET
+ *                    is read through its DatasetIndex, seeking straight to the
+ *                    partition's datapoints
+ *   --tolerance P    how much worse the mean error may get, 0.05 (5%) by default
+ *   --seed N         seed for the held out split and the cnn order, 1 by default
+ *   --blend N        K* global blend, 20 by default
+ *   --write          write the condensed models to ASSETS_DIR
+ */
+public class Condense {
+
+	// Level given to access points that weren't heard when comparing datapoints
+	private static final float UNHEARD = -100;
+
+	private static final int[] BLOCK_SIZES = {2, 3, 4};
+	private static final float[] CNN_DISTANCES = {1, 2, 3};
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private PartitionScheme scheme = PartitionScheme.FIVE;
+	private String partitionName;
+	private double tolerance = 0.05;
+	private long seed = 1;
+	private int blend = 20;
+	private boolean write;
+	private File dataset;
+	private File assets;
+
+	private List<Method> methods;
+	private int[][] accessPoints;
+
+	public static void main(String[] args) throws Exception {
+		Condense condense = new Condense();
+		if (!condense.parse(args)) {
+			System.err.println("Usage: Condense [--threads N] [--scheme NAME|FILE] "
+					+ "[--partition NAME] [--tolerance P] [--seed N] [--blend N] [--write] "
+					+ "DATASET ASSETS_DIR");
+			System.exit(2);
+		}
+		condense.run();
+	}
+
+	private boolean parse(String[] args) throws Exception {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--scheme")) {
+					scheme = SelectFeatures.scheme(args[++i]);
+					if (scheme == null) {
+						return false;
+					}
+				} else if (args[i].equals("--partition")) {
+					partitionName = args[++i];
+				} else if (args[i].equals("--tolerance")) {
+					tolerance = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--blend")) {
+					blend = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--write")) {
+					write = true;
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 2 || threads < 1 || tolerance < 0
+				|| partitionName != null && scheme.indexOf(partitionName) < 0) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		assets = new File(files.get(1));
+		return true;
+	}
+
+	private void run() throws Exception {
+		int[] tested;
+		List<SurveyRecord> all;
+		if (partitionName == null) {
+			tested = new int[scheme.getPartitionCount()];
+			for (int p = 0; p < tested.length; p++) {
+				tested[p] = p;
+			}
+			all = PartitionedDataset.readRecords(dataset);
+		} else {
+			tested = new int[] {scheme.indexOf(partitionName)};
+			all = PartitionedDataset.readRecords(dataset, scheme, tested[0]);
+			if (all.isEmpty()) {
+				throw new IOException(dataset + " has no datapoints in " + partitionName);
+			}
+		}
+		int count = all.get(0).getAccessPointCount();
+		List<SurveyRecord> records = new ArrayList<SurveyRecord>(all.size());
+		for (SurveyRecord record : all) {
+			if (record.getAccessPointCount() == count) {
+				records.add(record);
+			}
+		}
+		System.out.printf("Read %d datapoints with %d access points from %s%n",
+				records.size(), count, dataset.getName());
+
+		PositionModels models = new PositionModels(scheme, new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				return new FileInputStream(new File(assets, name));
+			}
+		});
+		int partitions = scheme.getPartitionCount();
+		accessPoints = new int[partitions][];
+		for (int p = 0; p < partitions; p++) {
+			accessPoints[p] = models.getAccessPoints(p);
+		}
+
+		methods = new ArrayList<Method>();
+		methods.add(new Method("all", 0, 0));
+		for (int size : BLOCK_SIZES) {
+			methods.add(new Method("cells " + size, size, 0));
+		}
+		for (float distance : CNN_DISTANCES) {
+			methods.add(new Method("cnn " + (int) distance, 0, distance));
+		}
+
+		List<SurveyRecord> shuffled = new ArrayList<SurveyRecord>(records);
+		Collections.shuffle(shuffled, new Random(seed));
+		List<SurveyRecord> training = shuffled.subList(0, shuffled.size() * 4 / 5);
+		List<SurveyRecord> testing = shuffled.subList(training.size(), shuffled.size());
+
+		final List<CondenseTask> tasks = new ArrayList<CondenseTask>();
+		for (int p : tested) {
+			List<SurveyRecord> partitionTraining = inPartition(training, p);
+			List<SurveyRecord> partitionTesting = inPartition(testing, p);
+			for (Method method : methods) {
+				tasks.add(new CondenseTask(method, p, partitionTraining, partitionTesting));
+			}
+		}
+		System.out.printf("Testing %d methods on %d of the partitions of %s on %d threads%n",
+				methods.size(), tested.length, scheme.getName(), threads);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		pool.shutdown();
+
+		Method[] chosen = new Method[partitions];
+		for (int i = 0; i < tested.length; i++) {
+			int p = tested[i];
+			List<CondenseTask> results = tasks.subList(i * methods.size(),
+					(i + 1) * methods.size());
+			CondenseTask baseline = results.get(0);
+			CondenseTask best = baseline;
+			System.out.printf("%n%s, %d access points%n", scheme.getPartitionName(p),
+					accessPoints[p].length);
+			System.out.printf("  %-8s %6s %6s %8s %8s %8s %7s %10s %8s%n", "method", "rows",
+					"ratio", "KB", "saved KB", "p50 us", "speedup", "mean error", "change");
+			for (CondenseTask result : results) {
+				double change = result.meanError / baseline.meanError - 1;
+				System.out.printf("  %-8s %6d %5.1fx %8d %8d %8.0f %6.2fx %10.2f %+7.1f%%%n",
+						result.method.name, result.kept,
+						(double) baseline.kept / result.kept, result.modelBytes / 1024,
+						(baseline.modelBytes - result.modelBytes) / 1024, result.p50Micros,
+						baseline.p50Micros / result.p50Micros, result.meanError, 100 * change);
+				if (change <= tolerance && result.kept < best.kept) {
+					best = result;
+				}
+			}
+			chosen[p] = best.method;
+			System.out.printf("  using %s%n", best.method.name);
+		}
+
+		if (write) {
+			for (int p : tested) {
+				List<SurveyRecord> condensed = chosen[p].condense(inPartition(records, p),
+						accessPoints[p]);
+				save(PositionModels.modelName(scheme, "x", p), train(FingerprintInstances
+						.X_POSITION, condensed, accessPoints[p]));
+				save(PositionModels.modelName(scheme, "y", p), train(FingerprintInstances
+						.Y_POSITION, condensed, accessPoints[p]));
+			}
+			System.out.printf("%nWrote %d models to %s%n", 2 * tested.length,
+					new File(assets, PositionModels.modelName(scheme, "x", 0)).getParent());
+		}
+	}
+
+	private List<SurveyRecord> inPartition(List<SurveyRecord> rows, int partition) {
+		List<SurveyRecord> in = new ArrayList<SurveyRecord>();
+		for (SurveyRecord record : rows) {
+			if (scheme.partitionOf(record) == partition) {
+				in.add(record);
+			}
+		}
+		return in;
+	}
+
+	private KStar train(String classAttribute, List<SurveyRecord> rows, int[] selected)
+			throws Exception {
+		Instances data = FingerprintInstances.position(classAttribute, selected, rows.size());
+		for (SurveyRecord record : rows) {
+			data.add(FingerprintInstances.toInstance(record, data, scheme, selected));
+		}
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B " + blend + " -M a"));
+		kStar.buildClassifier(data);
+		return kStar;
+	}
+
+	private void save(String name, KStar model) throws Exception {
+		File file = new File(assets, name);
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		SerializationHelper.write(temporary.getPath(), model);
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+
+	/**
+	 * One way of condensing a partition's datapoints. Neither a block size nor a
+	 * distance keeps them all
+	 */
+	private class Method {
+		final String name;
+		final int blockSize;
+		final float distance;
+
+		Method(String name, int blockSize, float distance) {
+			this.name = name;
+			this.blockSize = blockSize;
+			this.distance = distance;
+		}
+
+		List<SurveyRecord> condense(List<SurveyRecord> rows, int[] selected) {
+			if (blockSize > 0) {
+				return averageBlocks(rows, blockSize);
+			} else if (distance > 0) {
+				return nearestNeighbour(rows, selected, distance);
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Replaces the datapoints in each size by size block of grid cells with their average
+	 */
+	private static List<SurveyRecord> averageBlocks(List<SurveyRecord> rows, int size) {
+		Map<Long, List<SurveyRecord>> blocks = new LinkedHashMap<Long, List<SurveyRecord>>();
+		for (SurveyRecord record : rows) {
+			long key = ((long) Math.floor(record.x / size) << 32)
+					| ((long) Math.floor(record.y / size) & 0xffffffffL);
+			List<SurveyRecord> block = blocks.get(key);
+			if (block == null) {
+				block = new ArrayList<SurveyRecord>();
+				blocks.put(key, block);
+			}
+			block.add(record);
+		}
+		List<SurveyRecord> averages = new ArrayList<SurveyRecord>(blocks.size());
+		for (List<SurveyRecord> block : blocks.values()) {
+			averages.add(block.size() == 1 ? block.get(0) : average(block));
+		}
+		return averages;
+	}
+
+	private static SurveyRecord average(List<SurveyRecord> block) {
+		SurveyRecord first = block.get(0);
+		float[] sensors = new float[first.sensors.length];
+		int[] levels = new int[first.levels.length];
+		double latitude = 0;
+		double longitude = 0;
+		double accuracy = 0;
+		int located = 0;
+		double x = 0;
+		double y = 0;
+		for (SurveyRecord record : block) {
+			for (int i = 0; i < sensors.length; i++) {
+				sensors[i] += record.sensors[i] / block.size();
+			}
+			if (!Double.isNaN(record.latitude)) {
+				latitude += record.latitude;
+				longitude += record.longitude;
+				accuracy += record.accuracy;
+				located++;
+			}
+			x += record.x;
+			y += record.y;
+		}
+		for (int a = 0; a < levels.length; a++) {
+			int heard = 0;
+			int sum = 0;
+			for (SurveyRecord record : block) {
+				if (record.levels[a] != 0) {
+					heard++;
+					sum += record.levels[a];
+				}
+			}
+			if (heard * 2 >= block.size()) {
+				levels[a] = Math.round((float) sum / heard);
+			}
+		}
+		if (located == 0) {
+			return SurveyRecord.datapoint(sensors, levels, Double.NaN, Double.NaN, Float.NaN,
+					(float) (x / block.size()), (float) (y / block.size()), first.time);
+		}
+		return SurveyRecord.datapoint(sensors, levels, latitude / located,
+				longitude / located, (float) (accuracy / located), (float) (x / block.size()),
+				(float) (y / block.size()), first.time);
+	}
+
+	/**
+	 * Hart's condensed nearest neighbour, adapted to positions: passes over the datapoints
+	 * keeping each one whose closest kept datapoint is more than distance cells from it,
+	 * until a pass keeps nothing new
+	 */
+	private List<SurveyRecord> nearestNeighbour(List<SurveyRecord> rows, int[] selected,
+			float distance) {
+		List<SurveyRecord> order = new ArrayList<SurveyRecord>(rows);
+		Collections.shuffle(order, new Random(seed));
+		float[][] features = new float[order.size()][selected.length];
+		for (int i = 0; i < order.size(); i++) {
+			int[] levels = order.get(i).levels;
+			for (int j = 0; j < selected.length; j++) {
+				int level = levels[selected[j]];
+				features[i][j] = level == 0 ? UNHEARD : level;
+			}
+		}
+
+		boolean[] kept = new boolean[order.size()];
+		int[] keptIndexes = new int[order.size()];
+		int keptCount = 1;
+		kept[0] = true;
+		boolean added;
+		do {
+			added = false;
+			for (int i = 0; i < order.size(); i++) {
+				if (kept[i]) {
+					continue;
+				}
+				int closest = -1;
+				float closestDistance = Float.MAX_VALUE;
+				for (int k = 0; k < keptCount; k++) {
+					float[] other = features[keptIndexes[k]];
+					float d = 0;
+					for (int j = 0; j < other.length && d < closestDistance; j++) {
+						float difference = features[i][j] - other[j];
+						d += difference * difference;
+					}
+					if (d < closestDistance) {
+						closest = keptIndexes[k];
+						closestDistance = d;
+					}
+				}
+				SurveyRecord record = order.get(i);
+				SurveyRecord neighbour = order.get(closest);
+				if (Math.hypot(record.x - neighbour.x, record.y - neighbour.y) > distance) {
+					kept[i] = true;
+					keptIndexes[keptCount++] = i;
+					added = true;
+				}
+			}
+		} while (added);
+
+		List<SurveyRecord> condensed = new ArrayList<SurveyRecord>(keptCount);
+		for (int i = 0; i < order.size(); i++) {
+			if (kept[i]) {
+				condensed.add(order.get(i));
+			}
+		}
+		return condensed;
+	}
+
+	/**
+	 * Condenses one partition's training datapoints one way and predicts its held out
+	 * datapoints from them
+	 */
+	@SuppressWarnings("serial")
+	private class CondenseTask extends RecursiveAction {
+		final Method method;
+		final int partition;
+		final List<SurveyRecord> training;
+		final List<SurveyRecord> testing;
+
+		int kept;
+		long modelBytes;
+		double p50Micros;
+		double meanError;
+
+		CondenseTask(Method method, int partition, List<SurveyRecord> training,
+				List<SurveyRecord> testing) {
+			this.method = method;
+			this.partition = partition;
+			this.training = training;
+			this.testing = testing;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				test();
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't test " + method.name + " on "
+						+ scheme.getPartitionName(partition), e);
+			}
+		}
+
+		private void test() throws Exception {
+			int[] selected = accessPoints[partition];
+			List<SurveyRecord> condensed = method.condense(training, selected);
+			kept = condensed.size();
+			KStar xModel = train(FingerprintInstances.X_POSITION, condensed, selected);
+			KStar yModel = train(FingerprintInstances.Y_POSITION, condensed, selected);
+
+			CrossValidate.CountingOutputStream counter = new CrossValidate.CountingOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(counter);
+			out.writeObject(xModel);
+			out.writeObject(yModel);
+			out.close();
+			modelBytes = counter.count;
+
+			Instances xHeader = FingerprintInstances.position(FingerprintInstances.X_POSITION,
+					selected, 0);
+			Instances yHeader = FingerprintInstances.position(FingerprintInstances.Y_POSITION,
+					selected, 0);
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+			long[] latencies = new long[testing.size()];
+			double sum = 0;
+			for (int i = 0; i < testing.size(); i++) {
+				SurveyRecord record = testing.get(i);
+				long before = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+				double x = xModel.classifyInstance(FingerprintInstances.toInstance(record,
+						xHeader, scheme, selected));
+				double y = yModel.classifyInstance(FingerprintInstances.toInstance(record,
+						yHeader, scheme, selected));
+				latencies[i] = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime())
+						- before;
+				sum += Math.hypot(x - record.x, y - record.y);
+			}
+			Arrays.sort(latencies);
+			meanError = sum / testing.size();
+			p50Micros = latencies[Math.max(0, (int) Math.ceil(0.5 * latencies.length) - 1)]
+					/ 1e3;
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.KStar;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Compares the partition schemes TrackerActivity could use by k-fold cross validation
+ * on a survey:
+ *
+ *   CrossValidate [options] dataset_BUILDING.txt
+ *
+ * Each fold of each scheme trains the same kind of models TrainModels does, a random
+ * forest to pick the partition (none for Full) and K* for x and y in each partition,
+ * then predicts every held out datapoint the way TrackerActivity does. The folds are
+ * trained and tested at the same time on a fork/join pool.
+ *
+ * For each scheme it reports the mean, median and 95th percentile distance between
+ * the predicted and surveyed positions in grid cells, how often the right partition
+ * was picked, the 50th and 95th percentile time to predict one position, and the
+ * serialized size of the models, which for K* includes every training datapoint.
+ * Prediction times are the predicting thread's CPU time so folds running alongside
+ * each other don't inflate them. The report is also written as JSON.
+ *
+ * Options:
+ *   --folds N      number of folds, 10 by default
+ *   --threads N    pool size, the number of processors by default
+ *   --seed N       seed for shuffling the datapoints into folds, 1 by default
+ *   --schemes A,B  schemes to compare, Full,3Partition,5Partition,7Partition by default
+ *   --trees N      trees in each random forest (30, as shipped)
+ *   --blend N      K* global blend, 20 by default
+ *   --report FILE  where to write the JSON report, crossvalidation.json by default
+ */
+public class CrossValidate {
+
+	private int folds = 10;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long seed = 1;
+	private List<PartitionScheme> schemes = PartitionScheme.SCHEMES;
+	private int trees = 30;
+	private int blend = 20;
+	private File report = new File("crossvalidation.json");
+	private File dataset;
+
+	private List<SurveyRecord> records;
+	private int accessPoints;
+
+	public static void main(String[] args) throws Exception {
+		CrossValidate validate = new CrossValidate();
+		if (!validate.parse(args)) {
+			System.err.println("Usage: CrossValidate [--folds N] [--threads N] [--seed N] "
+					+ "[--schemes A,B] [--trees N] [--blend N] [--report FILE] DATASET");
+			System.exit(2);
+		}
+		validate.run();
+	}
+
+	private boolean parse(String[] args) {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--folds")) {
+					folds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--schemes")) {
+					schemes = new ArrayList<PartitionScheme>();
+					for (String name : args[++i].split(",")) {
+						PartitionScheme scheme = PartitionScheme.forName(name);
+						if (scheme == null) {
+							return false;
+						}
+						schemes.add(scheme);
+					}
+				} else if (args[i].equals("--trees")) {
+					trees = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--blend")) {
+					blend = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--report")) {
+					report = new File(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 1 || folds < 2 || threads < 1) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		return true;
+	}
+
+	private void run() throws Exception {
+		long start = System.nanoTime();
+		List<SurveyRecord> all = PartitionedDataset.readRecords(dataset);
+		accessPoints = all.get(0).getAccessPointCount();
+		records = new ArrayList<SurveyRecord>(all.size());
+		for (SurveyRecord record : all) {
+			if (record.getAccessPointCount() == accessPoints) {
+				records.add(record);
+			}
+		}
+		System.out.printf("Read %d datapoints with %d access points from %s in %.1f s%n",
+				records.size(), accessPoints, dataset.getName(),
+				(System.nanoTime() - start) / 1e9);
+		if (records.size() < all.size()) {
+			System.out.printf("Skipped %d datapoints with a different number of access "
+					+ "points%n", all.size() - records.size());
+		}
+		if (records.size() < folds) {
+			throw new IllegalStateException("Fewer datapoints than folds");
+		}
+		Collections.shuffle(records, new Random(seed));
+
+		final List<FoldTask> tasks = new ArrayList<FoldTask>();
+		for (PartitionScheme scheme : schemes) {
+			for (int fold = 0; fold < folds; fold++) {
+				tasks.add(new FoldTask(scheme, fold));
+			}
+		}
+		System.out.printf("Cross validating %d schemes with %d folds on %d threads%n",
+				schemes.size(), folds, threads);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		start = System.nanoTime();
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		pool.shutdown();
+		System.out.printf("Done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+		List<SchemeResult> results = new ArrayList<SchemeResult>();
+		for (PartitionScheme scheme : schemes) {
+			List<FoldTask> schemeTasks = new ArrayList<FoldTask>();
+			for (FoldTask task : tasks) {
+				if (task.scheme == scheme) {
+					schemeTasks.add(task);
+				}
+			}
+			results.add(new SchemeResult(scheme, schemeTasks));
+		}
+
+		System.out.printf("%n  %-11s %10s %10s %10s %10s %12s %12s %12s%n", "scheme",
+				"mean err", "median", "p95 err", "partition", "p50 us", "p95 us",
+				"model KB");
+		for (SchemeResult result : results) {
+			System.out.printf("  %-11s %10.2f %10.2f %10.2f %9.1f%% %12.0f %12.0f %12.0f%n",
+					result.scheme.getName(), result.meanError, result.medianError,
+					result.p95Error, 100 * result.partitionAccuracy, result.p50Micros,
+					result.p95Micros, result.modelBytes / 1024.0);
+		}
+
+		writeReport(results);
+		System.out.printf("%nWrote %s%n", report);
+	}
+
+	private void writeReport(List<SchemeResult> results) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(report), "UTF-8"));
+		try {
+			out.println("{");
+			out.printf(Locale.US, "  \"dataset\": \"%s\",%n", escape(dataset.getName()));
+			out.printf(Locale.US, "  \"datapoints\": %d,%n", records.size());
+			out.printf(Locale.US, "  \"accessPoints\": %d,%n", accessPoints);
+			out.printf(Locale.US, "  \"folds\": %d,%n", folds);
+			out.printf(Locale.US, "  \"seed\": %d,%n", seed);
+			out.printf(Locale.US, "  \"trees\": %d,%n", trees);
+			out.printf(Locale.US, "  \"blend\": %d,%n", blend);
+			out.println("  \"schemes\": [");
+			for (int i = 0; i < results.size(); i++) {
+				SchemeResult result = results.get(i);
+				out.println("    {");
+				out.printf(Locale.US, "      \"name\": \"%s\",%n", result.scheme.getName());
+				out.printf(Locale.US, "      \"partitions\": %d,%n",
+						result.scheme.getPartitionCount());
+				out.printf(Locale.US, "      \"meanError\": %.4f,%n", result.meanError);
+				out.printf(Locale.US, "      \"medianError\": %.4f,%n", result.medianError);
+				out.printf(Locale.US, "      \"p95Error\": %.4f,%n", result.p95Error);
+				out.printf(Locale.US, "      \"partitionAccuracy\": %.4f,%n",
+						result.partitionAccuracy);
+				out.printf(Locale.US, "      \"latencyP50Micros\": %.1f,%n", result.p50Micros);
+				out.printf(Locale.US, "      \"latencyP95Micros\": %.1f,%n", result.p95Micros);
+				out.printf(Locale.US, "      \"modelBytes\": %d,%n", result.modelBytes);
+				out.printf(Locale.US, "      \"trainSeconds\": %.3f%n", result.trainSeconds);
+				out.println(i < results.size() - 1 ? "    }," : "    }");
+			}
+			out.println("  ]");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Couldn't write " + report);
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private Classifier kStar() throws Exception {
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B " + blend + " -M a"));
+		return kStar;
+	}
+
+	/**
+	 * Trains one scheme's models on every fold but one and predicts the datapoints in
+	 * that one
+	 */
+	@SuppressWarnings("serial")
+	private class FoldTask extends RecursiveAction {
+		final PartitionScheme scheme;
+		final int fold;
+
+		double[] errors;
+		long[] latencies;
+		int partitionsCorrect;
+		long modelBytes;
+		long trainNanos;
+
+		FoldTask(PartitionScheme scheme, int fold) {
+			this.scheme = scheme;
+			this.fold = fold;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				validate();
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't cross validate " + scheme.getName()
+						+ " fold " + fold, e);
+			}
+		}
+
+		private void validate() throws Exception {
+			PartitionedDataset training = new PartitionedDataset(scheme, accessPoints);
+			List<SurveyRecord> testing = new ArrayList<SurveyRecord>();
+			for (int i = 0; i < records.size(); i++) {
+				if (i % folds == fold) {
+					testing.add(records.get(i));
+				} else {
+					training.add(records.get(i));
+				}
+			}
+
+			int partitions = scheme.getPartitionCount();
+			Classifier[] xModels = new Classifier[partitions];
+			Classifier[] yModels = new Classifier[partitions];
+			RandomForest forest = null;
+
+			long start = System.nanoTime();
+			if (partitions > 1) {
+				forest = new RandomForest();
+				forest.setOptions(Utils.splitOptions("-I " + trees + " -K 0 -S 1"));
+				forest.buildClassifier(training.getPartitions());
+			}
+			for (int p = 0; p < partitions; p++) {
+				if (training.getX(p).numInstances() == 0) {
+					throw new IllegalStateException("No datapoints to train "
+							+ scheme.getPartitionName(p));
+				}
+				xModels[p] = kStar();
+				xModels[p].buildClassifier(training.getX(p));
+				yModels[p] = kStar();
+				yModels[p].buildClassifier(training.getY(p));
+			}
+			trainNanos = System.nanoTime() - start;
+
+			CountingOutputStream counter = new CountingOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(counter);
+			if (forest != null) {
+				out.writeObject(forest);
+			}
+			for (int p = 0; p < partitions; p++) {
+				out.writeObject(xModels[p]);
+				out.writeObject(yModels[p]);
+			}
+			out.close();
+			modelBytes = counter.count;
+
+			// Every partition's position data sets have the same attributes
+			Instances partitionHeader = training.getPartitions();
+			Instances xHeader = training.getX(0);
+			Instances yHeader = training.getY(0);
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+
+			errors = new double[testing.size()];
+			latencies = new long[testing.size()];
+			for (int i = 0; i < testing.size(); i++) {
+				SurveyRecord record = testing.get(i);
+				Instance partitionInstance = FingerprintInstances.toInstance(record,
+						partitionHeader, scheme);
+				Instance xInstance = FingerprintInstances.toInstance(record, xHeader, scheme);
+				Instance yInstance = FingerprintInstances.toInstance(record, yHeader, scheme);
+
+				long before = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+				int partition = forest == null ? 0
+						: (int) forest.classifyInstance(partitionInstance);
+				double x = xModels[partition].classifyInstance(xInstance);
+				double y = yModels[partition].classifyInstance(yInstance);
+				latencies[i] = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime())
+						- before;
+
+				errors[i] = Math.hypot(x - record.x, y - record.y);
+				if (partition == scheme.partitionOf(record)) {
+					partitionsCorrect++;
+				}
+			}
+			System.out.printf("  %s fold %d done%n", scheme.getName(), fold + 1);
+		}
+	}
+
+	/**
+	 * Every fold of one scheme put together
+	 */
+	private static class SchemeResult {
+		final PartitionScheme scheme;
+		final double meanError;
+		final double medianError;
+		final double p95Error;
+		final double partitionAccuracy;
+		final double p50Micros;
+		final double p95Micros;
+		final long modelBytes;
+		final double trainSeconds;
+
+		SchemeResult(PartitionScheme scheme, List<FoldTask> folds) {
+			this.scheme = scheme;
+			int count = 0;
+			for (FoldTask fold : folds) {
+				count += fold.errors.length;
+			}
+			double[] errors = new double[count];
+			long[] latencies = new long[count];
+			int next = 0;
+			int correct = 0;
+			long bytes = 0;
+			long trainNanos = 0;
+			for (FoldTask fold : folds) {
+				System.arraycopy(fold.errors, 0, errors, next, fold.errors.length);
+				System.arraycopy(fold.latencies, 0, latencies, next, fold.latencies.length);
+				next += fold.errors.length;
+				correct += fold.partitionsCorrect;
+				bytes += fold.modelBytes;
+				trainNanos += fold.trainNanos;
+			}
+			Arrays.sort(errors);
+			Arrays.sort(latencies);
+
+			double sum = 0;
+			for (double error : errors) {
+				sum += error;
+			}
+			meanError = sum / count;
+			medianError = errors[percentile(count, 50)];
+			p95Error = errors[percentile(count, 95)];
+			partitionAccuracy = (double) correct / count;
+			p50Micros = latencies[percentile(count, 50)] / 1e3;
+			p95Micros = latencies[percentile(count, 95)] / 1e3;
+			modelBytes = bytes / folds.size();
+			trainSeconds = trainNanos / 1e9 / folds.size();
+		}
+
+		/**
+		 * @return the index of the nearest rank percentile in a sorted array
+		 */
+		private static int percentile(int count, int percent) {
+			return Math.max(0, (int) Math.ceil(percent / 100.0 * count) - 1);
+		}
+	}
+
+	/**
+	 * Throws away everything written to it and just counts the bytes
+	 */
+	static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
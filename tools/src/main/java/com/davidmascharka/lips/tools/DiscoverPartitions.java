@@ -0,0 +1,321 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.ClusteredPartitionScheme;
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Finds partitions by clustering a survey instead of using the hand-drawn ones, and
+ * trains the models for them:
+ *
+ *   DiscoverPartitions [options] dataset_BUILDING.txt ASSETS_DIR
+ *
+ * Datapoints are clustered with k-means on their access point levels and positions (see
+ * ClusteredPartitionScheme) for every k in a range. More partitions means each K* model
+ * stores and scans fewer datapoints, but the random forest has more chances to send a
+ * scan to the wrong one. For each k a forest is trained on four fifths of the survey and
+ * scored on how often it picks the right partition for the rest. The k chosen is the one
+ * with the smallest largest partition among those that route at least --min-accuracy of
+ * the held out scans correctly, or the best router if none do. A k that leaves a
+ * partition without any datapoints is never chosen.
+ *
+ * The chosen partitions are written to ASSETS_DIR/learned/partitions.txt, and the forest
+ * and position models are trained on the whole survey and written next to them.
+ * TrackerActivity uses them in place of assets/5partition when they're there.
+ *
+ * Options:
+ *   --threads N            pool size, the number of processors by default
+ *   --k MIN-MAX            range of partition counts to try, 2-10 by default
+ *   --min-accuracy P       routing accuracy a partitioning needs, 0.95 by default
+ *   --coordinate-weight W  how much position counts against signal levels, 1 by default
+ *   --seed N               seed for k-means and the held out split, 1 by default
+ *   --trees N              trees in the random forest (30, as shipped)
+ *   --blend N              K* global blend, 20 by default
+ */
+public class DiscoverPartitions {
+
+	private static final int MAX_ITERATIONS = 100;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int minK = 2;
+	private int maxK = 10;
+	private double minAccuracy = 0.95;
+	private float coordinateWeight = 1;
+	private long seed = 1;
+	private int trees = 30;
+	private int blend = 20;
+	private File dataset;
+	private File assets;
+
+	private List<SurveyRecord> records;
+	private int accessPoints;
+	private List<SurveyRecord> training;
+	private List<SurveyRecord> testing;
+
+	public static void main(String[] args) throws Exception {
+		DiscoverPartitions discover = new DiscoverPartitions();
+		if (!discover.parse(args)) {
+			System.err.println("Usage: DiscoverPartitions [--threads N] [--k MIN-MAX] "
+					+ "[--min-accuracy P] [--coordinate-weight W] [--seed N] [--trees N] "
+					+ "[--blend N] DATASET ASSETS_DIR");
+			System.exit(2);
+		}
+		discover.run();
+	}
+
+	private boolean parse(String[] args) {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--k")) {
+					String[] range = args[++i].split("-");
+					minK = Integer.parseInt(range[0]);
+					maxK = Integer.parseInt(range[range.length - 1]);
+				} else if (args[i].equals("--min-accuracy")) {
+					minAccuracy = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--coordinate-weight")) {
+					coordinateWeight = Float.parseFloat(args[++i]);
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--trees")) {
+					trees = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--blend")) {
+					blend = Integer.parseInt(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 2 || threads < 1 || minK < 2 || maxK < minK) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		assets = new File(files.get(1));
+		return true;
+	}
+
+	private void run() throws Exception {
+		List<SurveyRecord> all = PartitionedDataset.readRecords(dataset);
+		accessPoints = all.get(0).getAccessPointCount();
+		records = new ArrayList<SurveyRecord>(all.size());
+		for (SurveyRecord record : all) {
+			if (record.getAccessPointCount() == accessPoints) {
+				records.add(record);
+			}
+		}
+		System.out.printf("Read %d datapoints with %d access points from %s%n",
+				records.size(), accessPoints, dataset.getName());
+
+		List<SurveyRecord> shuffled = new ArrayList<SurveyRecord>(records);
+		Collections.shuffle(shuffled, new Random(seed));
+		training = shuffled.subList(0, shuffled.size() * 4 / 5);
+		testing = shuffled.subList(training.size(), shuffled.size());
+
+		float[][] points = new float[records.size()][];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new float[ClusteredPartitionScheme.featureCount(accessPoints)];
+			ClusteredPartitionScheme.features(records.get(i), coordinateWeight, points[i]);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		KMeans kMeans = new KMeans(points, pool);
+
+		System.out.printf("%n  %-10s %6s %8s %8s %10s %8s%n", "partitions", "passes", "largest",
+				"smallest", "routing", "seconds");
+		Candidate shipped = evaluate(PartitionScheme.FIVE, 0, 0);
+		print("5 (shipped)", shipped);
+
+		Candidate best = null;
+		for (int k = minK; k <= maxK; k++) {
+			long start = System.nanoTime();
+			KMeans.Result result = kMeans.cluster(k, seed, MAX_ITERATIONS);
+			Candidate candidate = evaluate(scheme(result), result.iterations,
+					System.nanoTime() - start);
+			print(Integer.toString(k), candidate);
+			// An empty partition would have no datapoints to train its models on
+			if (candidate.smallest > 0
+					&& (best == null || candidate.isBetterThan(best, minAccuracy))) {
+				best = candidate;
+			}
+		}
+		pool.shutdown();
+		if (best == null) {
+			System.err.println("Every partition count left a partition without datapoints");
+			System.exit(1);
+		}
+		System.out.printf("%nUsing %d partitions%n", best.scheme.getPartitionCount());
+
+		PartitionedDataset data = new PartitionedDataset(best.scheme, accessPoints);
+		for (SurveyRecord record : records) {
+			data.add(record);
+		}
+		List<TrainModels.TrainingTask> tasks = TrainModels.createTasks(data, trees, blend,
+				threads);
+		TrainModels.report(tasks, TrainModels.train(tasks, threads));
+
+		File output = new File(assets, ClusteredPartitionScheme.FILE_NAME).getParentFile();
+		File[] stale = output.listFiles();
+		if (stale != null) {
+			for (File file : stale) {
+				if (file.getName().startsWith("model_")) {
+					file.delete();
+				}
+			}
+		}
+		TrainModels.write(tasks, assets);
+		OutputStream out = new FileOutputStream(new File(assets,
+				ClusteredPartitionScheme.FILE_NAME));
+		try {
+			((ClusteredPartitionScheme) best.scheme).write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The clusters as partitions, bounded by the rectangle around their datapoints
+	 */
+	private ClusteredPartitionScheme scheme(KMeans.Result result) {
+		int k = result.centroids.length;
+		float[][] bounds = new float[k][];
+		for (int c = 0; c < k; c++) {
+			bounds[c] = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, 0, 0};
+		}
+		for (int i = 0; i < records.size(); i++) {
+			SurveyRecord record = records.get(i);
+			float[] b = bounds[result.assignments[i]];
+			b[0] = Math.min(b[0], (float) Math.floor(record.x));
+			b[1] = Math.min(b[1], (float) Math.floor(record.y));
+			b[2] = Math.max(b[2], (float) Math.floor(record.x) + 1);
+			b[3] = Math.max(b[3], (float) Math.floor(record.y) + 1);
+		}
+		for (float[] b : bounds) {
+			if (b[0] > b[2]) {
+				b[0] = b[1] = 0;
+			}
+		}
+		return new ClusteredPartitionScheme(accessPoints, coordinateWeight,
+				result.centroids, bounds);
+	}
+
+	/**
+	 * Trains a forest to pick the partition on the training datapoints and scores it
+	 * on the rest
+	 */
+	private Candidate evaluate(PartitionScheme scheme, int iterations, long nanos)
+			throws Exception {
+		int[] sizes = new int[scheme.getPartitionCount()];
+		for (SurveyRecord record : records) {
+			sizes[scheme.partitionOf(record)]++;
+		}
+
+		Instances train = FingerprintInstances.partition(scheme, accessPoints,
+				training.size());
+		for (SurveyRecord record : training) {
+			train.add(FingerprintInstances.toInstance(record, train, scheme));
+		}
+		long start = System.nanoTime();
+		RandomForest forest = new RandomForest();
+		forest.setOptions(Utils.splitOptions("-I " + trees + " -K 0 -S 1 -num-slots "
+				+ threads));
+		forest.buildClassifier(train);
+
+		int correct = 0;
+		for (SurveyRecord record : testing) {
+			int partition = scheme.partitionOf(record);
+			if ((int) forest.classifyInstance(FingerprintInstances.toInstance(record, train,
+					scheme)) == partition) {
+				correct++;
+			}
+		}
+		return new Candidate(scheme, sizes, iterations, (double) correct / testing.size(),
+				nanos + System.nanoTime() - start);
+	}
+
+	private static void print(String label, Candidate candidate) {
+		System.out.printf("  %-10s %6d %8d %8d %9.1f%% %8.1f%n", label, candidate.iterations,
+				candidate.largest, candidate.smallest, 100 * candidate.accuracy,
+				candidate.nanos / 1e9);
+	}
+
+	private static class Candidate {
+		final PartitionScheme scheme;
+		final int[] sizes;
+		final int iterations;
+		final double accuracy;
+		final long nanos;
+		final int largest;
+		final int smallest;
+
+		Candidate(PartitionScheme scheme, int[] sizes, int iterations, double accuracy,
+				long nanos) {
+			this.scheme = scheme;
+			this.sizes = sizes;
+			this.iterations = iterations;
+			this.accuracy = accuracy;
+			this.nanos = nanos;
+			int largest = 0;
+			int smallest = Integer.MAX_VALUE;
+			for (int size : sizes) {
+				largest = Math.max(largest, size);
+				smallest = Math.min(smallest, size);
+			}
+			this.largest = largest;
+			this.smallest = smallest;
+		}
+
+		/**
+		 * Good enough routing first, then the smallest largest partition, since that's
+		 * the K* model that takes longest to query
+		 */
+		boolean isBetterThan(Candidate other, double minAccuracy) {
+			boolean good = accuracy >= minAccuracy;
+			boolean otherGood = other.accuracy >= minAccuracy;
+			if (good != otherGood) {
+				return good;
+			}
+			if (!good) {
+				return accuracy > other.accuracy;
+			}
+			return largest < other.largest;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.SurveyLogWriter;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffSaver;
+import weka.core.converters.Saver;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Writes a survey of a made up building, as big as needed, for trying the tools and
+ * benchmarks at a scale the real survey doesn't reach:
+ *
+ *   GenerateSurvey [options] DATASET
+ *
+ * The access points and datapoints come from SyntheticSurvey and DATASET is written the
+ * way MainActivity writes dataset_BUILDING.txt, so everything that reads a survey reads
+ * it. Datapoints are made in chunks on all the threads and written in order as they're
+ * done, with only a few chunks held at once, so a million datapoints with ten thousand
+ * access points needs no more memory than a thousand. The same seed gives the same file
+ * whatever the number of threads.
+ *
+ * Options:
+ *   --width N        floor width in cells, 102 like the real building by default
+ *   --height N       floor height in cells, 64 by default
+ *   --aps N          access points, 159 by default
+ *   --points N       datapoints, 10000 by default
+ *   --exponent E     path loss exponent, 3 by default
+ *   --shadowing DB   standard deviation of the shadowing, 4 dB by default
+ *   --seed N         1 by default
+ *   --threads N      the number of processors by default
+ *   --compress       write the compressed format of SurveyLogWriter instead
+ *   --arff FILE      also write the datapoints to FILE as the WEKA instances the x
+ *                    models are trained on
+ */
+public class GenerateSurvey {
+
+	// Roughly how many bytes of text a chunk of datapoints comes to
+	private static final int CHUNK_BYTES = 1 << 22;
+
+	private int width = 102;
+	private int height = 64;
+	private int accessPoints = 159;
+	private long points = 10000;
+	private double exponent = 3;
+	private double shadowing = 4;
+	private long seed = 1;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean compress;
+	private File arff;
+	private File dataset;
+
+	public static void main(String[] args) throws Exception {
+		GenerateSurvey generate = new GenerateSurvey();
+		if (!generate.parse(args)) {
+			System.err.println("Usage: GenerateSurvey [--width N] [--height N] [--aps N] "
+					+ "[--points N] [--exponent E] [--shadowing DB] [--seed N] [--threads N] "
+					+ "[--compress] [--arff FILE] DATASET");
+			System.exit(2);
+		}
+		generate.run();
+	}
+
+	private boolean parse(String[] args) {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--width")) {
+					width = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--height")) {
+					height = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--aps")) {
+					accessPoints = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--points")) {
+					points = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--exponent")) {
+					exponent = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--shadowing")) {
+					shadowing = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--compress")) {
+					compress = true;
+				} else if (args[i].equals("--arff")) {
+					arff = new File(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 1 || width < 1 || height < 1 || accessPoints < 1 || points < 0
+				|| exponent <= 0 || shadowing < 0 || threads < 1) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		return true;
+	}
+
+	private void run() throws Exception {
+		final SyntheticSurvey survey = new SyntheticSurvey(width, height, accessPoints,
+				exponent, shadowing, seed);
+		final Instances header = arff == null ? null : FingerprintInstances.position(
+				FingerprintInstances.X_POSITION, accessPoints, 0);
+		// A level is a few characters of text but a whole double in an instance
+		final int chunk = (int) Math.max(1, Math.min(4096,
+				CHUNK_BYTES / (accessPoints * (arff == null ? 3L : 11L) + 200)));
+
+		Writer out = compress ? SurveyLogWriter.open(dataset)
+				: new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dataset)));
+		ArffSaver saver = null;
+		if (arff != null) {
+			saver = new ArffSaver();
+			saver.setRetrieval(Saver.INCREMENTAL);
+			saver.setInstances(header);
+			saver.setFile(arff);
+		}
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		try {
+			out.write("%Data collected by GenerateSurvey --width " + width + " --height "
+					+ height + " --aps " + accessPoints + " --exponent " + exponent
+					+ " --shadowing " + shadowing + " --seed " + seed + "\n"
+					+ "%Format of data: Accelerometer X, Accelerometer Y, Accelerometer Z, "
+					+ "Magnetic X, Magnetic Y, Magnetic Z, Light, Rotation X, Rotation Y, "
+					+ "Rotation Z, Orientation X, Orientation Y, Orientation Z, WIFI NETWORKS "
+					+ "BSSID, Frequency, Signal level, Latitude, Longitude\n\n\n");
+			long next = 0;
+			while (next < points || !pending.isEmpty()) {
+				// Keep every thread busy without making chunks faster than they're written
+				while (next < points && pending.size() < 2 * threads) {
+					final long from = next;
+					final int count = (int) Math.min(chunk, points - next);
+					pending.add(pool.submit(new Callable<Chunk>() {
+						@Override
+						public Chunk call() {
+							return make(survey, header, from, count);
+						}
+					}));
+					next += count;
+				}
+				Chunk done = pending.poll().get();
+				out.write(done.text.toString());
+				if (saver != null) {
+					for (Instance instance : done.instances) {
+						saver.writeIncremental(instance);
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			out.close();
+		}
+		if (saver != null) {
+			saver.writeIncremental(null);
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Wrote %d datapoints with %d access points to %s in %.1f s on %d "
+				+ "threads, %.0f datapoints/s, %d MB%n", points, accessPoints, dataset,
+				seconds, threads, points / seconds, dataset.length() >> 20);
+	}
+
+	private static Chunk make(SyntheticSurvey survey, Instances header, long from, int count) {
+		Chunk chunk = new Chunk();
+		for (long n = from; n < from + count; n++) {
+			SurveyRecord record = survey.record(n);
+			SyntheticSurvey.appendRow(chunk.text, record);
+			chunk.text.append("\n\n");
+			if (header != null) {
+				chunk.instances.add(FingerprintInstances.toInstance(record, header, null));
+			}
+		}
+		return chunk;
+	}
+
+	private static class Chunk {
+		final StringBuilder text = new StringBuilder();
+		final List<Instance> instances = new ArrayList<Instance>();
+	}
+}
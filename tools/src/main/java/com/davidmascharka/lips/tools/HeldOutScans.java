@@ -0,0 +1,146 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sets aside the scans LocalizationRegressionTest localizes before the models are
+ * trained:
+ *
+ *   HeldOutScans [options] DATASET TRAINING HELD_OUT
+ *
+ * One in every N of the datapoints in DATASET, picked at random the way CrossValidate
+ * deals them into folds, is written to HELD_OUT and the rest to TRAINING, both in the
+ * order they were surveyed and exactly as they were saved. Train the models on TRAINING
+ * and the held out scans are ones they've never seen, so their error there is comparable
+ * to the cross validated error. The same options always give the same files.
+ *
+ * Options:
+ *   --every N    hold out one in every N datapoints, 10 by default
+ *   --seed N     seed for picking them, 48 by default
+ */
+public class HeldOutScans {
+
+	private int every = 10;
+	private long seed = 48;
+	private File dataset;
+	private File training;
+	private File heldOut;
+
+	public static void main(String[] args) throws Exception {
+		HeldOutScans scans = new HeldOutScans();
+		if (!scans.parse(args)) {
+			System.err.println("Usage: HeldOutScans [--every N] [--seed N] DATASET TRAINING "
+					+ "HELD_OUT");
+			System.exit(2);
+		}
+		scans.run();
+	}
+
+	private boolean parse(String[] args) {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--every")) {
+					every = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 3 || every < 2) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		training = new File(files.get(1));
+		heldOut = new File(files.get(2));
+		return true;
+	}
+
+	private void run() throws Exception {
+		List<String> rows = new ArrayList<String>();
+		BufferedReader lines = PartitionedDataset.open(dataset);
+		try {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				if (SurveyRecord.parse(line) != null) {
+					rows.add(line);
+				}
+			}
+		} finally {
+			lines.close();
+		}
+
+		List<Integer> order = new ArrayList<Integer>(rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(seed));
+		boolean[] held = new boolean[rows.size()];
+		for (int i = 0; i < rows.size() / every; i++) {
+			held[order.get(i)] = true;
+		}
+
+		String note = "from " + dataset.getName() + " by HeldOutScans --every " + every
+				+ " --seed " + seed;
+		Writer trainingOut = open(training, "%Training datapoints " + note);
+		Writer heldOutOut = open(heldOut, "%Held out scans for the regression tests in "
+				+ "LocalizationRegressionTest, set aside " + note);
+		int heldCount = 0;
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				Writer out = held[i] ? heldOutOut : trainingOut;
+				out.write(rows.get(i));
+				out.write("\n\n");
+				if (held[i]) {
+					heldCount++;
+				}
+			}
+		} finally {
+			trainingOut.close();
+			heldOutOut.close();
+		}
+		System.out.printf("Wrote %d of the %d datapoints in %s to %s and the rest to %s%n",
+				heldCount, rows.size(), dataset.getName(), heldOut, training);
+	}
+
+	private static Writer open(File file, String comment) throws Exception {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		out.write(comment + "\n%Format of data: the same as dataset_BUILDING.txt\n\n");
+		return out;
+	}
+}
@@ -0,0 +1,216 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.ClusteredPartitionScheme;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Lloyd's k-means with k-means++ seeding. Each iteration assigns every point to its
+ * closest centroid and sums up the new centroids in one pass, split across a fork/join
+ * pool; the partial sums are added together as the tasks join.
+ */
+class KMeans {
+
+	// Points per task before the assignment pass stops splitting
+	private static final int THRESHOLD = 256;
+
+	private final float[][] points;
+	private final ForkJoinPool pool;
+
+	KMeans(float[][] points, ForkJoinPool pool) {
+		this.points = points;
+		this.pool = pool;
+	}
+
+	/**
+	 * Clusters the points into k clusters, stopping once no point changes cluster or
+	 * after maxIterations. A cluster can still come back empty if there are fewer
+	 * distinct points than clusters
+	 */
+	Result cluster(int k, long seed, int maxIterations) {
+		Random random = new Random(seed);
+		float[][] centroids = seed(k, random);
+		int[] assignments = new int[points.length];
+		for (int i = 0; i < assignments.length; i++) {
+			assignments[i] = -1;
+		}
+
+		int iterations = 0;
+		Partial sums;
+		boolean reseeded;
+		do {
+			sums = pool.invoke(new Assign(centroids, assignments, 0, points.length));
+			iterations++;
+			reseeded = false;
+			for (int c = 0; c < k; c++) {
+				if (sums.counts[c] == 0) {
+					// Start an empty cluster over somewhere else
+					centroids[c] = points[random.nextInt(points.length)].clone();
+					reseeded = true;
+					continue;
+				}
+				for (int j = 0; j < centroids[c].length; j++) {
+					centroids[c][j] = (float) (sums.sums[c][j] / sums.counts[c]);
+				}
+			}
+		} while (sums.changed > 0 && iterations < maxIterations);
+
+		// A cluster started over on the last pass has no points yet, so give it the
+		// ones now closest to it rather than returning it empty
+		if (reseeded) {
+			sums = pool.invoke(new Assign(centroids, assignments, 0, points.length));
+			iterations++;
+		}
+
+		return new Result(centroids, assignments, sums.counts, iterations, sums.inertia);
+	}
+
+	/**
+	 * k-means++: the first centroid is a random point, and each one after that is picked
+	 * with probability proportional to its squared distance from the closest centroid
+	 * so far
+	 */
+	private float[][] seed(int k, Random random) {
+		float[][] centroids = new float[k][];
+		centroids[0] = points[random.nextInt(points.length)].clone();
+		double[] distances = new double[points.length];
+		for (int i = 0; i < points.length; i++) {
+			distances[i] = Double.MAX_VALUE;
+		}
+		for (int c = 1; c < k; c++) {
+			double total = 0;
+			for (int i = 0; i < points.length; i++) {
+				distances[i] = Math.min(distances[i], distance(points[i], centroids[c - 1]));
+				total += distances[i];
+			}
+			double target = random.nextDouble() * total;
+			int chosen = points.length - 1;
+			for (int i = 0; i < points.length; i++) {
+				target -= distances[i];
+				if (target <= 0) {
+					chosen = i;
+					break;
+				}
+			}
+			centroids[c] = points[chosen].clone();
+		}
+		return centroids;
+	}
+
+	private static double distance(float[] a, float[] b) {
+		double distance = 0;
+		for (int j = 0; j < a.length; j++) {
+			double d = a[j] - b[j];
+			distance += d * d;
+		}
+		return distance;
+	}
+
+	static class Result {
+		final float[][] centroids;
+		final int[] assignments;
+		final int[] sizes;
+		final int iterations;
+		final double inertia;
+
+		Result(float[][] centroids, int[] assignments, int[] sizes, int iterations,
+				double inertia) {
+			this.centroids = centroids;
+			this.assignments = assignments;
+			this.sizes = sizes;
+			this.iterations = iterations;
+			this.inertia = inertia;
+		}
+	}
+
+	/**
+	 * Sums of the points assigned to each cluster in part of one pass
+	 */
+	private static class Partial {
+		final double[][] sums;
+		final int[] counts;
+		int changed;
+		double inertia;
+
+		Partial(int k, int dimensions) {
+			sums = new double[k][dimensions];
+			counts = new int[k];
+		}
+
+		Partial add(Partial other) {
+			for (int c = 0; c < counts.length; c++) {
+				counts[c] += other.counts[c];
+				for (int j = 0; j < sums[c].length; j++) {
+					sums[c][j] += other.sums[c][j];
+				}
+			}
+			changed += other.changed;
+			inertia += other.inertia;
+			return this;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Assign extends RecursiveTask<Partial> {
+		private final float[][] centroids;
+		private final int[] assignments;
+		private final int from;
+		private final int to;
+
+		Assign(float[][] centroids, int[] assignments, int from, int to) {
+			this.centroids = centroids;
+			this.assignments = assignments;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Partial compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				Assign left = new Assign(centroids, assignments, from, middle);
+				left.fork();
+				Partial right = new Assign(centroids, assignments, middle, to).compute();
+				return left.join().add(right);
+			}
+
+			Partial partial = new Partial(centroids.length, centroids[0].length);
+			for (int i = from; i < to; i++) {
+				float[] point = points[i];
+				int closest = ClusteredPartitionScheme.closest(centroids, point);
+				if (closest != assignments[i]) {
+					assignments[i] = closest;
+					partial.changed++;
+				}
+				double[] sum = partial.sums[closest];
+				for (int j = 0; j < point.length; j++) {
+					sum[j] += point[j];
+				}
+				partial.counts[closest]++;
+				partial.inertia += distance(point, centroids[closest]);
+			}
+			return partial;
+		}
+	}
+}
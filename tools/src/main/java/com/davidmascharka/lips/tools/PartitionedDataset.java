@@ -0,0 +1,225 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.DatasetIndex;
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.SurveyLogReader;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.core.Instances;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A survey split up the way the models are trained: every datapoint labelled with its
+ * partition for the partition classifier, and the datapoints of each partition labelled
+ * with their x and y positions for that partition's position classifiers
+ */
+public class PartitionedDataset {
+
+	private final PartitionScheme scheme;
+	private final int accessPoints;
+
+	private final Instances partitions;
+	private final Instances[] xs;
+	private final Instances[] ys;
+
+	private int skipped;
+
+	public PartitionedDataset(PartitionScheme scheme, int accessPoints) {
+		this.scheme = scheme;
+		this.accessPoints = accessPoints;
+
+		partitions = FingerprintInstances.partition(scheme, accessPoints, 1024);
+		xs = new Instances[scheme.getPartitionCount()];
+		ys = new Instances[scheme.getPartitionCount()];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = FingerprintInstances.position(FingerprintInstances.X_POSITION,
+					accessPoints, 256);
+			ys[i] = FingerprintInstances.position(FingerprintInstances.Y_POSITION,
+					accessPoints, 256);
+		}
+	}
+
+	/**
+	 * Reads every datapoint in a dataset file, plain or compressed, one row at a time.
+	 * The number of access points is taken from the first datapoint
+	 */
+	public static PartitionedDataset load(File file, PartitionScheme scheme) throws IOException {
+		BufferedReader lines = open(file);
+		try {
+			PartitionedDataset dataset = null;
+			String line;
+			while ((line = lines.readLine()) != null) {
+				SurveyRecord record = SurveyRecord.parse(line);
+				if (record == null) {
+					continue;
+				}
+				if (dataset == null) {
+					dataset = new PartitionedDataset(scheme, record.getAccessPointCount());
+				}
+				dataset.add(record);
+			}
+			if (dataset == null) {
+				throw new IOException(file + " has no datapoints");
+			}
+			return dataset;
+		} finally {
+			lines.close();
+		}
+	}
+
+	/**
+	 * @return every datapoint in a dataset file, plain or compressed, for splitting up
+	 *         before it's partitioned
+	 */
+	public static List<SurveyRecord> readRecords(File file) throws IOException {
+		BufferedReader lines = open(file);
+		try {
+			List<SurveyRecord> records = new ArrayList<SurveyRecord>();
+			String line;
+			while ((line = lines.readLine()) != null) {
+				SurveyRecord record = SurveyRecord.parse(line);
+				if (record != null) {
+					records.add(record);
+				}
+			}
+			if (records.isEmpty()) {
+				throw new IOException(file + " has no datapoints");
+			}
+			return records;
+		} finally {
+			lines.close();
+		}
+	}
+
+	/**
+	 * @return the datapoints in one of scheme's partitions, in file order. A plain text
+	 *         file is read through its DatasetIndex, which is built or brought up to date
+	 *         first, seeking straight to each of them. A compressed one has to be read
+	 *         through
+	 */
+	public static List<SurveyRecord> readRecords(File file, PartitionScheme scheme,
+			int partition) throws IOException {
+		if (!SurveyLogReader.isCompressed(file)) {
+			DatasetIndex index = DatasetIndex.open(file, scheme);
+			return index.read(index.rowsInPartition(partition));
+		}
+		List<SurveyRecord> records = new ArrayList<SurveyRecord>();
+		for (SurveyRecord record : readRecords(file)) {
+			if (scheme.partitionOf(record) == partition) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return the datapoints saved from start up to but not including end, in
+	 *         milliseconds since the epoch, read the same way. The index keeps the
+	 *         partitions of scheme, so reading by partition afterwards doesn't rebuild it
+	 */
+	public static List<SurveyRecord> readRecords(File file, PartitionScheme scheme,
+			long start, long end) throws IOException {
+		if (!SurveyLogReader.isCompressed(file)) {
+			DatasetIndex index = DatasetIndex.open(file, scheme);
+			return index.read(index.rowsBetween(start, end));
+		}
+		List<SurveyRecord> records = new ArrayList<SurveyRecord>();
+		for (SurveyRecord record : readRecords(file)) {
+			if (record.time >= start && record.time < end) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return the lines of a log file, plain or compressed
+	 */
+	static BufferedReader open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		Reader reader = SurveyLogReader.isCompressed(file) ? new SurveyLogReader(in)
+				: new InputStreamReader(in);
+		return new BufferedReader(reader, 64 * 1024);
+	}
+
+	/**
+	 * Adds a datapoint. Datapoints with a different number of access points than the
+	 * dataset are counted as skipped
+	 */
+	public void add(SurveyRecord record) {
+		if (record.getAccessPointCount() != accessPoints) {
+			skipped++;
+			return;
+		}
+		int partition = scheme.partitionOf(record);
+		partitions.add(FingerprintInstances.toInstance(record, partitions, scheme));
+		xs[partition].add(FingerprintInstances.toInstance(record, xs[partition], scheme));
+		ys[partition].add(FingerprintInstances.toInstance(record, ys[partition], scheme));
+	}
+
+	public PartitionScheme getScheme() {
+		return scheme;
+	}
+
+	public int getAccessPointCount() {
+		return accessPoints;
+	}
+
+	public int size() {
+		return partitions.numInstances();
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return every datapoint with its partition as the class
+	 */
+	public Instances getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * @return the datapoints in partition with their x position as the class
+	 */
+	public Instances getX(int partition) {
+		return xs[partition];
+	}
+
+	/**
+	 * @return the datapoints in partition with their y position as the class
+	 */
+	public Instances getY(int partition) {
+		return ys[partition];
+	}
+}
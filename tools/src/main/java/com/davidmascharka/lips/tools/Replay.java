@@ -0,0 +1,447 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.PositionSmoother;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Replays a live test recorded by TrackerActivity without a device:
+ *
+ *   Replay [options] livetest_BUILDING.txt livetest_BUILDING_values.txt ASSETS_DIR
+ *
+ * Every scan in the values file, plain or compressed, goes through the pipeline the
+ * tracker runs: routed by the scheme's forest in ASSETS_DIR, its position predicted by
+ * that partition's models, and smoothed by PositionSmoother. The file is streamed in
+ * batches, each split between the threads, which have their own copy of the models
+ * since K* isn't safe to share. Smoothing needs the scans in order so it's done as each
+ * batch comes back.
+ *
+ * The DONE: (x,y) lines nextPoint() writes to the live test log are where the tester
+ * was standing when they tapped it. Each is lined up with the last scan taken at most
+ * --window before it, and the distance from there to the raw and smoothed positions is
+ * the error. The first DONE line, at (0,0), only marks the start of the walk.
+ *
+ * It prints the scans per second the whole replay took, the mean, 50th and 99th
+ * percentile time of each stage per scan, and the mean, 50th and 90th percentile error
+ * of the raw and smoothed positions.
+ *
+ * Options:
+ *   --threads N      number of threads, the number of processors by default
+ *   --scheme NAME    5Partition by default, or the path of a partitions.txt written by
+ *                    DiscoverPartitions
+ *   --window MS      how long before a DONE line a scan may be to count for it, 3000
+ *                    by default
+ */
+public class Replay {
+
+	private static final int BATCH = 512;
+
+	// Time between scans for rows without a timestamp, which is how often the tracker
+	// scans
+	private static final long SCAN_INTERVAL = 1500;
+
+	private static final String[] STAGES = {"parse", "features", "route", "predict x",
+			"predict y", "spread", "smooth"};
+	private static final int PARSE = 0;
+	private static final int FEATURES = 1;
+	private static final int ROUTE = 2;
+	private static final int PREDICT_X = 3;
+	private static final int PREDICT_Y = 4;
+	private static final int SPREAD = 5;
+	private static final int SMOOTH = 6;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private PartitionScheme scheme = PartitionScheme.FIVE;
+	private long window = 3000;
+	private File log;
+	private File values;
+	private File assets;
+
+	private int accessPoints;
+	private final long[][] stageTimes = new long[STAGES.length][];
+	private int timed;
+
+	public static void main(String[] args) throws Exception {
+		Replay replay = new Replay();
+		if (!replay.parse(args)) {
+			System.err.println("Usage: Replay [--threads N] [--scheme NAME|FILE] [--window MS] "
+					+ "LIVETEST_LOG LIVETEST_VALUES ASSETS_DIR");
+			System.exit(2);
+		}
+		replay.run();
+	}
+
+	private boolean parse(String[] args) throws Exception {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--scheme")) {
+					scheme = SelectFeatures.scheme(args[++i]);
+					if (scheme == null) {
+						return false;
+					}
+				} else if (args[i].equals("--window")) {
+					window = Long.parseLong(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 3 || threads < 1 || window < 0) {
+			return false;
+		}
+		log = new File(files.get(0));
+		values = new File(files.get(1));
+		assets = new File(files.get(2));
+		return true;
+	}
+
+	private void run() throws Exception {
+		List<Waypoint> waypoints = readWaypoints(log);
+		System.out.printf("Read %d waypoints from %s%n", waypoints.size(), log.getName());
+
+		List<Worker> workers = new ArrayList<Worker>(threads);
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Worker());
+		}
+		accessPoints = FingerprintInstances.accessPoints(workers.get(0).header).length;
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			stageTimes[stage] = new long[BATCH];
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		PositionSmoother smoother = new PositionSmoother();
+		double[] rawErrors = new double[waypoints.size()];
+		double[] smoothedErrors = new double[waypoints.size()];
+		int matched = 0;
+		int waypoint = 0;
+		Scan last = null;
+		long lastTime = 0;
+		int skipped = 0;
+
+		long start = System.nanoTime();
+		BufferedReader lines = PartitionedDataset.open(values);
+		try {
+			List<String> batch = new ArrayList<String>(BATCH);
+			boolean done = false;
+			while (!done) {
+				String line = lines.readLine();
+				if (line != null && line.length() > 0 && line.charAt(0) != '%') {
+					batch.add(line);
+				}
+				done = line == null;
+				if (batch.size() < BATCH && !done) {
+					continue;
+				}
+
+				for (Scan scan : predict(pool, workers, batch)) {
+					if (scan == null) {
+						skipped++;
+						continue;
+					}
+					long time = scan.reading.time >= 0 ? scan.reading.time
+							: lastTime + SCAN_INTERVAL;
+					long smoothStart = System.nanoTime();
+					smoother.update(scan.x, scan.y, scan.spreadX, scan.spreadY,
+							scan.probability, time);
+					scan.smoothedX = smoother.getX();
+					scan.smoothedY = smoother.getY();
+					scan.times[SMOOTH] = System.nanoTime() - smoothStart;
+					record(scan.times);
+
+					// Every waypoint before this scan is done with, and counts the last
+					// scan if it was close enough before it
+					while (waypoint < waypoints.size() && waypoints.get(waypoint).time < time) {
+						Waypoint point = waypoints.get(waypoint++);
+						if (last != null && point.time - lastTime <= window) {
+							matched = addError(point, last, rawErrors, smoothedErrors, matched);
+						}
+					}
+					last = scan;
+					lastTime = time;
+				}
+				batch.clear();
+			}
+		} finally {
+			lines.close();
+			pool.shutdown();
+		}
+		while (waypoint < waypoints.size()) {
+			Waypoint point = waypoints.get(waypoint++);
+			if (last != null && point.time >= lastTime && point.time - lastTime <= window) {
+				matched = addError(point, last, rawErrors, smoothedErrors, matched);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("Replayed %d scans from %s in %.2f s on %d threads, %.0f scans/s",
+				timed, values.getName(), seconds, threads, timed / seconds);
+		System.out.printf(skipped > 0 ? ", %d rows skipped%n%n" : "%n%n", skipped);
+		System.out.printf("  %-10s %10s %10s %10s%n", "stage", "mean us", "p50 us", "p99 us");
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			long[] times = Arrays.copyOf(stageTimes[stage], timed);
+			long total = 0;
+			for (long time : times) {
+				total += time;
+			}
+			Arrays.sort(times);
+			System.out.printf("  %-10s %10.1f %10.1f %10.1f%n", STAGES[stage],
+					total / 1e3 / Math.max(1, timed), percentile(times, 0.5) / 1e3,
+					percentile(times, 0.99) / 1e3);
+		}
+
+		System.out.printf("%nLined up %d of %d waypoints with a scan%n", matched,
+				waypoints.size());
+		if (matched > 0) {
+			System.out.printf("  %-10s %10s %10s %10s%n", "position", "mean error",
+					"p50 error", "p90 error");
+			printErrors("raw", Arrays.copyOf(rawErrors, matched));
+			printErrors("smoothed", Arrays.copyOf(smoothedErrors, matched));
+		}
+	}
+
+	/**
+	 * Splits a batch of rows between the workers
+	 *
+	 * @return the scans in the order of the rows, null for rows that couldn't be used
+	 */
+	private List<Scan> predict(ExecutorService pool, List<Worker> workers,
+			final List<String> batch) throws Exception {
+		List<Callable<List<Scan>>> tasks = new ArrayList<Callable<List<Scan>>>();
+		int chunk = (batch.size() + workers.size() - 1) / workers.size();
+		for (int i = 0; i < workers.size() && i * chunk < batch.size(); i++) {
+			final Worker worker = workers.get(i);
+			final List<String> rows = batch.subList(i * chunk,
+					Math.min(batch.size(), (i + 1) * chunk));
+			tasks.add(new Callable<List<Scan>>() {
+				@Override
+				public List<Scan> call() throws Exception {
+					List<Scan> scans = new ArrayList<Scan>(rows.size());
+					for (String row : rows) {
+						scans.add(worker.predict(row));
+					}
+					return scans;
+				}
+			});
+		}
+		List<Scan> scans = new ArrayList<Scan>(batch.size());
+		for (Future<List<Scan>> result : pool.invokeAll(tasks)) {
+			scans.addAll(result.get());
+		}
+		return scans;
+	}
+
+	/**
+	 * @return the number of waypoints lined up, with this one
+	 */
+	private static int addError(Waypoint point, Scan scan, double[] rawErrors,
+			double[] smoothedErrors, int matched) {
+		rawErrors[matched] = Math.hypot(scan.x - point.x, scan.y - point.y);
+		smoothedErrors[matched] = Math.hypot(scan.smoothedX - point.x,
+				scan.smoothedY - point.y);
+		return matched + 1;
+	}
+
+	private void record(long[] times) {
+		if (timed == stageTimes[0].length) {
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				stageTimes[stage] = Arrays.copyOf(stageTimes[stage], 2 * timed);
+			}
+		}
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			stageTimes[stage][timed] = times[stage];
+		}
+		timed++;
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		return sorted.length == 0 ? 0 : sorted[(int) (fraction * (sorted.length - 1))];
+	}
+
+	private static void printErrors(String name, double[] errors) {
+		double total = 0;
+		for (double error : errors) {
+			total += error;
+		}
+		Arrays.sort(errors);
+		System.out.printf("  %-10s %10.2f %10.2f %10.2f%n", name, total / errors.length,
+				errors[(int) (0.5 * (errors.length - 1))],
+				errors[(int) (0.9 * (errors.length - 1))]);
+	}
+
+	/**
+	 * @return the DONE lines of a live test log, in order
+	 */
+	static List<Waypoint> readWaypoints(File file) throws IOException {
+		List<Waypoint> waypoints = new ArrayList<Waypoint>();
+		BufferedReader lines = PartitionedDataset.open(file);
+		try {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				if (!line.startsWith("DONE: (")) {
+					continue;
+				}
+				int comma = line.indexOf(',');
+				int close = line.indexOf(')');
+				int percent = line.indexOf('%');
+				if (comma < 0 || close < comma || percent < close) {
+					continue;
+				}
+				try {
+					float x = Float.parseFloat(line.substring(7, comma));
+					float y = Float.parseFloat(line.substring(comma + 1, close));
+					long time = Timestamp.valueOf(line.substring(percent + 1).trim()).getTime();
+					if (x != 0 || y != 0) {
+						waypoints.add(new Waypoint(x, y, time));
+					}
+				} catch (IllegalArgumentException e) {
+					// Not a DONE line nextPoint() wrote
+				}
+			}
+		} finally {
+			lines.close();
+		}
+		return waypoints;
+	}
+
+	static class Waypoint {
+		final float x;
+		final float y;
+		final long time;
+
+		Waypoint(float x, float y, long time) {
+			this.x = x;
+			this.y = y;
+			this.time = time;
+		}
+	}
+
+	private static class Scan {
+		SurveyRecord reading;
+		int partition;
+		double probability;
+		float x;
+		float y;
+		double spreadX;
+		double spreadY;
+		float smoothedX;
+		float smoothedY;
+		final long[] times = new long[STAGES.length];
+	}
+
+	/**
+	 * One thread's copy of the models
+	 */
+	private class Worker {
+		final RandomForest forest;
+		final PositionModels models;
+		final Instances header;
+
+		Worker() throws Exception {
+			forest = (RandomForest) SerializationHelper.read(
+					new File(assets, PositionModels.forestName(scheme)).getPath());
+			models = new PositionModels(scheme, new PositionModels.Source() {
+				@Override
+				public InputStream open(String name) throws IOException {
+					return new FileInputStream(new File(assets, name));
+				}
+			});
+			// The forest is trained with every access point the tracker knows about
+			header = FingerprintInstances.partition(scheme,
+					FingerprintInstances.accessPoints(TuneForest.header(forest)).length, 0);
+		}
+
+		/**
+		 * @return the scan on row run through the pipeline, or null if it isn't one
+		 */
+		Scan predict(String row) throws Exception {
+			Scan scan = new Scan();
+			long time = System.nanoTime();
+			SurveyRecord reading = SurveyRecord.parseReading(row);
+			if (reading == null || reading.getAccessPointCount() < accessPoints) {
+				return null;
+			}
+			// Access points the tracker didn't know about are added to the end of the row
+			if (reading.getAccessPointCount() > accessPoints) {
+				reading = SurveyRecord.reading(reading.sensors,
+						Arrays.copyOf(reading.levels, accessPoints), reading.latitude,
+						reading.longitude, reading.accuracy, reading.time);
+			}
+			scan.reading = reading;
+			time = lap(scan, PARSE, time);
+
+			Instance partitionInstance = FingerprintInstances.toInstance(reading, header, scheme);
+			time = lap(scan, FEATURES, time);
+			double[] distribution = forest.distributionForInstance(partitionInstance);
+			scan.partition = Utils.maxIndex(distribution);
+			scan.probability = distribution[scan.partition];
+			time = lap(scan, ROUTE, time);
+
+			Instance xInstance = models.xInstance(scan.partition, reading);
+			Instance yInstance = models.yInstance(scan.partition, reading);
+			scan.times[FEATURES] += System.nanoTime() - time;
+			time = System.nanoTime();
+			scan.x = (float) models.getX(scan.partition).classifyInstance(xInstance);
+			time = lap(scan, PREDICT_X, time);
+			scan.y = (float) models.getY(scan.partition).classifyInstance(yInstance);
+			time = lap(scan, PREDICT_Y, time);
+			scan.spreadX = models.xSpread(scan.partition, xInstance, scan.x);
+			scan.spreadY = models.ySpread(scan.partition, yInstance, scan.y);
+			lap(scan, SPREAD, time);
+			return scan;
+		}
+
+		private long lap(Scan scan, int stage, long start) {
+			long now = System.nanoTime();
+			scan.times[stage] = now - start;
+			return now;
+		}
+	}
+}
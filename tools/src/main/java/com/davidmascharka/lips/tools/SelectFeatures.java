@@ -0,0 +1,452 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.ClusteredPartitionScheme;
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.lazy.KStar;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Picks which access points each partition's K* models should use, since most of the
+ * ones in a survey are never heard in any one partition:
+ *
+ *   SelectFeatures [options] dataset_BUILDING.txt [ASSETS_DIR]
+ *
+ * The access points of a partition are ranked by how often they're heard there, the
+ * fraction of its datapoints with a level for them, with the variance of their level
+ * breaking ties. Each pruning level keeps the access points heard in more than that
+ * fraction, so 0 drops only the ones never heard. K* compares every attribute of every
+ * stored datapoint when it predicts, so each one dropped is time saved on every scan.
+ *
+ * For every level the x and y models are trained on four fifths of the survey and
+ * predict the rest, routed to the partition each datapoint was surveyed in so routing
+ * mistakes don't hide the difference. The report has the number of access points kept,
+ * the mean error in grid cells and how it changed from keeping them all, the 50th
+ * percentile CPU time to build an instance and predict x and y, and the serialized size
+ * of the models. The levels and partitions are trained and tested on a fork/join pool.
+ *
+ * With --write, the models for one level are trained on the whole survey and written
+ * over the scheme's models in ASSETS_DIR. The random forest still uses every access
+ * point, and PositionModels reads which ones a model uses from the model itself.
+ *
+ * Options:
+ *   --threads N      pool size, the number of processors by default
+ *   --scheme NAME    the scheme to prune, 5Partition by default, or the path of a
+ *                    partitions.txt written by DiscoverPartitions
+ *   --levels A,B     pruning levels to compare, 0,0.01,0.02,0.05,0.1,0.2 by default
+ *   --seed N         seed for the held out split, 1 by default
+ *   --blend N        K* global blend, 20 by default
+ *   --write LEVEL    train the models for LEVEL and write them to ASSETS_DIR
+ */
+public class SelectFeatures {
+
+	// Stands for keeping every access point
+	private static final double ALL = -1;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private PartitionScheme scheme = PartitionScheme.FIVE;
+	private double[] levels = {0, 0.01, 0.02, 0.05, 0.1, 0.2};
+	private long seed = 1;
+	private int blend = 20;
+	private double writeLevel = Double.NaN;
+	private File dataset;
+	private File assets;
+
+	private List<SurveyRecord> records;
+	private int accessPoints;
+
+	public static void main(String[] args) throws Exception {
+		SelectFeatures select = new SelectFeatures();
+		if (!select.parse(args)) {
+			System.err.println("Usage: SelectFeatures [--threads N] [--scheme NAME|FILE] "
+					+ "[--levels A,B] [--seed N] [--blend N] [--write LEVEL] DATASET "
+					+ "[ASSETS_DIR]");
+			System.exit(2);
+		}
+		select.run();
+	}
+
+	private boolean parse(String[] args) throws Exception {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--scheme")) {
+					scheme = scheme(args[++i]);
+					if (scheme == null) {
+						return false;
+					}
+				} else if (args[i].equals("--levels")) {
+					String[] values = args[++i].split(",");
+					levels = new double[values.length];
+					for (int j = 0; j < values.length; j++) {
+						levels[j] = Double.parseDouble(values[j]);
+					}
+				} else if (args[i].equals("--seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--blend")) {
+					blend = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--write")) {
+					writeLevel = Double.parseDouble(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.isEmpty() || threads < 1
+				|| files.size() != (Double.isNaN(writeLevel) ? 1 : 2)) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		if (files.size() == 2) {
+			assets = new File(files.get(1));
+		}
+		return true;
+	}
+
+	/**
+	 * @return the scheme called name, or read from the partitions.txt at name
+	 */
+	static PartitionScheme scheme(String name) throws Exception {
+		PartitionScheme scheme = PartitionScheme.forName(name);
+		if (scheme != null || !new File(name).isFile()) {
+			return scheme;
+		}
+		InputStream in = new FileInputStream(name);
+		try {
+			return ClusteredPartitionScheme.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void run() throws Exception {
+		List<SurveyRecord> all = PartitionedDataset.readRecords(dataset);
+		accessPoints = all.get(0).getAccessPointCount();
+		records = new ArrayList<SurveyRecord>(all.size());
+		for (SurveyRecord record : all) {
+			if (record.getAccessPointCount() == accessPoints) {
+				records.add(record);
+			}
+		}
+		System.out.printf("Read %d datapoints with %d access points from %s%n",
+				records.size(), accessPoints, dataset.getName());
+
+		if (!Double.isNaN(writeLevel)) {
+			write();
+			return;
+		}
+
+		List<SurveyRecord> shuffled = new ArrayList<SurveyRecord>(records);
+		Collections.shuffle(shuffled, new Random(seed));
+		List<SurveyRecord> training = shuffled.subList(0, shuffled.size() * 4 / 5);
+		List<SurveyRecord> testing = shuffled.subList(training.size(), shuffled.size());
+
+		int partitions = scheme.getPartitionCount();
+		double[] compared = new double[levels.length + 1];
+		compared[0] = ALL;
+		System.arraycopy(levels, 0, compared, 1, levels.length);
+
+		final List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+		for (double level : compared) {
+			for (int p = 0; p < partitions; p++) {
+				tasks.add(new PartitionTask(level, p, inPartition(training, p),
+						inPartition(testing, p)));
+			}
+		}
+		System.out.printf("Testing %d pruning levels of %s on %d threads%n", compared.length,
+				scheme.getName(), threads);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		pool.shutdown();
+
+		System.out.printf("%n  %-6s %13s %10s %8s %9s %8s %9s%n", "level", "access points",
+				"mean error", "change", "p50 us", "speedup", "model KB");
+		LevelResult baseline = null;
+		for (int l = 0; l < compared.length; l++) {
+			LevelResult result = new LevelResult(tasks.subList(l * partitions,
+					(l + 1) * partitions));
+			if (baseline == null) {
+				baseline = result;
+			}
+			System.out.printf("  %-6s %6.1f %2d-%-3d %10.2f %+7.1f%% %9.0f %7.2fx %9d%n",
+					compared[l] == ALL ? "all" : Double.toString(compared[l]),
+					result.meanAccessPoints, result.fewestAccessPoints,
+					result.mostAccessPoints, result.meanError,
+					100 * (result.meanError / baseline.meanError - 1), result.p50Micros,
+					baseline.p50Micros / result.p50Micros, result.modelBytes / 1024);
+		}
+	}
+
+	/**
+	 * Trains the models for writeLevel on every datapoint and saves them where
+	 * PositionModels loads the scheme's models from
+	 */
+	private void write() throws Exception {
+		for (int p = 0; p < scheme.getPartitionCount(); p++) {
+			List<SurveyRecord> rows = inPartition(records, p);
+			int[] selected = select(rows, writeLevel);
+			Instances x = data(FingerprintInstances.X_POSITION, rows, selected);
+			Instances y = data(FingerprintInstances.Y_POSITION, rows, selected);
+			KStar xModel = kStar();
+			xModel.buildClassifier(x);
+			KStar yModel = kStar();
+			yModel.buildClassifier(y);
+			save(PositionModels.modelName(scheme, "x", p), xModel);
+			save(PositionModels.modelName(scheme, "y", p), yModel);
+			System.out.printf("  %-12s %5d rows %4d access points%n",
+					scheme.getPartitionName(p), rows.size(), selected.length);
+		}
+		System.out.printf("Wrote %d models to %s%n", 2 * scheme.getPartitionCount(),
+				new File(assets, PositionModels.modelName(scheme, "x", 0)).getParent());
+	}
+
+	private void save(String name, KStar model) throws Exception {
+		File file = new File(assets, name);
+		File output = file.getParentFile();
+		if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IllegalStateException("Couldn't create " + output);
+		}
+		SerializationHelper.write(file.getPath(), model);
+	}
+
+	private List<SurveyRecord> inPartition(List<SurveyRecord> rows, int partition) {
+		List<SurveyRecord> in = new ArrayList<SurveyRecord>();
+		for (SurveyRecord record : rows) {
+			if (scheme.partitionOf(record) == partition) {
+				in.add(record);
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * @return the access points heard in more than level of the rows, most often heard
+	 *         first, or every access point for ALL. PositionModels doesn't care about the
+	 *         order but it makes the ranking easy to read in a model's header
+	 */
+	private int[] select(List<SurveyRecord> rows, double level) {
+		final double[] presence = new double[accessPoints];
+		final double[] variance = new double[accessPoints];
+		for (int a = 0; a < accessPoints; a++) {
+			int heard = 0;
+			double sum = 0;
+			double squares = 0;
+			for (SurveyRecord record : rows) {
+				int value = record.levels[a];
+				if (value != 0) {
+					heard++;
+				}
+				sum += value;
+				squares += (double) value * value;
+			}
+			presence[a] = (double) heard / rows.size();
+			double mean = sum / rows.size();
+			variance[a] = squares / rows.size() - mean * mean;
+		}
+
+		List<Integer> ranked = new ArrayList<Integer>(accessPoints);
+		for (int a = 0; a < accessPoints; a++) {
+			if (level == ALL || presence[a] > level) {
+				ranked.add(a);
+			}
+		}
+		if (level != ALL) {
+			Collections.sort(ranked, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int byPresence = Double.compare(presence[b], presence[a]);
+					return byPresence != 0 ? byPresence : Double.compare(variance[b], variance[a]);
+				}
+			});
+		}
+		int[] selected = new int[ranked.size()];
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = ranked.get(i);
+		}
+		return selected;
+	}
+
+	private Instances data(String classAttribute, List<SurveyRecord> rows, int[] selected) {
+		Instances data = FingerprintInstances.position(classAttribute, selected, rows.size());
+		for (SurveyRecord record : rows) {
+			data.add(FingerprintInstances.toInstance(record, data, scheme, selected));
+		}
+		return data;
+	}
+
+	private KStar kStar() throws Exception {
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B " + blend + " -M a"));
+		return kStar;
+	}
+
+	/**
+	 * Trains one partition's models at one pruning level and predicts its held out
+	 * datapoints
+	 */
+	@SuppressWarnings("serial")
+	private class PartitionTask extends RecursiveAction {
+		final double level;
+		final int partition;
+		final List<SurveyRecord> training;
+		final List<SurveyRecord> testing;
+
+		int accessPointsKept;
+		double[] errors;
+		long[] latencies;
+		long modelBytes;
+
+		PartitionTask(double level, int partition, List<SurveyRecord> training,
+				List<SurveyRecord> testing) {
+			this.level = level;
+			this.partition = partition;
+			this.training = training;
+			this.testing = testing;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				test();
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't test " + scheme.getPartitionName(partition)
+						+ " at " + level, e);
+			}
+		}
+
+		private void test() throws Exception {
+			if (training.isEmpty()) {
+				throw new IllegalStateException("No datapoints to train "
+						+ scheme.getPartitionName(partition));
+			}
+			int[] selected = select(training, level);
+			accessPointsKept = selected.length;
+			Instances x = data(FingerprintInstances.X_POSITION, training, selected);
+			Instances y = data(FingerprintInstances.Y_POSITION, training, selected);
+			KStar xModel = kStar();
+			xModel.buildClassifier(x);
+			KStar yModel = kStar();
+			yModel.buildClassifier(y);
+
+			CrossValidate.CountingOutputStream counter = new CrossValidate.CountingOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(counter);
+			out.writeObject(xModel);
+			out.writeObject(yModel);
+			out.close();
+			modelBytes = counter.count;
+
+			Instances xHeader = new Instances(x, 0);
+			Instances yHeader = new Instances(y, 0);
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+			errors = new double[testing.size()];
+			latencies = new long[testing.size()];
+			for (int i = 0; i < testing.size(); i++) {
+				SurveyRecord record = testing.get(i);
+				long before = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+				double predictedX = xModel.classifyInstance(FingerprintInstances.toInstance(
+						record, xHeader, scheme, selected));
+				double predictedY = yModel.classifyInstance(FingerprintInstances.toInstance(
+						record, yHeader, scheme, selected));
+				latencies[i] = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime())
+						- before;
+				errors[i] = Math.hypot(predictedX - record.x, predictedY - record.y);
+			}
+		}
+	}
+
+	/**
+	 * Every partition at one pruning level put together
+	 */
+	private static class LevelResult {
+		final double meanAccessPoints;
+		final int fewestAccessPoints;
+		final int mostAccessPoints;
+		final double meanError;
+		final double p50Micros;
+		final long modelBytes;
+
+		LevelResult(List<PartitionTask> partitions) {
+			int count = 0;
+			int kept = 0;
+			int fewest = Integer.MAX_VALUE;
+			int most = 0;
+			long bytes = 0;
+			for (PartitionTask task : partitions) {
+				count += task.errors.length;
+				kept += task.accessPointsKept;
+				fewest = Math.min(fewest, task.accessPointsKept);
+				most = Math.max(most, task.accessPointsKept);
+				bytes += task.modelBytes;
+			}
+			double sum = 0;
+			long[] latencies = new long[count];
+			int next = 0;
+			for (PartitionTask task : partitions) {
+				for (double error : task.errors) {
+					sum += error;
+				}
+				System.arraycopy(task.latencies, 0, latencies, next, task.latencies.length);
+				next += task.latencies.length;
+			}
+			Arrays.sort(latencies);
+
+			meanAccessPoints = (double) kept / partitions.size();
+			fewestAccessPoints = fewest;
+			mostAccessPoints = most;
+			meanError = sum / count;
+			p50Micros = latencies[Math.max(0, (int) Math.ceil(0.5 * count) - 1)] / 1e3;
+			modelBytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.PositionSmoother;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Replays a recorded session through the models and compares the raw positions with
+ * the ones PositionSmoother makes of them:
+ *
+ *   Smooth [options] SESSION ASSETS_DIR
+ *
+ * SESSION is a survey in the order it was recorded, like the dataset files MainActivity
+ * writes, so every scan has the position it was taken at. Each scan is routed by the
+ * scheme's forest in ASSETS_DIR and its position predicted by that partition's models,
+ * as TrackerActivity does. Three tracks are compared: the raw predictions, the smoother
+ * given the same variance for every prediction, and the smoother given each
+ * prediction's variance from the forest's probability and the spread of the closest
+ * datapoints, which is what the app shows.
+ *
+ * For each it prints the mean and 90th percentile error and two kinds of jitter: the
+ * mean distance the position moves from one scan to the next and the root mean square
+ * of the second difference of the track, which is zero for steady walking and large for
+ * a position that jumps back and forth. Both are printed for the surveyed positions
+ * too, which is as low as they should go.
+ *
+ * Options:
+ *   --scheme NAME    5Partition by default, or the path of a partitions.txt written by
+ *                    DiscoverPartitions
+ *   --interval MS    time between scans for rows without a timestamp, 1500 by default
+ *   --from TIME      only replay the scans from TIME on, e.g. 2016-04-01T13:30:00. A
+ *                    plain text SESSION is read through its DatasetIndex, seeking
+ *                    straight to them
+ *   --to TIME        only replay the scans before TIME
+ */
+public class Smooth {
+
+	private PartitionScheme scheme = PartitionScheme.FIVE;
+	private long interval = 1500;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private File session;
+	private File assets;
+
+	public static void main(String[] args) throws Exception {
+		Smooth smooth = new Smooth();
+		if (!smooth.parse(args)) {
+			System.err.println("Usage: Smooth [--scheme NAME|FILE] [--interval MS] "
+					+ "[--from TIME] [--to TIME] SESSION ASSETS_DIR");
+			System.exit(2);
+		}
+		smooth.run();
+	}
+
+	private boolean parse(String[] args) throws Exception {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--scheme")) {
+					scheme = SelectFeatures.scheme(args[++i]);
+					if (scheme == null) {
+						return false;
+					}
+				} else if (args[i].equals("--interval")) {
+					interval = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--from")) {
+					from = Timestamp.valueOf(args[++i].replace('T', ' ')).getTime();
+				} else if (args[i].equals("--to")) {
+					to = Timestamp.valueOf(args[++i].replace('T', ' ')).getTime();
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 2 || interval < 1 || to <= from) {
+			return false;
+		}
+		session = new File(files.get(0));
+		assets = new File(files.get(1));
+		return true;
+	}
+
+	private void run() throws Exception {
+		RandomForest forest = (RandomForest) SerializationHelper.read(
+				new File(assets, PositionModels.forestName(scheme)).getPath());
+		PositionModels models = new PositionModels(scheme, new PositionModels.Source() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				return new FileInputStream(new File(assets, name));
+			}
+		});
+
+		List<SurveyRecord> records = from == Long.MIN_VALUE && to == Long.MAX_VALUE
+				? PartitionedDataset.readRecords(session)
+				: PartitionedDataset.readRecords(session, scheme, from, to);
+		if (records.isEmpty()) {
+			throw new IOException(session + " has no datapoints to replay");
+		}
+		int accessPoints = records.get(0).getAccessPointCount();
+		Instances header = FingerprintInstances.partition(scheme, accessPoints, 0);
+
+		List<SurveyRecord> replayed = new ArrayList<SurveyRecord>(records.size());
+		List<float[]> raw = new ArrayList<float[]>();
+		List<float[]> fixed = new ArrayList<float[]>();
+		List<float[]> confident = new ArrayList<float[]>();
+		PositionSmoother fixedSmoother = new PositionSmoother();
+		PositionSmoother smoother = new PositionSmoother();
+		int ignored = 0;
+		long time = 0;
+		for (SurveyRecord record : records) {
+			if (record.getAccessPointCount() != accessPoints) {
+				continue;
+			}
+			time = record.time >= 0 ? record.time : time + interval;
+
+			double[] distribution = forest.distributionForInstance(
+					FingerprintInstances.toInstance(record, header, scheme));
+			int partition = Utils.maxIndex(distribution);
+			Instance xInstance = models.xInstance(partition, record);
+			Instance yInstance = models.yInstance(partition, record);
+			float x = (float) models.getX(partition).classifyInstance(xInstance);
+			float y = (float) models.getY(partition).classifyInstance(yInstance);
+			double spreadX = models.xSpread(partition, xInstance, x);
+			double spreadY = models.ySpread(partition, yInstance, y);
+
+			replayed.add(record);
+			raw.add(new float[] {x, y});
+			fixedSmoother.update(x, y, 0, 0, 1, time);
+			fixed.add(new float[] {fixedSmoother.getX(), fixedSmoother.getY()});
+			if (!smoother.update(x, y, spreadX, spreadY, distribution[partition], time)) {
+				ignored++;
+			}
+			confident.add(new float[] {smoother.getX(), smoother.getY()});
+		}
+
+		List<float[]> surveyed = new ArrayList<float[]>(replayed.size());
+		for (SurveyRecord record : replayed) {
+			surveyed.add(new float[] {record.x, record.y});
+		}
+		System.out.printf("Replayed %d scans from %s, %d ignored as too unsure%n%n",
+				replayed.size(), session.getName(), ignored);
+		System.out.printf("  %-12s %10s %10s %12s %12s%n", "track", "mean error",
+				"p90 error", "moved/scan", "2nd diff RMS");
+		print("surveyed", replayed, surveyed);
+		print("raw", replayed, raw);
+		print("fixed", replayed, fixed);
+		print("confidence", replayed, confident);
+	}
+
+	private static void print(String name, List<SurveyRecord> records, List<float[]> track) {
+		double[] errors = new double[track.size()];
+		double error = 0;
+		double moved = 0;
+		double secondDifference = 0;
+		for (int i = 0; i < track.size(); i++) {
+			float[] position = track.get(i);
+			errors[i] = Math.hypot(position[0] - records.get(i).x,
+					position[1] - records.get(i).y);
+			error += errors[i];
+			if (i > 0) {
+				float[] previous = track.get(i - 1);
+				moved += Math.hypot(position[0] - previous[0], position[1] - previous[1]);
+			}
+			if (i > 1) {
+				float[] previous = track.get(i - 1);
+				float[] before = track.get(i - 2);
+				double dx = position[0] - 2 * previous[0] + before[0];
+				double dy = position[1] - 2 * previous[1] + before[1];
+				secondDifference += dx * dx + dy * dy;
+			}
+		}
+		Arrays.sort(errors);
+		System.out.printf("  %-12s %10.2f %10.2f %12.2f %12.2f%n", name,
+				error / track.size(), errors[(int) (0.9 * (errors.length - 1))],
+				moved / Math.max(1, track.size() - 1),
+				Math.sqrt(secondDifference / Math.max(1, track.size() - 2)));
+	}
+}
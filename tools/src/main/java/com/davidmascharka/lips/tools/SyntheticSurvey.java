@@ -0,0 +1,272 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A made up building to survey: access points scattered over a floor of any size, and
+ * the datapoint MainActivity would save at any point
+ *
+ * Each datapoint is taken at a random cell of the floor. The level of each access point
+ * follows the log distance path loss model, REFERENCE_LEVEL dBm a cell away falling off
+ * by 10 * exponent dB for every tenfold distance, plus shadowing. Like the walls and
+ * furniture that cause it, the shadowing of an access point is fixed at each point of
+ * the floor and changes smoothly across it, over about SHADOWING_CELLS cells. Each scan
+ * only adds SCAN_NOISE dB of noise of its own on top, so two scans at the same spot
+ * look alike and scans a few cells apart look a little less alike, which is what lets
+ * the models localize at all. Anything under MIN_LEVEL isn't heard and is 0 like in a
+ * real survey. The sensor columns also follow the position, the magnetic field and
+ * light smoothly and the orientation by which way the corridor runs, with a little
+ * noise. Access points are kept in buckets the size of the distance they can be heard
+ * from, so a datapoint only looks at the ones in the buckets around it and ten thousand
+ * access points cost little more than a few hundred.
+ *
+ * Datapoint n only depends on the seed and n, so any range of them can be made on any
+ * thread and the survey comes out the same however it's split up.
+ */
+public class SyntheticSurvey {
+
+	private static final double REFERENCE_LEVEL = -40;
+	private static final int MIN_LEVEL = -90;
+
+	// How far apart the independent shadowing values are, and how much a scan adds
+	private static final int SHADOWING_CELLS = 6;
+	private static final double SCAN_NOISE = 1.5;
+
+	// When the first datapoint was taken and how long the surveyor took for each
+	private static final long START_TIME =
+			Timestamp.valueOf("2016-04-01 13:30:00").getTime();
+	private static final long INTERVAL = 1500;
+
+	// Where the real building is, for the location columns
+	private static final double LATITUDE = 41.60300;
+	private static final double LONGITUDE = -93.65449;
+
+	private final int width;
+	private final int height;
+	private final long seed;
+	private final double exponent;
+	private final double shadowing;
+
+	private final float[] apX;
+	private final float[] apY;
+
+	// The access points in each bucket, bucket by bucket, and where each bucket starts
+	private final double bucketSize;
+	private final int bucketColumns;
+	private final int bucketRows;
+	private final int[] bucketStarts;
+	private final int[] bucketed;
+
+	/**
+	 * @param width the floor's width in cells
+	 * @param height the floor's height in cells
+	 * @param exponent how fast the level falls off with distance, 2 in open space and
+	 *        around 3 inside buildings
+	 * @param shadowing standard deviation of the shadowing in dB
+	 */
+	public SyntheticSurvey(int width, int height, int accessPoints, double exponent,
+			double shadowing, long seed) {
+		this.width = width;
+		this.height = height;
+		this.seed = seed;
+		this.exponent = exponent;
+		this.shadowing = shadowing;
+
+		Random random = new Random(seed);
+		apX = new float[accessPoints];
+		apY = new float[accessPoints];
+		for (int i = 0; i < accessPoints; i++) {
+			apX[i] = random.nextFloat() * width;
+			apY[i] = random.nextFloat() * height;
+		}
+
+		// Nothing further than this is heard even with four deviations of shadowing
+		bucketSize = Math.max(1, Math.pow(10,
+				(REFERENCE_LEVEL - MIN_LEVEL + 4 * shadowing) / (10 * exponent)));
+		bucketColumns = (int) Math.ceil(width / bucketSize) + 1;
+		bucketRows = (int) Math.ceil(height / bucketSize) + 1;
+		bucketStarts = new int[bucketColumns * bucketRows + 1];
+		for (int i = 0; i < accessPoints; i++) {
+			bucketStarts[bucket(apX[i], apY[i]) + 1]++;
+		}
+		for (int i = 1; i < bucketStarts.length; i++) {
+			bucketStarts[i] += bucketStarts[i - 1];
+		}
+		int[] filled = Arrays.copyOf(bucketStarts, bucketStarts.length - 1);
+		bucketed = new int[accessPoints];
+		for (int i = 0; i < accessPoints; i++) {
+			bucketed[filled[bucket(apX[i], apY[i])]++] = i;
+		}
+	}
+
+	public int getAccessPointCount() {
+		return apX.length;
+	}
+
+	/**
+	 * @return datapoint n of the survey
+	 */
+	public SurveyRecord record(long n) {
+		Random random = random(n);
+		float x = (float) Math.floor(random.nextFloat() * width) + 0.5f;
+		float y = (float) Math.floor(random.nextFloat() * height) + 0.5f;
+
+		// The steel in the building bends the magnetic field, the lights are where they
+		// are, and the surveyor faces along the corridor, alternating every 8 rows
+		double heading = ((int) (y / 8) % 2 == 0 ? 0.5 : -0.5) * Math.PI;
+		float[] sensors = new float[SurveyRecord.SENSOR_COUNT];
+		sensors[0] = (float) random.nextGaussian() * 0.05f;
+		sensors[1] = 0.2f + (float) random.nextGaussian() * 0.05f;
+		sensors[2] = 9.8f + (float) random.nextGaussian() * 0.05f;
+		sensors[3] = (float) (5.3 + 8 * Math.sin(x / 9) + random.nextGaussian() * 0.5);
+		sensors[4] = (float) (-46.2 + 8 * Math.cos(y / 7) + random.nextGaussian() * 0.5);
+		sensors[5] = (float) (-42 + 6 * Math.sin((x + y) / 11) + random.nextGaussian() * 0.5);
+		sensors[6] = (float) Math.floor(300 + 120 * Math.sin(x / 5) * Math.sin(y / 4)
+				+ random.nextGaussian() * 5);
+		sensors[7] = (float) random.nextGaussian() * 0.02f;
+		sensors[8] = (float) random.nextGaussian() * 0.02f;
+		sensors[9] = (float) (Math.sin(heading / 2) + random.nextGaussian() * 0.02);
+		sensors[10] = (float) (heading + random.nextGaussian() * 0.1);
+		sensors[11] = (float) random.nextGaussian() * 0.05f;
+		sensors[12] = (float) random.nextGaussian() * 0.05f;
+
+		int[] levels = new int[apX.length];
+		int column = (int) (x / bucketSize);
+		int row = (int) (y / bucketSize);
+		for (int r = Math.max(0, row - 1); r <= Math.min(bucketRows - 1, row + 1); r++) {
+			for (int c = Math.max(0, column - 1); c <= Math.min(bucketColumns - 1, column + 1);
+					c++) {
+				int bucket = r * bucketColumns + c;
+				for (int i = bucketStarts[bucket]; i < bucketStarts[bucket + 1]; i++) {
+					int accessPoint = bucketed[i];
+					double distance = Math.hypot(x - apX[accessPoint], y - apY[accessPoint]);
+					double mean = REFERENCE_LEVEL
+							- 10 * exponent * Math.log10(Math.max(1, distance))
+							+ shadowing * shadowing(accessPoint, x, y);
+					// Whether it's heard at all is part of the spot too. An access point
+					// coming and going between scans would be a 90 dB jump to 0 that
+					// swamps everything else K* compares
+					if (mean < MIN_LEVEL) {
+						continue;
+					}
+					int level = (int) Math.round(mean + SCAN_NOISE * random.nextGaussian());
+					levels[accessPoint] = Math.max(MIN_LEVEL, Math.min(level, -1));
+				}
+			}
+		}
+
+		// About a metre a cell, give or take GPS indoors
+		double latitude = LATITUDE + y * 0.000009 + random.nextGaussian() * 0.00002;
+		double longitude = LONGITUDE + x * 0.000012 + random.nextGaussian() * 0.00002;
+		float accuracy = 20 + random.nextInt(20);
+		return SurveyRecord.datapoint(sensors, levels, latitude, longitude, accuracy, x, y,
+				START_TIME + n * INTERVAL);
+	}
+
+	/**
+	 * Appends a datapoint as MainActivity writes it to the dataset file, without the
+	 * blank line that follows it
+	 */
+	public static void appendRow(StringBuilder text, SurveyRecord record) {
+		for (int i = 0; i < record.sensors.length; i++) {
+			text.append(record.sensors[i]).append(',');
+		}
+		for (int level : record.levels) {
+			text.append(level).append(',');
+		}
+		text.append(record.latitude).append(',').append(record.longitude).append(',')
+				.append(record.accuracy).append(',').append(record.x).append(',')
+				.append(record.y).append(" %").append(new Timestamp(record.time));
+	}
+
+	/**
+	 * @param header what to make the instances for, from FingerprintInstances with this
+	 *        survey's number of access points. Its class can be the x or y position
+	 * @return datapoints from through from + count - 1 added to header
+	 */
+	public Instances instances(Instances header, long from, int count) {
+		Instances instances = new Instances(header, count);
+		for (long n = from; n < from + count; n++) {
+			Instance instance = FingerprintInstances.toInstance(record(n), instances, null);
+			instances.add(instance);
+		}
+		return instances;
+	}
+
+	private int bucket(float x, float y) {
+		return (int) (y / bucketSize) * bucketColumns + (int) (x / bucketSize);
+	}
+
+	private Random random(long n) {
+		return new Random(mix(seed + (n + 1) * 0x9e3779b97f4a7c15L));
+	}
+
+	/**
+	 * @return the shadowing of an access point at a point of the floor, in standard
+	 *         deviations. Fixed values on a lattice SHADOWING_CELLS apart are blended
+	 *         between, weighted so the result still has a deviation of one everywhere
+	 */
+	private double shadowing(int accessPoint, float x, float y) {
+		double u = x / SHADOWING_CELLS;
+		double v = y / SHADOWING_CELLS;
+		int column = (int) u;
+		int row = (int) v;
+		double fx = u - column;
+		double fy = v - row;
+
+		double sum = 0;
+		double weights = 0;
+		for (int i = 0; i < 4; i++) {
+			double w = (i % 2 == 0 ? 1 - fx : fx) * (i / 2 == 0 ? 1 - fy : fy);
+			sum += w * lattice(accessPoint, column + i % 2, row + i / 2);
+			weights += w * w;
+		}
+		return sum / Math.sqrt(weights);
+	}
+
+	/**
+	 * @return a standard normal value that only depends on the seed, the access point
+	 *         and the lattice point
+	 */
+	private double lattice(int accessPoint, int column, int row) {
+		long z = mix(seed ^ ((long) accessPoint << 40 ^ (long) column << 20 ^ row)
+				* 0x9e3779b97f4a7c15L);
+		double u1 = ((z >>> 11) + 1) / (double) (1L << 53);
+		double u2 = (mix(z) >>> 11) / (double) (1L << 53);
+		return Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+	}
+
+	// Spreads nearby seeds apart, as SplittableRandom does
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,253 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.KStar;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Trains the full set of models TrackerActivity loads from a survey, in place of building
+ * them one at a time in the WEKA GUI:
+ *
+ *   TrainModels [options] dataset_BUILDING.txt ASSETS_DIR
+ *
+ * The random forest that predicts the partition and the K* x and y regressors for each
+ * partition are written to ASSETS_DIR/5partition under the names TrackerActivity opens.
+ * The eleven models are independent so they're trained at the same time on a fork/join
+ * pool. Building a K* model only stores its datapoints, so nearly all the time goes into
+ * the forest. It's started first and builds its trees on the same number of threads
+ * through WEKA's own execution slots, which gives exactly the same trees as one slot.
+ *
+ * Options:
+ *   --threads N    pool size, the number of processors by default
+ *   --baseline     also train everything on one thread, after a warm up run, and report
+ *                  the speedup
+ *   --trees N      trees in the random forest (30, as shipped)
+ *   --blend N      K* global blend, 20 by default, as shipped
+ */
+public class TrainModels {
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean baseline;
+	private int trees = 30;
+	private int blend = 20;
+	private File dataset;
+	private File assets;
+
+	public static void main(String[] args) throws Exception {
+		TrainModels train = new TrainModels();
+		if (!train.parse(args)) {
+			System.err.println("Usage: TrainModels [--threads N] [--baseline] [--trees N] "
+					+ "[--blend N] DATASET ASSETS_DIR");
+			System.exit(2);
+		}
+		train.run();
+	}
+
+	private boolean parse(String[] args) {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--baseline")) {
+					baseline = true;
+				} else if (args[i].equals("--trees")) {
+					trees = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--blend")) {
+					blend = Integer.parseInt(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 2 || threads < 1) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		assets = new File(files.get(1));
+		return true;
+	}
+
+	private void run() throws Exception {
+		PartitionScheme scheme = PartitionScheme.FIVE;
+
+		long start = System.nanoTime();
+		PartitionedDataset data = PartitionedDataset.load(dataset, scheme);
+		System.out.printf("Read %d datapoints with %d access points from %s in %.1f s%n",
+				data.size(), data.getAccessPointCount(), dataset.getName(), seconds(start));
+		if (data.getSkipped() > 0) {
+			System.out.printf("Skipped %d datapoints with a different number of access "
+					+ "points%n", data.getSkipped());
+		}
+
+		long single = 0;
+		if (baseline) {
+			// So the JIT has done its work before either run is timed
+			train(createTasks(data, trees, blend, 1), 1);
+
+			List<TrainingTask> sequential = createTasks(data, trees, blend, 1);
+			System.out.printf("Training %d models on one thread%n", sequential.size());
+			single = train(sequential, 1);
+			report(sequential, single);
+		}
+
+		List<TrainingTask> tasks = createTasks(data, trees, blend, threads);
+		System.out.printf("Training %d models on %d threads%n", tasks.size(), threads);
+		long parallel = train(tasks, threads);
+		report(tasks, parallel);
+		if (baseline) {
+			System.out.printf("Speedup on %d threads: %.2fx%n", threads,
+					(double) single / parallel);
+		}
+
+		write(tasks, assets);
+	}
+
+	/**
+	 * The forest first, then the position models for each partition
+	 */
+	static List<TrainingTask> createTasks(PartitionedDataset data, int trees, int blend,
+			int threads) throws Exception {
+		PartitionScheme scheme = data.getScheme();
+		List<TrainingTask> tasks = new ArrayList<TrainingTask>();
+
+		RandomForest forest = new RandomForest();
+		forest.setOptions(Utils.splitOptions("-I " + trees + " -K 0 -S 1 -num-slots "
+				+ threads));
+		tasks.add(new TrainingTask(PositionModels.forestName(scheme), forest,
+				data.getPartitions()));
+
+		for (int i = 0; i < scheme.getPartitionCount(); i++) {
+			tasks.add(new TrainingTask(PositionModels.modelName(scheme, "x", i),
+					kStar(blend), data.getX(i)));
+			tasks.add(new TrainingTask(PositionModels.modelName(scheme, "y", i),
+					kStar(blend), data.getY(i)));
+		}
+		return tasks;
+	}
+
+	/**
+	 * Saves every trained model under assets by its name
+	 */
+	static void write(List<TrainingTask> tasks, File assets) throws Exception {
+		File output = null;
+		for (TrainingTask task : tasks) {
+			File file = new File(assets, task.name);
+			output = file.getParentFile();
+			if (!output.isDirectory() && !output.mkdirs()) {
+				throw new IllegalStateException("Couldn't create " + output);
+			}
+			SerializationHelper.write(file.getPath(), task.classifier);
+		}
+		System.out.printf("Wrote %d models to %s%n", tasks.size(), output);
+	}
+
+	private static Classifier kStar(int blend) throws Exception {
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B " + blend + " -M a"));
+		return kStar;
+	}
+
+	/**
+	 * @return wall clock nanoseconds to train every task
+	 */
+	static long train(final List<TrainingTask> tasks, int threads) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		long nanos = System.nanoTime() - start;
+		pool.shutdown();
+		return nanos;
+	}
+
+	static void report(List<TrainingTask> tasks, long wall) {
+		long total = 0;
+		for (TrainingTask task : tasks) {
+			System.out.printf("  %-36s %7d rows %8.2f s%n", task.name,
+					task.data.numInstances(), task.nanos / 1e9);
+			total += task.nanos;
+		}
+		System.out.printf("  %.2f s wall clock, %.2f s spent training%n", wall / 1e9,
+				total / 1e9);
+	}
+
+	private static double seconds(long start) {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * Trains one classifier and records how long it took
+	 */
+	@SuppressWarnings("serial")
+	static class TrainingTask extends RecursiveAction {
+		final String name;
+		final Classifier classifier;
+		final Instances data;
+		long nanos;
+
+		TrainingTask(String name, Classifier classifier, Instances data) {
+			this.name = name;
+			this.classifier = classifier;
+			this.data = data;
+		}
+
+		@Override
+		protected void compute() {
+			if (data.numInstances() == 0) {
+				throw new IllegalStateException("No datapoints to train " + name);
+			}
+			long start = System.nanoTime();
+			try {
+				classifier.buildClassifier(data);
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't train " + name, e);
+			}
+			nanos = System.nanoTime() - start;
+
+			// Save the forest the way it shipped, the slots only matter while training
+			if (classifier instanceof RandomForest) {
+				((RandomForest) classifier).setNumExecutionSlots(1);
+			}
+		}
+	}
+}
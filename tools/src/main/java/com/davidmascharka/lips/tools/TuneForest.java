@@ -0,0 +1,486 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+import com.davidmascharka.lips.PartitionScheme;
+import com.davidmascharka.lips.PositionModels;
+import com.davidmascharka.lips.SurveyRecord;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.IteratedSingleClassifierEnhancer;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.SerializedObject;
+import weka.core.Utils;
+
+/**
+ *  Copyright 2015 David Mascharka
+ *
+ * This file is part of LIPS (Learning-based Indoor Positioning System).
+ *
+ *  LIPS is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  LIPS is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with LIPS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Finds how small the trained random forest that picks the partition can get before it
+ * routes scans worse:
+ *
+ *   TuneForest [options] held_out_BUILDING.txt ASSETS_DIR
+ *
+ * The scheme's forest is read from ASSETS_DIR and cut down two ways without training
+ * it again. A truncated forest keeps only its first N trees, and a depth capped one
+ * turns every node D splits below the root into a leaf. A new leaf predicts what its
+ * subtree would for a scan missing the attribute it split on, the mix of its children
+ * weighted by how many training datapoints went each way. Every combination of the two
+ * routes the held out survey.
+ *
+ * Each variant is measured by its routing accuracy, the mean CPU time to route one scan
+ * and its serialized size, which is what TrackerActivity holds in memory. None of the
+ * variants keep the record of which datapoints went into each tree's bag, which WEKA
+ * only needs for the out of bag error and which is a large part of a saved forest. The
+ * variants no other variant beats on all three are the Pareto curve, printed fastest
+ * first and written with the rest to the JSON report. The forest chosen is the fastest
+ * that loses at most --max-loss accuracy, and --write saves it over the forest in
+ * ASSETS_DIR.
+ *
+ * Options:
+ *   --scheme NAME    5Partition by default, or the path of a partitions.txt written by
+ *                    DiscoverPartitions
+ *   --trees A,B      tree counts to try, 1,2,3,5,8,10,15,20,25 and all by default
+ *   --depths A,B     depth caps to try, 2,4,6,8,10,12,16 and none by default
+ *   --max-loss P     routing accuracy the chosen forest may lose, 0.01 by default
+ *   --passes N       times each variant routes the survey to time it, 20 by default
+ *   --report FILE    where to write the JSON report, forest.json by default
+ *   --write          save the chosen forest to ASSETS_DIR
+ */
+public class TuneForest {
+
+	// Stands for all of the trees, or no depth cap
+	private static final int ALL = 0;
+
+	private static final Field BAGGER = field(RandomForest.class, "m_bagger");
+	private static final Field CLASSIFIERS = field(IteratedSingleClassifierEnhancer.class,
+			"m_Classifiers");
+	private static final Field ITERATIONS = field(IteratedSingleClassifierEnhancer.class,
+			"m_NumIterations");
+	private static final Field IN_BAG = field(Bagging.class, "m_inBag");
+	private static final Field NUM_TREES = field(RandomForest.class, "m_numTrees");
+	private static final Field ROOT = field(RandomTree.class, "m_Tree");
+	private static final Field INFO = field(RandomTree.class, "m_Info");
+
+	// RandomTree's nodes, which aren't visible outside WEKA
+	private static final Class<?> NODE = node();
+	private static final Field SUCCESSORS = field(NODE, "m_Successors");
+	private static final Field ATTRIBUTE = field(NODE, "m_Attribute");
+	private static final Field PROP = field(NODE, "m_Prop");
+	private static final Field DISTRIBUTION = field(NODE,
+			"m_ClassDistribution");
+
+	private PartitionScheme scheme = PartitionScheme.FIVE;
+	private int[] treeCounts = {1, 2, 3, 5, 8, 10, 15, 20, 25, ALL};
+	private int[] depths = {2, 4, 6, 8, 10, 12, 16, ALL};
+	private double maxLoss = 0.01;
+	private int passes = 20;
+	private File report = new File("forest.json");
+	private boolean write;
+	private File dataset;
+	private File assets;
+
+	public static void main(String[] args) throws Exception {
+		TuneForest tune = new TuneForest();
+		if (!tune.parse(args)) {
+			System.err.println("Usage: TuneForest [--scheme NAME|FILE] [--trees A,B] "
+					+ "[--depths A,B] [--max-loss P] [--passes N] [--report FILE] [--write] "
+					+ "DATASET ASSETS_DIR");
+			System.exit(2);
+		}
+		tune.run();
+	}
+
+	private boolean parse(String[] args) throws Exception {
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--scheme")) {
+					scheme = SelectFeatures.scheme(args[++i]);
+					if (scheme == null) {
+						return false;
+					}
+				} else if (args[i].equals("--trees")) {
+					treeCounts = counts(args[++i]);
+				} else if (args[i].equals("--depths")) {
+					depths = counts(args[++i]);
+				} else if (args[i].equals("--max-loss")) {
+					maxLoss = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--passes")) {
+					passes = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--report")) {
+					report = new File(args[++i]);
+				} else if (args[i].equals("--write")) {
+					write = true;
+				} else if (args[i].startsWith("--")) {
+					return false;
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+		if (files.size() != 2 || passes < 1) {
+			return false;
+		}
+		dataset = new File(files.get(0));
+		assets = new File(files.get(1));
+		return true;
+	}
+
+	/**
+	 * @return the comma separated numbers, with "all" or "none" as ALL
+	 */
+	private static int[] counts(String list) {
+		String[] values = list.split(",");
+		int[] counts = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			counts[i] = values[i].equals("all") || values[i].equals("none") ? ALL
+					: Integer.parseInt(values[i]);
+		}
+		return counts;
+	}
+
+	private void run() throws Exception {
+		File forestFile = new File(assets, PositionModels.forestName(scheme));
+		RandomForest forest = (RandomForest) SerializationHelper.read(forestFile.getPath());
+		int trees = trees(forest).length;
+
+		List<SurveyRecord> records = PartitionedDataset.readRecords(dataset);
+		int accessPoints = records.get(0).getAccessPointCount();
+		Instances header = FingerprintInstances.partition(scheme, accessPoints, 0);
+		List<Instance> instances = new ArrayList<Instance>(records.size());
+		int[] partitions = new int[records.size()];
+		for (SurveyRecord record : records) {
+			if (record.getAccessPointCount() == accessPoints) {
+				partitions[instances.size()] = scheme.partitionOf(record);
+				instances.add(FingerprintInstances.toInstance(record, header, scheme));
+			}
+		}
+		System.out.printf("Read %d held out datapoints from %s%n", instances.size(),
+				dataset.getName());
+		System.out.printf("%s has %d trees and takes %d KB, %d KB without its bags%n",
+				forestFile, trees, size(forest) / 1024, size(variant(forest, ALL, ALL)) / 1024);
+
+		// So the JIT has compiled the routing code before any variant is timed
+		for (int pass = 0; pass < passes; pass++) {
+			for (Instance instance : instances) {
+				forest.classifyInstance(instance);
+			}
+		}
+
+		List<Variant> variants = new ArrayList<Variant>();
+		for (int depth : depths) {
+			RandomForest capped = variant(forest, ALL, depth);
+			for (int count : treeCounts) {
+				if (count > trees) {
+					continue;
+				}
+				RandomForest candidate = variant(capped, count, ALL);
+				variants.add(evaluate(candidate, count == ALL ? trees : count, depth,
+						instances, partitions));
+			}
+		}
+
+		Variant full = null;
+		for (Variant variant : variants) {
+			if (variant.trees == trees && variant.depth == ALL) {
+				full = variant;
+			}
+		}
+		if (full == null) {
+			full = evaluate(variant(forest, ALL, ALL), trees, ALL, instances, partitions);
+			variants.add(full);
+		}
+
+		List<Variant> pareto = new ArrayList<Variant>();
+		for (Variant variant : variants) {
+			variant.pareto = true;
+			for (Variant other : variants) {
+				if (other.dominates(variant)) {
+					variant.pareto = false;
+					break;
+				}
+			}
+			if (variant.pareto) {
+				pareto.add(variant);
+			}
+		}
+		Collections.sort(pareto, new Comparator<Variant>() {
+			@Override
+			public int compare(Variant a, Variant b) {
+				return Double.compare(a.micros, b.micros);
+			}
+		});
+
+		Variant chosen = full;
+		for (Variant variant : variants) {
+			if (variant.accuracy >= full.accuracy - maxLoss && (variant.micros < chosen.micros
+					|| variant.micros == chosen.micros && variant.bytes < chosen.bytes)) {
+				chosen = variant;
+			}
+		}
+
+		System.out.printf("%nPareto curve of %d variants%n", variants.size());
+		System.out.printf("  %5s %5s %9s %9s %9s%n", "trees", "depth", "routing", "us/scan",
+				"KB");
+		for (Variant variant : pareto) {
+			System.out.printf("  %5d %5s %8.1f%% %9.1f %9d%s%n", variant.trees,
+					variant.depth == ALL ? "none" : Integer.toString(variant.depth),
+					100 * variant.accuracy, variant.micros, variant.bytes / 1024,
+					variant == chosen ? "  <- chosen" : variant == full ? "  <- full" : "");
+		}
+		System.out.printf("%nChose %d trees, depth %s: %.1f%% routing (%+.1f), %.2fx faster, "
+				+ "%.1fx smaller than the full forest%n", chosen.trees,
+				chosen.depth == ALL ? "uncapped" : Integer.toString(chosen.depth),
+				100 * chosen.accuracy, 100 * (chosen.accuracy - full.accuracy),
+				full.micros / chosen.micros, (double) full.bytes / chosen.bytes);
+
+		writeReport(variants, chosen, trees);
+		System.out.printf("Wrote %s%n", report);
+
+		if (write) {
+			RandomForest reduced = variant(forest, chosen.trees, chosen.depth);
+			File temporary = new File(forestFile.getParentFile(), forestFile.getName() + ".tmp");
+			SerializationHelper.write(temporary.getPath(), reduced);
+			if (!temporary.renameTo(forestFile)) {
+				temporary.delete();
+				throw new IOException("Couldn't replace " + forestFile);
+			}
+			System.out.printf("Wrote %s%n", forestFile);
+		}
+	}
+
+	private Variant evaluate(RandomForest forest, int trees, int depth,
+			List<Instance> instances, int[] partitions) throws Exception {
+		int correct = 0;
+		for (int i = 0; i < instances.size(); i++) {
+			if ((int) forest.classifyInstance(instances.get(i)) == partitions[i]) {
+				correct++;
+			}
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+		for (int pass = 0; pass < passes; pass++) {
+			for (Instance instance : instances) {
+				forest.classifyInstance(instance);
+			}
+		}
+		long nanos = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+
+		return new Variant(trees, depth, (double) correct / instances.size(),
+				nanos / 1e3 / passes / instances.size(), size(forest));
+	}
+
+	/**
+	 * @return a copy of forest with only its first trees, capped at depth, without the
+	 *         record of its bags
+	 */
+	static RandomForest variant(RandomForest forest, int trees, int depth) throws Exception {
+		RandomForest copy = (RandomForest) new SerializedObject(forest).getObject();
+		Bagging bagger = (Bagging) BAGGER.get(copy);
+		IN_BAG.set(bagger, null);
+		if (trees != ALL) {
+			Classifier[] kept = Arrays.copyOf(trees(copy), trees);
+			CLASSIFIERS.set(bagger, kept);
+			ITERATIONS.setInt(bagger, trees);
+			NUM_TREES.setInt(copy, trees);
+		}
+		if (depth != ALL) {
+			for (Classifier tree : trees(copy)) {
+				Object root = ROOT.get(tree);
+				if (root != null) {
+					cap(root, 0, depth);
+				}
+			}
+			copy.setMaxDepth(depth);
+		}
+		return copy;
+	}
+
+	private static Classifier[] trees(RandomForest forest) throws Exception {
+		return (Classifier[]) CLASSIFIERS.get(BAGGER.get(forest));
+	}
+
+	/**
+	 * @return the empty header of the data a forest was trained on, which a forest doesn't
+	 *         expose but each of its trees keeps
+	 */
+	static Instances header(RandomForest forest) throws Exception {
+		return (Instances) INFO.get(trees(forest)[0]);
+	}
+
+	private static void cap(Object node, int depth, int maxDepth) throws Exception {
+		if (ATTRIBUTE.getInt(node) == -1) {
+			return;
+		}
+		Object[] successors = (Object[]) SUCCESSORS.get(node);
+		if (depth < maxDepth) {
+			for (Object successor : successors) {
+				cap(successor, depth + 1, maxDepth);
+			}
+			return;
+		}
+		DISTRIBUTION.set(node, distribution(node));
+		ATTRIBUTE.setInt(node, -1);
+		SUCCESSORS.set(node, null);
+		PROP.set(node, null);
+	}
+
+	/**
+	 * @return the normalized class distribution a node predicts for a scan that's missing
+	 *         the attribute it splits on, or null if it never saw any datapoints
+	 */
+	private static double[] distribution(Object node) throws Exception {
+		double[] distribution = (double[]) DISTRIBUTION.get(node);
+		if (ATTRIBUTE.getInt(node) == -1) {
+			if (distribution == null) {
+				return null;
+			}
+			distribution = distribution.clone();
+			Utils.normalize(distribution);
+			return distribution;
+		}
+
+		Object[] successors = (Object[]) SUCCESSORS.get(node);
+		double[] prop = (double[]) PROP.get(node);
+		double[] sum = null;
+		for (int i = 0; i < successors.length; i++) {
+			double[] child = distribution(successors[i]);
+			if (child == null) {
+				continue;
+			}
+			if (sum == null) {
+				sum = new double[child.length];
+			}
+			for (int c = 0; c < child.length; c++) {
+				sum[c] += prop[i] * child[c];
+			}
+		}
+		if (sum != null && Utils.sum(sum) > 0) {
+			Utils.normalize(sum);
+		}
+		return sum;
+	}
+
+	private static long size(Object model) throws IOException {
+		CrossValidate.CountingOutputStream counter = new CrossValidate.CountingOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(counter);
+		out.writeObject(model);
+		out.close();
+		return counter.count;
+	}
+
+	private static Class<?> node() {
+		try {
+			return Class.forName(RandomTree.class.getName() + "$Tree");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("WEKA's RandomTree has no Tree", e);
+		}
+	}
+
+	private static Field field(Class<?> owner, String name) {
+		try {
+			Field field = owner.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("WEKA's " + owner.getSimpleName() + " has no "
+					+ name, e);
+		}
+	}
+
+	private void writeReport(List<Variant> variants, Variant chosen, int trees)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(report), "UTF-8"));
+		try {
+			out.println("{");
+			out.printf(Locale.US, "  \"dataset\": \"%s\",%n", dataset.getName()
+					.replace("\\", "\\\\").replace("\"", "\\\""));
+			out.printf(Locale.US, "  \"scheme\": \"%s\",%n", scheme.getName());
+			out.printf(Locale.US, "  \"trees\": %d,%n", trees);
+			out.println("  \"variants\": [");
+			for (int i = 0; i < variants.size(); i++) {
+				Variant variant = variants.get(i);
+				out.printf(Locale.US, "    {\"trees\": %d, \"depth\": %d, "
+						+ "\"routingAccuracy\": %.4f, \"microsPerScan\": %.2f, \"bytes\": %d, "
+						+ "\"pareto\": %b, \"chosen\": %b}%s%n", variant.trees, variant.depth,
+						variant.accuracy, variant.micros, variant.bytes, variant.pareto,
+						variant == chosen, i < variants.size() - 1 ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Couldn't write " + report);
+		}
+	}
+
+	/**
+	 * One cut down forest and how it did. A depth of ALL means no cap
+	 */
+	private static class Variant {
+		final int trees;
+		final int depth;
+		final double accuracy;
+		final double micros;
+		final long bytes;
+		boolean pareto;
+
+		Variant(int trees, int depth, double accuracy, double micros, long bytes) {
+			this.trees = trees;
+			this.depth = depth;
+			this.accuracy = accuracy;
+			this.micros = micros;
+			this.bytes = bytes;
+		}
+
+		boolean dominates(Variant other) {
+			return accuracy >= other.accuracy && micros <= other.micros
+					&& bytes <= other.bytes && (accuracy > other.accuracy
+							|| micros < other.micros || bytes < other.bytes);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.davidmascharka.lips.tools;
+
+import com.davidmascharka.lips.FingerprintInstances;
+
+import org.junit.Test;
+
+import weka.classifiers.lazy.KStar;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import static org.junit.Assert.*;
+
+/**
+ * A made up survey has to be one the models can learn, or every accuracy the tools
+ * report on it is meaningless
+ */
+public class SyntheticSurveyTest {
+
+	@Test
+	public void kStarLocalizesHeldOutDatapoints() throws Exception {
+		SyntheticSurvey survey = new SyntheticSurvey(102, 64, 159, 3, 4, 1);
+		Instances header = FingerprintInstances.position(FingerprintInstances.X_POSITION,
+				survey.getAccessPointCount(), 0);
+		Instances train = survey.instances(header, 0, 3000);
+		Instances test = survey.instances(header, 3000, 100);
+
+		KStar kStar = new KStar();
+		kStar.setOptions(Utils.splitOptions("-B 20 -M a"));
+		kStar.buildClassifier(train);
+
+		double error = 0;
+		for (int i = 0; i < test.numInstances(); i++) {
+			error += Math.abs(kStar.classifyInstance(test.instance(i))
+					- test.instance(i).classValue());
+		}
+		error /= test.numInstances();
+		assertTrue("mean x error " + error + " cells", error < 3);
+	}
+}